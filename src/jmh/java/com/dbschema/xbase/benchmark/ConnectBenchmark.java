@@ -0,0 +1,69 @@
+package com.dbschema.xbase.benchmark;
+
+import com.dbschema.xbase.DbfJdbcDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Time from DriverManager.getConnection() to the result of the first query, for a folder with a number of tables,
+ * each with the same number of records. We use cache=memory, so each connection loads the folder again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConnectBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int tables;
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({DbfJdbcDriver.LOAD_EAGER, DbfJdbcDriver.LOAD_LAZY, DbfJdbcDriver.LOAD_ASYNC})
+    public String load;
+
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Class.forName( DbfJdbcDriver.class.getName() );
+        final File folder = DbfFixtureGenerator.getFixtureFolder("connect_" + tables + "_" + rows );
+        for ( int i = 0; i < tables; i++ ){
+            DbfFixtureGenerator.generate( folder, "T" + i, DbfFixtureGenerator.FieldMix.MIXED, rows );
+        }
+        url = "jdbc:dbschema:dbf:" + folder.getAbsolutePath() + "?cache=memory&load=" + load;
+    }
+
+    @Benchmark
+    public long connectAndQuery() throws Exception {
+        try ( Connection connection = DriverManager.getConnection( url );
+              Statement st = connection.createStatement();
+              ResultSet rs = st.executeQuery("select count(*) from T0") ){
+            rs.next();
+            return rs.getLong( 1 );
+        }
+    }
+}
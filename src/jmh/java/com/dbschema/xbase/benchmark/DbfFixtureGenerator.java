@@ -0,0 +1,246 @@
+package com.dbschema.xbase.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Generate dBase III DBF files with millions of records for the benchmarks. The values are pseudo-random, with a fixed seed,
+ * so the same parameters always give the same file. MEMO fields are written in a .dbt memo file.
+ * Files are written once in java.io.tmpdir/dbf-jmh-fixtures and reused by the next benchmark runs.
+ *
+ * Can be used from the command line: DbfFixtureGenerator &lt;folder&gt; &lt;CHARACTER|NUMERIC|DATE|LOGICAL|MEMO|MIXED&gt; &lt;records&gt; [tables]
+ */
+public class DbfFixtureGenerator {
+
+    public enum FieldMix { CHARACTER, NUMERIC, DATE, LOGICAL, MEMO, MIXED }
+
+    private static final int HEADER_SIZE = 32, FIELD_DESCRIPTOR_SIZE = 32, MEMO_BLOCK_SIZE = 512;
+    private static final String[] WORDS = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india", "juliet" };
+
+    private static class Field {
+        final String name;
+        final char type;
+        final int length, decimals;
+
+        Field( String name, char type, int length, int decimals ){
+            this.name = name;
+            this.type = type;
+            this.length = length;
+            this.decimals = decimals;
+        }
+    }
+
+    public static File getFixtureFolder( String name ){
+        final File folder = new File( System.getProperty("java.io.tmpdir"), "dbf-jmh-fixtures/" + name );
+        folder.mkdirs();
+        return folder;
+    }
+
+    /**
+     * Write &lt;folder&gt;/&lt;tableName&gt;.dbf, if it does not exist yet with the same number of records.
+     */
+    public static File generate( File folder, String tableName, FieldMix mix, int records ) throws IOException {
+        final File file = new File( folder, tableName + ".dbf" );
+        final Field[] fields = getFields( mix );
+        final int recordLength = getRecordLength( fields );
+        final long expectedSize = HEADER_SIZE + (long)FIELD_DESCRIPTOR_SIZE * fields.length + 1 + (long)recordLength * records + 1;
+        if ( file.length() == expectedSize ){
+            return file;
+        }
+        final boolean hasMemo = mix == FieldMix.MEMO;
+        final File memoFile = new File( folder, tableName + ".dbt" );
+        final Random random = new Random( records * 31L + mix.ordinal() );
+        try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 );
+              OutputStream memoOut = hasMemo ? new BufferedOutputStream( new FileOutputStream( memoFile ), 1 << 16 ) : null ){
+            writeHeader( out, fields, records, recordLength, hasMemo );
+            int nextMemoBlock = 1;
+            if ( hasMemo ){
+                // The first block holds the next free block, written again at the end
+                memoOut.write( new byte[ MEMO_BLOCK_SIZE ] );
+            }
+            final byte[] record = new byte[ recordLength ];
+            for ( int i = 0; i < records; i++ ){
+                Arrays.fill( record, (byte)' ' );
+                int offset = 1;
+                for ( Field field : fields ){
+                    final String value;
+                    if ( field.type == 'M' ){
+                        value = String.valueOf( nextMemoBlock );
+                        nextMemoBlock += writeMemo( memoOut, getText( random, 5 + random.nextInt( 60 )));
+                    } else {
+                        value = getValue( field, i, random );
+                    }
+                    final byte[] bytes = value.getBytes( StandardCharsets.ISO_8859_1 );
+                    final int length = Math.min( bytes.length, field.length );
+                    // Numbers are right-aligned, the other types left-aligned
+                    final int start = field.type == 'N' || field.type == 'M' ? offset + field.length - length : offset;
+                    System.arraycopy( bytes, 0, record, start, length );
+                    offset += field.length;
+                }
+                out.write( record );
+            }
+            out.write( 0x1A );
+            if ( hasMemo ){
+                memoOut.flush();
+            }
+        }
+        if ( hasMemo ){
+            writeNextMemoBlock( memoFile );
+        }
+        return file;
+    }
+
+    private static Field[] getFields( FieldMix mix ){
+        switch ( mix ){
+            case CHARACTER:
+                return new Field[]{ new Field("CODE", 'C', 10, 0), new Field("NAME", 'C', 30, 0), new Field("CITY", 'C', 40, 0), new Field("REMARK", 'C', 80, 0) };
+            case NUMERIC:
+                return new Field[]{ new Field("ID", 'N', 10, 0), new Field("QUANTITY", 'N', 6, 0), new Field("PRICE", 'N', 12, 2), new Field("RATE", 'N', 18, 6) };
+            case DATE:
+                return new Field[]{ new Field("CREATED", 'D', 8, 0), new Field("UPDATED", 'D', 8, 0), new Field("DUE", 'D', 8, 0), new Field("CLOSED", 'D', 8, 0) };
+            case LOGICAL:
+                return new Field[]{ new Field("ACTIVE", 'L', 1, 0), new Field("PAID", 'L', 1, 0), new Field("SHIPPED", 'L', 1, 0), new Field("DELETED", 'L', 1, 0) };
+            case MEMO:
+                return new Field[]{ new Field("ID", 'N', 10, 0), new Field("NAME", 'C', 30, 0), new Field("NOTES", 'M', 10, 0) };
+            default:
+                return new Field[]{ new Field("ID", 'N', 10, 0), new Field("NAME", 'C', 30, 0), new Field("AMOUNT", 'N', 12, 2),
+                        new Field("CREATED", 'D', 8, 0), new Field("ACTIVE", 'L', 1, 0), new Field("CITY", 'C', 40, 0) };
+        }
+    }
+
+    private static int getRecordLength( Field[] fields ){
+        int length = 1;
+        for ( Field field : fields ){
+            length += field.length;
+        }
+        return length;
+    }
+
+    private static void writeHeader( OutputStream out, Field[] fields, int records, int recordLength, boolean hasMemo ) throws IOException {
+        final int headerLength = HEADER_SIZE + FIELD_DESCRIPTOR_SIZE * fields.length + 1;
+        final byte[] header = new byte[ headerLength ];
+        final Calendar today = Calendar.getInstance();
+        header[0] = (byte)( hasMemo ? 0x83 : 0x03 );
+        header[1] = (byte)( today.get( Calendar.YEAR ) - 1900 );
+        header[2] = (byte)( today.get( Calendar.MONTH ) + 1 );
+        header[3] = (byte)today.get( Calendar.DAY_OF_MONTH );
+        putInt( header, 4, records );
+        header[8] = (byte)headerLength;
+        header[9] = (byte)( headerLength >> 8 );
+        header[10] = (byte)recordLength;
+        header[11] = (byte)( recordLength >> 8 );
+        // Language driver: Windows ANSI
+        header[29] = 0x03;
+        for ( int i = 0; i < fields.length; i++ ){
+            final int offset = HEADER_SIZE + i * FIELD_DESCRIPTOR_SIZE;
+            final byte[] name = fields[i].name.getBytes( StandardCharsets.US_ASCII );
+            System.arraycopy( name, 0, header, offset, Math.min( name.length, 10 ));
+            header[offset + 11] = (byte)fields[i].type;
+            header[offset + 16] = (byte)fields[i].length;
+            header[offset + 17] = (byte)fields[i].decimals;
+        }
+        header[headerLength - 1] = 0x0D;
+        out.write( header );
+    }
+
+    private static String getValue( Field field, int recordIndex, Random random ){
+        switch ( field.type ){
+            case 'C':
+                return getText( random, 1 + random.nextInt( field.length ));
+            case 'N':
+                if ( field.name.equals("ID") ){
+                    return String.valueOf( recordIndex + 1 );
+                }
+                final long max = (long)Math.pow( 10, Math.min( 15, field.length - field.decimals - ( field.decimals > 0 ? 2 : 1 )));
+                final long integerPart = (long)( random.nextDouble() * max );
+                if ( field.decimals == 0 ){
+                    return String.valueOf( integerPart );
+                }
+                final StringBuilder decimals = new StringBuilder();
+                for ( int i = 0; i < field.decimals; i++ ){
+                    decimals.append( random.nextInt( 10 ));
+                }
+                return integerPart + "." + decimals;
+            case 'D':
+                // 1 in 20 dates is empty
+                if ( random.nextInt( 20 ) == 0 ){
+                    return "";
+                }
+                return String.format( "%04d%02d%02d", 1990 + random.nextInt( 35 ), 1 + random.nextInt( 12 ), 1 + random.nextInt( 28 ));
+            case 'L':
+                return random.nextBoolean() ? "T" : "F";
+            default:
+                return "";
+        }
+    }
+
+    private static String getText( Random random, int length ){
+        final StringBuilder sb = new StringBuilder( length + 10 );
+        while ( sb.length() < length ){
+            if ( sb.length() > 0 ){
+                sb.append(' ');
+            }
+            sb.append( WORDS[ random.nextInt( WORDS.length ) ]);
+        }
+        sb.setLength( length );
+        return sb.toString().trim();
+    }
+
+    /**
+     * dBase III memo: the text ends with two 0x1A, and is padded to the block size.
+     * @return the number of blocks written.
+     */
+    private static int writeMemo( OutputStream memoOut, String text ) throws IOException {
+        final byte[] bytes = text.getBytes( StandardCharsets.ISO_8859_1 );
+        final int blocks = ( bytes.length + 2 + MEMO_BLOCK_SIZE - 1 ) / MEMO_BLOCK_SIZE;
+        final byte[] data = new byte[ blocks * MEMO_BLOCK_SIZE ];
+        System.arraycopy( bytes, 0, data, 0, bytes.length );
+        data[ bytes.length ] = 0x1A;
+        data[ bytes.length + 1 ] = 0x1A;
+        memoOut.write( data );
+        return blocks;
+    }
+
+    private static void writeNextMemoBlock( File memoFile ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( memoFile, "rw" ) ){
+            final byte[] next = new byte[4];
+            putInt( next, 0, (int)( raf.length() / MEMO_BLOCK_SIZE ));
+            raf.write( next );
+        }
+    }
+
+    private static void putInt( byte[] bytes, int offset, int value ){
+        bytes[offset] = (byte)value;
+        bytes[offset + 1] = (byte)( value >> 8 );
+        bytes[offset + 2] = (byte)( value >> 16 );
+        bytes[offset + 3] = (byte)( value >> 24 );
+    }
+
+    public static void main( String[] args ) throws IOException {
+        if ( args.length < 3 ){
+            System.out.println("Usage: DbfFixtureGenerator <folder> <CHARACTER|NUMERIC|DATE|LOGICAL|MEMO|MIXED> <records> [tables]");
+            return;
+        }
+        final File folder = new File( args[0] );
+        folder.mkdirs();
+        final FieldMix mix = FieldMix.valueOf( args[1].toUpperCase() );
+        final int records = Integer.parseInt( args[2] );
+        final int tables = args.length > 3 ? Integer.parseInt( args[3] ) : 1;
+        for ( int i = 0; i < tables; i++ ){
+            final long start = System.currentTimeMillis();
+            final File file = generate( folder, tables > 1 ? "T" + i : mix.name(), mix, records );
+            System.out.println( file + " " + file.length() + " bytes in " + ( System.currentTimeMillis() - start ) + " ms" );
+        }
+    }
+}
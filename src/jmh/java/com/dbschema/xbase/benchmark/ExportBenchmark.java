@@ -0,0 +1,91 @@
+package com.dbschema.xbase.benchmark;
+
+import com.dbschema.xbase.io.DbfCatalog;
+import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.io.H2StoreInDbf;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFReader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Time to write an H2 table as DBF file using H2StoreInDbf, like 'save dbf to'. The table is loaded once from a generated DBF file.
+ * The 'records' counter reports the exported records per second. MEMO is not part of the mixes, H2StoreInDbf writes no memo files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+    private static final String H2_URL = "jdbc:h2:mem:jmh_export";
+
+    @Param({"CHARACTER", "NUMERIC", "DATE", "LOGICAL", "MIXED"})
+    public String mix;
+
+    @Param({"100000"})
+    public int rows;
+
+    @Param({"1"})
+    public int threads;
+
+    private File outputFolder;
+    private Connection h2Connection;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ExportCounters {
+        public long records;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final File folder = DbfFixtureGenerator.getFixtureFolder("export");
+        final File file = DbfFixtureGenerator.generate( folder, mix + "_" + rows, DbfFixtureGenerator.FieldMix.valueOf( mix ), rows );
+        outputFolder = DbfFixtureGenerator.getFixtureFolder("export_out");
+        h2Connection = DriverManager.getConnection( H2_URL );
+        h2Connection.setAutoCommit( false );
+        DbfCatalog.createMetaTables( h2Connection );
+        final Table table = new Table( folder, file );
+        final DbfLoaderInH2 loader = new DbfLoaderInH2();
+        try ( DBFReader reader = new DBFReader( new FileInputStream( file )) ){
+            loader.transferDefinition( table, reader, h2Connection );
+        }
+        loader.transferData( table, file, h2Connection );
+        h2Connection.setAutoCommit( true );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        h2Connection.close();
+    }
+
+    @Benchmark
+    public void store( ExportCounters counters ) throws Exception {
+        new H2StoreInDbf( H2_URL, null, threads ).store( h2Connection, outputFolder );
+        counters.records += rows;
+    }
+}
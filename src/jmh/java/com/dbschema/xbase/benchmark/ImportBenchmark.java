@@ -0,0 +1,86 @@
+package com.dbschema.xbase.benchmark;
+
+import com.dbschema.xbase.io.DbfCatalog;
+import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFReader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Time to load one DBF file in an in-memory H2 database using DbfLoaderInH2, for each field mix.
+ * The 'records' counter reports the imported records per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+    @Param({"CHARACTER", "NUMERIC", "DATE", "LOGICAL", "MEMO", "MIXED"})
+    public String mix;
+
+    @Param({"100000"})
+    public int rows;
+
+    @Param({"10000"})
+    public int commitInterval;
+
+    private File folder, file;
+    private Connection h2Connection;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ImportCounters {
+        public long records;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = DbfFixtureGenerator.getFixtureFolder("import");
+        file = DbfFixtureGenerator.generate( folder, mix + "_" + rows, DbfFixtureGenerator.FieldMix.valueOf( mix ), rows );
+        h2Connection = DriverManager.getConnection("jdbc:h2:mem:jmh_import");
+        h2Connection.setAutoCommit( false );
+        DbfCatalog.createMetaTables( h2Connection );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        h2Connection.close();
+    }
+
+    @Benchmark
+    public void transfer( ImportCounters counters ) throws Exception {
+        final Table table = new Table( folder, file );
+        final DbfLoaderInH2 loader = new DbfLoaderInH2( commitInterval );
+        try ( DBFReader reader = new DBFReader( new FileInputStream( file )) ){
+            loader.transferDefinition( table, reader, h2Connection );
+        }
+        loader.transferData( table, file, h2Connection );
+        DbfLoaderInH2.dropTable( h2Connection, table.name );
+        counters.records += rows;
+    }
+}
@@ -0,0 +1,150 @@
+package com.dbschema.xbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Keep the H2 cache folder within a size budget and drop the databases which were not used for a long time.
+ * Each DBF folder has its own H2 database, made of the files &lt;md5-of-path&gt;.* , with a _compact or _double suffix
+ * for the other types mappings. The last use is the modification
+ * time of the &lt;md5-of-path&gt;.used file, touched when a connection is opened or closed.
+ * Databases opened in this JVM, or locked by another process, are never evicted.
+ * The least recently used databases are evicted first.
+ */
+class DbfCacheManager {
+
+    private static final String USED_SUFFIX = ".used";
+    private static final String MV_FILE_SUFFIX = ".mv.db";
+    private static final Pattern DATABASE_NAME = Pattern.compile("[0-9a-f]{32}(_[a-z]+)?");
+
+    private final File cacheDir;
+
+    DbfCacheManager( File cacheDir ){
+        this.cacheDir = cacheDir;
+    }
+
+    private static class CacheEntry {
+        final String name;
+        final List<File> files = new ArrayList<>();
+        long size;
+        long lastUsed;
+
+        CacheEntry( String name ){
+            this.name = name;
+        }
+    }
+
+    /**
+     * Mark the database as used now.
+     */
+    void touch( String name ){
+        final File usedFile = new File( cacheDir, name + USED_SUFFIX );
+        try {
+            if ( !usedFile.createNewFile() ){
+                usedFile.setLastModified( System.currentTimeMillis() );
+            }
+        } catch ( IOException ex ){
+            LOGGER.log(Level.INFO, "Cannot touch " + usedFile, ex );
+        }
+    }
+
+    /**
+     * @param maxSizeMB total size of the cache folder. 0 for no limit.
+     * @param maxAgeHours drop the databases not used since this number of hours. 0 for no limit.
+     * @param openDatabases names of the databases opened in this JVM.
+     * @return the names of the evicted databases.
+     */
+    List<String> evict( long maxSizeMB, long maxAgeHours, Collection<String> openDatabases ){
+        final List<String> evicted = new ArrayList<>();
+        if ( maxSizeMB <= 0 && maxAgeHours <= 0 ){
+            return evicted;
+        }
+        final List<CacheEntry> entries = listEntries();
+        entries.sort( ( a, b ) -> Long.compare( a.lastUsed, b.lastUsed ));
+        long totalSize = 0;
+        for ( CacheEntry entry : entries ){
+            totalSize += entry.size;
+        }
+        final long maxSize = maxSizeMB * 1024 * 1024;
+        final long oldestUse = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( maxAgeHours );
+        for ( CacheEntry entry : entries ){
+            final boolean tooOld = maxAgeHours > 0 && entry.lastUsed < oldestUse;
+            final boolean overBudget = maxSizeMB > 0 && totalSize > maxSize;
+            if ( !tooOld && !overBudget ){
+                continue;
+            }
+            if ( openDatabases.contains( entry.name ) || isLocked( entry ) ){
+                continue;
+            }
+            LOGGER.log(Level.INFO, "Evict H2 cache database " + entry.name + " size=" + entry.size + " lastUsed=" + new java.util.Date( entry.lastUsed ));
+            boolean deleted = true;
+            for ( File file : entry.files ){
+                deleted &= file.delete() || !file.exists();
+            }
+            if ( deleted ){
+                totalSize -= entry.size;
+                evicted.add( entry.name );
+            }
+        }
+        return evicted;
+    }
+
+    private List<CacheEntry> listEntries(){
+        final Map<String,CacheEntry> entries = new HashMap<>();
+        final File[] files = cacheDir.listFiles();
+        if ( files != null ){
+            for ( File file : files ){
+                final int idx = file.getName().indexOf('.');
+                if ( !file.isFile() || idx < 0 ) continue;
+                final String name = file.getName().substring( 0, idx );
+                // Only files created by the driver
+                if ( !DATABASE_NAME.matcher( name ).matches() ) continue;
+                final CacheEntry entry = entries.computeIfAbsent( name, CacheEntry::new );
+                entry.files.add( file );
+                entry.size += file.length();
+                entry.lastUsed = Math.max( entry.lastUsed, file.lastModified() );
+            }
+        }
+        return new ArrayList<>( entries.values() );
+    }
+
+    /**
+     * H2 locks the database file while the database is open.
+     */
+    private boolean isLocked( CacheEntry entry ){
+        final File mvFile = new File( cacheDir, entry.name + MV_FILE_SUFFIX );
+        if ( !mvFile.exists() ){
+            return false;
+        }
+        try ( FileChannel channel = FileChannel.open( mvFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE )){
+            final FileLock lock = channel.tryLock();
+            if ( lock == null ){
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch ( OverlappingFileLockException ex ){
+            return true;
+        } catch ( IOException ex ){
+            LOGGER.log(Level.INFO, "Cannot check lock of " + mvFile, ex );
+            return true;
+        }
+    }
+}
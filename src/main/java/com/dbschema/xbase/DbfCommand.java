@@ -0,0 +1,26 @@
+package com.dbschema.xbase;
+
+import java.util.regex.Matcher;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * A driver command, like 'save dbf to folder_path', which is executed by the driver instead of H2.
+ * Commands are registered in DbfCommands, and can be executed using Statement, PreparedStatement or CallableStatement.
+ */
+public interface DbfCommand {
+
+    /**
+     * @param matcher the statement matched by the command pattern, used to read the command arguments.
+     */
+    void execute( H2WrappedConnection connection, Matcher matcher ) throws Exception;
+
+    /**
+     * The statement executed in H2 after the command, for example a query returning the command result.
+     * The default empty statement returns no result set.
+     */
+    default String getResultSql(){
+        return "";
+    }
+}
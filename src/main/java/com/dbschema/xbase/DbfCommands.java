@@ -0,0 +1,138 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfIndexAdvisor;
+import com.dbschema.xbase.io.DbfLoadStatus;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * The registry of driver commands. Each executed statement is checked here before it is sent to H2.
+ * The check compares only the first word of the statement with the command keywords, the command pattern is matched
+ * only if the keyword is equal. Usual statements like 'select' cost a few character comparisons.
+ */
+public class DbfCommands {
+
+    private static class Entry {
+        final String keyword;
+        final Pattern pattern;
+        final DbfCommand command;
+
+        Entry( String keyword, Pattern pattern, DbfCommand command ){
+            this.keyword = keyword;
+            this.pattern = pattern;
+            this.command = command;
+        }
+    }
+
+    /**
+     * A statement matched by a command.
+     */
+    static class Match {
+        private final DbfCommand command;
+        private final Matcher matcher;
+
+        Match( DbfCommand command, Matcher matcher ){
+            this.command = command;
+            this.matcher = matcher;
+        }
+
+        void execute( H2WrappedConnection connection ) throws SQLException {
+            try {
+                command.execute( connection, matcher );
+            } catch ( SQLException ex ){
+                throw ex;
+            } catch ( Exception ex ){
+                throw new SQLException( ex.getLocalizedMessage(), ex );
+            }
+        }
+
+        String getResultSql(){
+            return command.getResultSql();
+        }
+    }
+
+    private static final List<Entry> COMMANDS = new CopyOnWriteArrayList<>();
+
+    static {
+        register( "save", "save\\s+dbf\\s+(changes\\s+)?to\\s+(.*)",
+                ( connection, matcher ) -> connection.saveDbf( matcher.group(2), matcher.group(1) != null ));
+        register( "save", "save\\s+dbf\\s+table\\s+(.+?)\\s+to\\s+(.*)",
+                ( connection, matcher ) -> connection.saveDbfTables( matcher.group(1), matcher.group(2) ));
+        register( "save", "save\\s+dbf\\s+query\\s*\\(((?s:.*))\\)\\s*as\\s+(\\S+)\\s+to\\s+(.*)",
+                ( connection, matcher ) -> connection.saveDbfQuery( matcher.group(1), matcher.group(2), matcher.group(3) ));
+        register( "cancel", "cancel\\s+dbf\\s+load\\s*;?\\s*",
+                ( connection, matcher ) -> connection.cancelLoad() );
+        register( "start", "start\\s+dbf\\s+load\\s*;?\\s*",
+                ( connection, matcher ) -> connection.startLoad() );
+        register( "show", "show\\s+dbf\\s+index\\s+advice\\s*;?\\s*", new DbfCommand() {
+            @Override
+            public void execute( H2WrappedConnection connection, Matcher matcher ) throws Exception {
+                connection.adviseIndexes();
+            }
+
+            @Override
+            public String getResultSql(){
+                return DbfIndexAdvisor.getAdviceQuery();
+            }
+        });
+        register( "show", "show\\s+dbf\\s+stats\\s*;?\\s*", new DbfCommand() {
+            @Override
+            public void execute( H2WrappedConnection connection, Matcher matcher ){
+            }
+
+            @Override
+            public String getResultSql(){
+                return DbfLoadStatus.getStatsQuery();
+            }
+        });
+        register( "reload", "reload\\s+dbf\\s+table\\s+(.+?)\\s*;?\\s*",
+                ( connection, matcher ) -> connection.reloadTable( matcher.group(1) ));
+        register( "refresh", "refresh\\s+dbf\\s*;?\\s*",
+                ( connection, matcher ) -> connection.refresh() );
+    }
+
+    /**
+     * Add a command. Commands registered later are checked after the driver commands.
+     * @param keyword the first word of the command.
+     * @param regex matched case-insensitive with the statement, without the leading spaces.
+     */
+    public static void register( String keyword, String regex, DbfCommand command ){
+        if ( keyword == null || keyword.isEmpty() || !regex.regionMatches( true, 0, keyword, 0, keyword.length() )){
+            throw new IllegalArgumentException("The command pattern '" + regex + "' should start with the keyword '" + keyword + "'");
+        }
+        COMMANDS.add( new Entry( keyword, Pattern.compile( regex, Pattern.CASE_INSENSITIVE ), command ));
+    }
+
+    /**
+     * @return the command matching the statement, or null if the statement should be executed by H2.
+     */
+    static Match find( String sql ){
+        if ( sql == null ){
+            return null;
+        }
+        final int length = sql.length();
+        int start = 0;
+        while ( start < length && Character.isWhitespace( sql.charAt( start ))){
+            start++;
+        }
+        for ( Entry entry : COMMANDS ){
+            final int end = start + entry.keyword.length();
+            if ( end < length && Character.isWhitespace( sql.charAt( end )) &&
+                    sql.regionMatches( true, start, entry.keyword, 0, entry.keyword.length() )){
+                final Matcher matcher = entry.pattern.matcher( sql );
+                matcher.region( start, length );
+                if ( matcher.matches() ){
+                    return new Match( entry.command, matcher );
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -1,18 +1,29 @@
 package com.dbschema.xbase;
 
 
+import com.dbschema.xbase.io.DbfFolderWatcher;
+import com.dbschema.xbase.io.DbfIndexAdvisor;
+import com.dbschema.xbase.io.DbfLazyLoader;
+import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.schema.DataTypeUtil;
+import org.h2.engine.Constants;
 import org.h2.jdbc.JdbcConnection;
+import org.h2.store.fs.FileUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,7 +34,7 @@ import java.util.logging.SimpleFormatter;
  * Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
  *
  * When you open a connection, we store transfer all DBF data to a H2 database stored in user.home/.DbSchema/ .
- * We also create a proxy on Statement and intercept 'save dbf to folder_path' statements.
+ * The statements are wrapped by DbfStatement, which intercepts the driver commands like 'save dbf to folder_path', see DbfCommands.
  * The dbf save code can be improved, we are happy for contributions.
  */
 public class DbfJdbcDriver implements Driver {
@@ -31,19 +42,37 @@ public class DbfJdbcDriver implements Driver {
     private static final String PREFIX = "jdbc:dbschema:dbf:";
     private static final String INTERNAL_H2_LOCATION = ".DbSchema/jdbc-dbf-cache/";
 
+    public static final String PARAM_CHARSET = "charset";
+    public static final String PARAM_IMPORT_BATCH = "importBatch";
+    public static final String PARAM_IMPORT_THREADS = "importThreads";
+    public static final String PARAM_EXPORT_THREADS = "exportThreads";
+    public static final String PARAM_LOAD = "load";
+    public static final String LOAD_EAGER = "eager", LOAD_LAZY = "lazy", LOAD_ASYNC = "async", LOAD_DIRECT = "direct";
+    public static final String PARAM_CACHE = "cache";
+    public static final String CACHE_FILE = "file", CACHE_MEMORY = "memory";
+    public static final String PARAM_CACHE_SIZE = "cacheSize";
+    public static final String PARAM_CACHE_COMPRESS = "cacheCompress";
+    public static final String PARAM_CACHE_DIR = "cacheDir";
+    public static final String PARAM_CACHE_MAX_SIZE = "cacheMaxSize";
+    public static final String PARAM_CACHE_MAX_AGE = "cacheMaxAge";
+    public static final String PARAM_INDEX_ADVISOR = "indexAdvisor";
+    public static final String PARAM_INDEX_ADVISOR_TIME = "indexAdvisorTime";
+    public static final String PARAM_WATCH = "watch";
+    public static final String PARAM_WATCH_DELAY = "watchDelay";
+    public static final String PARAM_TYPES = "types";
+    private static final String[] PARAMS = new String[]{ PARAM_CHARSET, PARAM_IMPORT_BATCH, PARAM_IMPORT_THREADS, PARAM_EXPORT_THREADS, PARAM_LOAD,
+            PARAM_CACHE, PARAM_CACHE_SIZE, PARAM_CACHE_COMPRESS, PARAM_CACHE_DIR, PARAM_CACHE_MAX_SIZE, PARAM_CACHE_MAX_AGE,
+            PARAM_INDEX_ADVISOR, PARAM_INDEX_ADVISOR_TIME, PARAM_WATCH, PARAM_WATCH_DELAY, PARAM_TYPES };
+
     public static final Logger LOGGER = Logger.getLogger( DbfJdbcDriver.class.getName() );
+    private static final DbfMetricsCollector METRICS = new DbfMetricsCollector();
 
     static {
+        METRICS.register();
         try {
             DriverManager.registerDriver( new DbfJdbcDriver());
-
-                LOGGER.setLevel(Level.SEVERE);
-                final ConsoleHandler consoleHandler = new ConsoleHandler();
-                consoleHandler.setLevel(Level.FINEST);
-                consoleHandler.setFormatter(new SimpleFormatter());
-
-                LOGGER.setLevel(Level.FINEST);
-                LOGGER.addHandler(consoleHandler);
+            // INFO logging is activated using the 'log' URL parameter
+            LOGGER.setLevel(Level.WARNING);
         } catch ( SQLException ex ){
             ex.printStackTrace();
         }
@@ -52,7 +81,10 @@ public class DbfJdbcDriver implements Driver {
     @Override
     public Connection connect( String url, Properties info ) throws SQLException {
         if ( acceptsURL(PREFIX)) {
-            String defaultCharset = null;
+            final Properties properties = new Properties();
+            if ( info != null ){
+                properties.putAll( info );
+            }
             String path = url.substring(PREFIX.length());
             int idxQuestionMark = path.indexOf('?');
             if ( idxQuestionMark > 0 ){
@@ -66,22 +98,51 @@ public class DbfJdbcDriver implements Driver {
                             ConsoleHandler handler = new ConsoleHandler();
                             handler.setFormatter( new SimpleFormatter());
                             LOGGER.addHandler(handler);
-                        } else if ( "charset".equalsIgnoreCase( pair[0]) ) {
-                            defaultCharset = pair[1];
+                        } else {
+                            properties.setProperty( getParamName( pair[0] ), pair[1] );
                         }
                     }
                 }
             }
-            return getConnection( path, defaultCharset );
+            return getConnection( path, properties );
         } else {
             throw new SQLException("Incorrect URL. Expected jdbc:dbschema:dbf:<folderPath>");
         }
     }
 
-    private List<String> h2Databases = new ArrayList<>();
+    private static String getParamName( String name ){
+        for ( String param : PARAMS ){
+            if ( param.equalsIgnoreCase( name )) return param;
+        }
+        return name;
+    }
+
+    /**
+     * The import, export, cache and statement metrics, also visible in JMX. Use addListener() to forward them.
+     */
+    public static DbfMetricsCollector getMetrics(){
+        return METRICS;
+    }
+
+    static int getIntProperty( Properties properties, String name, int defaultValue ) throws SQLException {
+        final String value = properties.getProperty( name );
+        if ( value == null || value.trim().isEmpty() ){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt( value.trim() );
+        } catch ( NumberFormatException ex ){
+            throw new SQLException("Invalid value for parameter '" + name + "': '" + value + "'. Expected a number.");
+        }
+    }
+
+    private final DbfLoadCoordinator loadCoordinator = new DbfLoadCoordinator();
+    private final Map<String,DbfFolderWatcher> watchers = new HashMap<>();
+    private final Map<String,ReadWriteLock> swapLocks = new HashMap<>();
+    private final Map<String,Integer> openDatabaseConnections = new HashMap<>();
 
 
-    private Connection getConnection( String databasePath, String defaultCharset ) throws SQLException {
+    private Connection getConnection( String databasePath, Properties properties ) throws SQLException {
         final File folder = new File(databasePath);
         if (!folder.exists()) {
             throw new SQLException("Folder does not exists: '" + folder + "'");
@@ -89,28 +150,189 @@ public class DbfJdbcDriver implements Driver {
         if (!folder.isDirectory()) {
             throw new SQLException("Expected path is not folder: '" + folder + "'");
         }
-        final String h2DbName = md5Java( databasePath );
-        final URI h2DatabasePath = getInternalH2DatabasePath( h2DbName );
-        final String h2JdbcUrl = "jdbc:h2:file:" + h2DatabasePath.toASCIIString() + ";database_to_upper=false";
-        LOGGER.log(Level.INFO, "Create H2 database '" + h2JdbcUrl + "'");
-
-        final JdbcConnection h2Connection = (JdbcConnection) (new org.h2.Driver().connect( h2JdbcUrl, new Properties() ));
-        final H2WrappedConnection wrappedConnection = new H2WrappedConnection( h2Connection, defaultCharset);
-        if ( !h2Databases.contains( h2DbName )){
-            wrappedConnection.transferFolder(folder, folder, h2Connection);
-            h2Databases.add(h2DbName);
+        final String cache = properties.getProperty( PARAM_CACHE, CACHE_FILE );
+        final boolean inMemory = CACHE_MEMORY.equalsIgnoreCase( cache );
+        if ( !inMemory && !CACHE_FILE.equalsIgnoreCase( cache )){
+            throw new SQLException("Invalid value for parameter '" + PARAM_CACHE + "': '" + cache + "'. Expected file or memory.");
+        }
+        final String types = properties.getProperty( PARAM_TYPES, DataTypeUtil.TYPES_STANDARD );
+        if ( !DataTypeUtil.isValidTypes( types )){
+            throw new SQLException("Invalid value for parameter '" + PARAM_TYPES + "': '" + types + "'. Expected standard, compact or double.");
+        }
+        // Each types mapping has its own cache database, so all tables of a database use the same column types
+        final String h2DbName = DataTypeUtil.TYPES_STANDARD.equalsIgnoreCase( types ) ? md5Java( databasePath ) : md5Java( databasePath ) + "_" + types.toLowerCase();
+        final String h2Database;
+        final DbfCacheManager cacheManager;
+        if ( inMemory ){
+            // Compressed in-memory pages use the MVStore page cache, like a file database
+            h2Database = ( Boolean.parseBoolean( properties.getProperty( PARAM_CACHE_COMPRESS )) ? "nioMemLZF:" : "mem:" ) + "dbf_" + h2DbName;
+            cacheManager = null;
+        } else {
+            final File cacheDir = getCacheDir( properties );
+            h2Database = "file:" + cacheDir.toURI().resolve( h2DbName ).toASCIIString();
+            cacheManager = new DbfCacheManager( cacheDir );
+        }
+        final StringBuilder h2JdbcUrl = new StringBuilder("jdbc:h2:").append( h2Database ).append(";database_to_upper=false");
+        if ( inMemory ){
+            h2JdbcUrl.append(";DB_CLOSE_DELAY=-1");
+        }
+        final int cacheSize = getIntProperty( properties, PARAM_CACHE_SIZE, 0 );
+        if ( cacheSize > 0 ){
+            h2JdbcUrl.append(";CACHE_SIZE=").append( cacheSize );
+        }
+        // Retained before the cache eviction, so neither this connection nor a concurrent one evicts the database being opened
+        retainDatabase( h2Database );
+        final JdbcConnection h2Connection;
+        final H2WrappedConnection wrappedConnection;
+        try {
+            if ( cacheManager != null ){
+                cacheManager.touch( h2DbName );
+                evictCache( cacheManager, properties );
+            }
+            LOGGER.log(Level.INFO, "Create H2 database '" + h2JdbcUrl + "'");
+            h2Connection = (JdbcConnection) (new org.h2.Driver().connect( h2JdbcUrl.toString(), new Properties() ));
+            wrappedConnection = new H2WrappedConnection( h2Connection, h2JdbcUrl.toString(), folder, properties );
+        } catch ( SQLException | RuntimeException ex ){
+            releaseDatabase( h2Database );
+            throw ex;
+        }
+        wrappedConnection.setCloseHook( () -> {
+            if ( releaseDatabase( h2Database ) && inMemory ){
+                dropMemoryDatabase( h2Database, h2Connection );
+            }
+            if ( cacheManager != null ){
+                cacheManager.touch( h2DbName );
+            }
+        });
+        try {
+            // Connections opened at the same time wait for the first one to load the folder
+            final AtomicBoolean loaded = new AtomicBoolean();
+            wrappedConnection.setLazyLoader( loadCoordinator.load( h2Database, () -> {
+                loaded.set( true );
+                return wrappedConnection.transferFolder();
+            }));
+            METRICS.folderOpened( folder.getAbsolutePath(), !loaded.get() );
+            if ( Boolean.parseBoolean( properties.getProperty( PARAM_WATCH ))){
+                startWatcher( h2Database, folder, h2JdbcUrl.toString(), properties );
+            }
+            wrappedConnection.setSwapLock( getSwapLock( h2Database ));
+        } catch ( SQLException | RuntimeException ex ){
+            wrappedConnection.close();
+            throw ex;
         }
         return wrappedConnection;
     }
 
+    /**
+     * One watcher for each H2 database, started by the first connection with watch=true.
+     * Tables with load=direct read the DBF files directly, so they need no watcher.
+     */
+    private synchronized void startWatcher( String h2Database, File folder, String h2JdbcUrl, Properties properties ) throws SQLException {
+        if ( watchers.containsKey( h2Database ) || LOAD_DIRECT.equalsIgnoreCase( properties.getProperty( PARAM_LOAD ))){
+            return;
+        }
+        try {
+            final DbfFolderWatcher watcher = new DbfFolderWatcher( folder, h2JdbcUrl,
+                    getIntProperty( properties, PARAM_IMPORT_BATCH, DbfLoaderInH2.DEFAULT_COMMIT_INTERVAL ), getSwapLock( h2Database ),
+                    getIntProperty( properties, PARAM_WATCH_DELAY, DbfFolderWatcher.DEFAULT_DELAY ));
+            watcher.setLazyLoader( loadCoordinator.getLazyLoader( h2Database ));
+            watcher.setTypes( properties.getProperty( PARAM_TYPES, DataTypeUtil.TYPES_STANDARD ));
+            watcher.start();
+            watchers.put( h2Database, watcher );
+            LOGGER.log(Level.INFO, "Watch folder '" + folder + "'");
+        } catch ( IOException ex ){
+            throw new SQLException( "Cannot watch folder '" + folder + "': " + ex.getLocalizedMessage(), ex );
+        }
+    }
+
+    /**
+     * One lock for each H2 database. Statements hold the read lock, the tables are replaced by the folder watcher
+     * or by 'reload dbf table' holding the write lock.
+     */
+    private synchronized ReadWriteLock getSwapLock( String h2Database ){
+        return swapLocks.computeIfAbsent( h2Database, k -> new ReentrantReadWriteLock() );
+    }
+
+    private synchronized void stopWatcher( String h2Database ){
+        final DbfFolderWatcher watcher = watchers.remove( h2Database );
+        if ( watcher != null ){
+            watcher.close();
+        }
+    }
+
+    private synchronized void retainDatabase( String h2Database ){
+        openDatabaseConnections.merge( h2Database, 1, Integer::sum );
+    }
+
+    /**
+     * @return true if this was the last connection to the database.
+     */
+    private synchronized boolean releaseDatabase( String h2Database ){
+        final int connections = openDatabaseConnections.merge( h2Database, -1, Integer::sum );
+        if ( connections > 0 ){
+            return false;
+        }
+        openDatabaseConnections.remove( h2Database );
+        return true;
+    }
+
+    /**
+     * When the last connection to an in-memory database is closed, we drop the database.
+     */
+    private synchronized void dropMemoryDatabase( String h2Database, Connection h2Connection ){
+        if ( openDatabaseConnections.containsKey( h2Database )){
+            return;
+        }
+        stopWatcher( h2Database );
+        final DbfLazyLoader lazyLoader = loadCoordinator.getLazyLoader( h2Database );
+        if ( lazyLoader != null ){
+            // Stop the load=async background thread before the shutdown
+            lazyLoader.close();
+        }
+        loadCoordinator.forget( h2Database );
+        swapLocks.remove( h2Database );
+        LOGGER.log(Level.INFO, "Release in-memory H2 database '" + h2Database + "'");
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute("SHUTDOWN");
+            // The compressed in-memory file system keeps the database file after shutdown
+            if ( h2Database.startsWith("nioMemLZF:") ){
+                FileUtils.delete( h2Database + Constants.SUFFIX_MV_FILE );
+            }
+        } catch ( SQLException ex ){
+            LOGGER.log(Level.WARNING, "Error releasing in-memory H2 database '" + h2Database + "'", ex );
+        }
+    }
+
+    /**
+     * Drop the least recently used H2 databases from the cache folder, if cacheMaxSize or cacheMaxAge are set.
+     * Databases open or being opened in this JVM are kept.
+     */
+    private synchronized void evictCache( DbfCacheManager cacheManager, Properties properties ) throws SQLException {
+        final int maxSizeMB = getIntProperty( properties, PARAM_CACHE_MAX_SIZE, 0 );
+        final int maxAgeHours = getIntProperty( properties, PARAM_CACHE_MAX_AGE, 0 );
+        final List<String> openDatabases = new ArrayList<>();
+        for ( String h2Database : openDatabaseConnections.keySet() ){
+            openDatabases.add( h2Database.substring( h2Database.lastIndexOf('/') + 1 ));
+        }
+        for ( String evicted : cacheManager.evict( maxSizeMB, maxAgeHours, openDatabases )){
+            loadCoordinator.forgetIf( h2Database -> h2Database.startsWith("file:") && h2Database.endsWith( "/" + evicted ));
+            swapLocks.keySet().removeIf( h2Database -> h2Database.startsWith("file:") && h2Database.endsWith( "/" + evicted ));
+            for ( String h2Database : new ArrayList<>( watchers.keySet() )){
+                if ( h2Database.startsWith("file:") && h2Database.endsWith( "/" + evicted )){
+                    stopWatcher( h2Database );
+                }
+            }
+        }
+    }
 
-    private URI getInternalH2DatabasePath(String path ){
-        final URI h2Home = new File( System.getProperty("user.home")).toURI().resolve(INTERNAL_H2_LOCATION);
-        final File h2File = new File(h2Home);
+    private File getCacheDir( Properties properties ){
+        final String cacheDir = properties.getProperty( PARAM_CACHE_DIR );
+        final File h2File = cacheDir != null && !cacheDir.trim().isEmpty() ? new File( cacheDir.trim() ) :
+                new File( new File( System.getProperty("user.home")).toURI().resolve(INTERNAL_H2_LOCATION) );
         if ( !h2File.exists()) {
             h2File.mkdirs();
         }
-        return h2Home.resolve( path );
+        return h2File;
     }
 
     @Override
@@ -131,8 +353,24 @@ public class DbfJdbcDriver implements Driver {
 
     @Override
     public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
-        DriverPropertyInfo[] result = new DriverPropertyInfo[1];
+        DriverPropertyInfo[] result = new DriverPropertyInfo[17];
         result[0] = new ExtendedDriverPropertyInfo("log", "true", new String[]{"true", "false"}, "Activate driver INFO logging");
+        result[1] = new ExtendedDriverPropertyInfo(PARAM_CHARSET, null, null, "Charset used to read and write DBF files, if not specified in the DBF header");
+        result[2] = new ExtendedDriverPropertyInfo(PARAM_IMPORT_BATCH, String.valueOf(DbfLoaderInH2.DEFAULT_COMMIT_INTERVAL), null, "Number of records imported in H2 between two commits");
+        result[3] = new ExtendedDriverPropertyInfo(PARAM_IMPORT_THREADS, "1", null, "Number of DBF files imported in parallel. 0 uses one thread for each CPU core");
+        result[4] = new ExtendedDriverPropertyInfo(PARAM_EXPORT_THREADS, "0", null, "Number of tables saved in parallel by 'save dbf to'. 0 uses one thread for each CPU core");
+        result[5] = new ExtendedDriverPropertyInfo(PARAM_LOAD, LOAD_EAGER, new String[]{LOAD_EAGER, LOAD_LAZY, LOAD_ASYNC, LOAD_DIRECT}, "Load all DBF files on connect (eager), each table when a statement uses it first time (lazy), in background after connect (async), or read the DBF files directly without loading them (direct)");
+        result[6] = new ExtendedDriverPropertyInfo(PARAM_CACHE, CACHE_FILE, new String[]{CACHE_FILE, CACHE_MEMORY}, "Store the H2 database in user.home/.DbSchema (file), or in memory, shared by the connections to the same folder and dropped when the last connection is closed (memory)");
+        result[7] = new ExtendedDriverPropertyInfo(PARAM_CACHE_SIZE, null, null, "H2 page cache size in KB");
+        result[8] = new ExtendedDriverPropertyInfo(PARAM_CACHE_COMPRESS, "false", new String[]{"true", "false"}, "With cache=memory, keep the in-memory pages LZF compressed");
+        result[9] = new ExtendedDriverPropertyInfo(PARAM_CACHE_DIR, null, null, "Folder of the H2 cache databases. Default user.home/.DbSchema/jdbc-dbf-cache");
+        result[10] = new ExtendedDriverPropertyInfo(PARAM_CACHE_MAX_SIZE, "0", null, "Maximum size in MB of the cache folder. The least recently used databases are dropped. 0 for no limit");
+        result[11] = new ExtendedDriverPropertyInfo(PARAM_CACHE_MAX_AGE, "0", null, "Drop the cache databases not used since this number of hours. 0 for no limit");
+        result[12] = new ExtendedDriverPropertyInfo(PARAM_INDEX_ADVISOR, DbfIndexAdvisor.ADVISOR_OFF, new String[]{DbfIndexAdvisor.ADVISOR_OFF, DbfIndexAdvisor.ADVISOR_ADVICE, DbfIndexAdvisor.ADVISOR_AUTO}, "Collect H2 query statistics and suggest indexes for slow statements with 'show dbf index advice' (advice), or also create the indexes (auto)");
+        result[13] = new ExtendedDriverPropertyInfo(PARAM_INDEX_ADVISOR_TIME, String.valueOf(DbfIndexAdvisor.DEFAULT_MIN_TIME), null, "Minimum average execution time in milliseconds of the statements analyzed by the index advisor");
+        result[14] = new ExtendedDriverPropertyInfo(PARAM_WATCH, "false", new String[]{"true", "false"}, "Watch the DBF folder and reload the changed DBF files in the background");
+        result[15] = new ExtendedDriverPropertyInfo(PARAM_WATCH_DELAY, String.valueOf(DbfFolderWatcher.DEFAULT_DELAY), null, "With watch=true, milliseconds without changes before a changed DBF file is reloaded");
+        result[16] = new ExtendedDriverPropertyInfo(PARAM_TYPES, DataTypeUtil.TYPES_STANDARD, new String[]{DataTypeUtil.TYPES_STANDARD, DataTypeUtil.TYPES_COMPACT, DataTypeUtil.TYPES_DOUBLE}, "Store NUMERIC fields as decimal and CHARACTER fields as char (standard), NUMERIC fields without decimals as int or bigint and CHARACTER fields as varchar (compact), or also NUMERIC fields with decimals up to 15 characters as double (double)");
         return result;
     }
 
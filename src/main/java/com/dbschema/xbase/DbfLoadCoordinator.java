@@ -0,0 +1,108 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfLazyLoader;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Make sure each DBF folder is loaded in its H2 database only once, also when many connections are opened at the same time.
+ * The first caller loads the folder, the concurrent callers wait for it and get the same result, or the same failure.
+ * After a failure or a cancel, the next caller loads the folder again.
+ */
+class DbfLoadCoordinator {
+
+    interface FolderLoad {
+        /**
+         * @return the lazy loader of the database, or null.
+         */
+        DbfLazyLoader load() throws SQLException;
+    }
+
+    private final Map<String,CompletableFuture<DbfLazyLoader>> loads = new HashMap<>();
+
+    /**
+     * Load the folder in the H2 database, if it was not loaded yet, or wait for the load started by another connection.
+     * @return the lazy loader of the database, or null.
+     */
+    DbfLazyLoader load( String h2Database, FolderLoad folderLoad ) throws SQLException {
+        final CompletableFuture<DbfLazyLoader> future;
+        final boolean owner;
+        synchronized ( this ){
+            final CompletableFuture<DbfLazyLoader> running = loads.get( h2Database );
+            owner = running == null;
+            future = owner ? new CompletableFuture<>() : running;
+            if ( owner ){
+                loads.put( h2Database, future );
+            }
+        }
+        if ( owner ){
+            try {
+                final DbfLazyLoader lazyLoader = folderLoad.load();
+                future.complete( lazyLoader );
+                return lazyLoader;
+            } catch ( Throwable ex ){
+                remove( h2Database, future );
+                future.completeExceptionally( ex );
+                throw ex;
+            }
+        }
+        LOGGER.log(Level.INFO, "Wait for another connection loading '" + h2Database + "'");
+        try {
+            return future.get();
+        } catch ( InterruptedException ex ){
+            Thread.currentThread().interrupt();
+            throw new SQLException( "Interrupted while waiting for another connection to load the DBF folder", ex );
+        } catch ( CancellationException ex ){
+            throw new SQLException( "Loading the DBF folder was cancelled", ex );
+        } catch ( ExecutionException ex ){
+            final Throwable cause = ex.getCause();
+            throw new SQLException( "Loading the DBF folder failed in another connection: " +
+                    ( cause.getLocalizedMessage() != null ? cause.getLocalizedMessage() : cause.toString() ), cause );
+        }
+    }
+
+    /**
+     * @return the lazy loader of a loaded database, or null.
+     */
+    synchronized DbfLazyLoader getLazyLoader( String h2Database ){
+        final CompletableFuture<DbfLazyLoader> future = loads.get( h2Database );
+        return future != null && future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+    }
+
+    /**
+     * The database has to be loaded again by the next connection. Callers waiting for a running load get a cancel error.
+     */
+    synchronized void forget( String h2Database ){
+        final CompletableFuture<DbfLazyLoader> future = loads.remove( h2Database );
+        if ( future != null ){
+            future.cancel( false );
+        }
+    }
+
+    synchronized void forgetIf( Predicate<String> h2DatabaseFilter ){
+        for ( Iterator<Map.Entry<String,CompletableFuture<DbfLazyLoader>>> it = loads.entrySet().iterator(); it.hasNext(); ){
+            final Map.Entry<String,CompletableFuture<DbfLazyLoader>> entry = it.next();
+            if ( h2DatabaseFilter.test( entry.getKey() )){
+                it.remove();
+                entry.getValue().cancel( false );
+            }
+        }
+    }
+
+    private synchronized void remove( String h2Database, CompletableFuture<DbfLazyLoader> future ){
+        loads.remove( h2Database, future );
+    }
+}
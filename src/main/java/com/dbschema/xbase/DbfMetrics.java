@@ -0,0 +1,49 @@
+package com.dbschema.xbase;
+
+import java.io.File;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Receive the driver metrics, for example to forward them to a monitoring library.
+ * Register it with DbfJdbcDriver.getMetrics().addListener(). The driver collects the same metrics in the DbfMetricsCollector,
+ * visible in JMX as com.dbschema.xbase:type=DbfMetrics.
+ * The methods are called in the threads doing the work, they should return fast.
+ */
+public interface DbfMetrics {
+
+    /**
+     * A DBF file was loaded in H2. Also called for lazy loads, reloads and appended records.
+     * @param bytes bytes of the DBF file which were read.
+     */
+    default void tableImported( String tableName, File file, long records, long bytes, long nanos ){
+    }
+
+    /**
+     * A table was written as DBF file by 'save dbf to'.
+     */
+    default void tableExported( String tableName, File file, long records, long bytes, long nanos ){
+    }
+
+    /**
+     * A connection was opened.
+     * @param cacheHit true if the folder was already loaded in this JVM, false if this connection loaded it.
+     */
+    default void folderOpened( String folder, boolean cacheHit ){
+    }
+
+    /**
+     * A folder was loaded, and the table was checked against the H2 cache database.
+     * @param cacheHit true if the table was reused from the cache, false if the DBF file had to be loaded.
+     */
+    default void tableCacheChecked( String tableName, boolean cacheHit ){
+    }
+
+    /**
+     * A Statement was executed. The time includes loading the tables used by the statement, with load=lazy or load=async.
+     * @param kind the first keyword of the statement, like 'select', 'insert' or 'save', or 'batch' for executeBatch().
+     */
+    default void statementExecuted( String kind, long nanos, boolean failed ){
+    }
+}
@@ -0,0 +1,389 @@
+package com.dbschema.xbase;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Collect the driver metrics in memory and show them in JMX as com.dbschema.xbase:type=DbfMetrics.
+ * The metrics are also forwarded to the registered DbfMetrics listeners.
+ * Statement latencies are counted in fixed buckets with microsecond limits, so recording a statement costs a few atomic additions.
+ */
+public class DbfMetricsCollector implements DbfMetrics, DbfMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.dbschema.xbase:type=DbfMetrics";
+    // Microseconds, log-spaced from 1us, as statements answered from the H2 cache take a few microseconds
+    private static final long[] BUCKET_LIMITS_US = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000, 30000000, 60000000 };
+    private static final String[] STATEMENT_KINDS = {
+            "select", "with", "insert", "update", "delete", "merge", "create", "drop", "alter", "truncate", "call", "explain", "show", "set",
+            "save", "cancel", "start", "reload", "refresh" };
+    public static final String OTHER_KIND = "other", BATCH_KIND = "batch";
+
+    private final Map<String,TableTransfer> imports = new ConcurrentHashMap<>();
+    private final Map<String,TableTransfer> exports = new ConcurrentHashMap<>();
+    private final Map<String,LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder folderCacheHits = new LongAdder(), folderCacheMisses = new LongAdder();
+    private final LongAdder tableCacheHits = new LongAdder(), tableCacheMisses = new LongAdder();
+    private final List<DbfMetrics> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Register in the platform MBean server. Fails if the driver is loaded more times in the same JVM, by different class loaders.
+     */
+    void register(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName( OBJECT_NAME ));
+        } catch ( JMException | SecurityException ex ){
+            LOGGER.log(Level.INFO, "Cannot register MBean " + OBJECT_NAME + ": " + ex );
+        }
+    }
+
+    public void addListener( DbfMetrics listener ){
+        listeners.add( listener );
+    }
+
+    public void removeListener( DbfMetrics listener ){
+        listeners.remove( listener );
+    }
+
+    @Override
+    public void tableImported( String tableName, File file, long records, long bytes, long nanos ){
+        imports.merge( file.getAbsolutePath(), new TableTransfer( tableName, file.getAbsolutePath(), records, bytes, nanos ), TableTransfer::add );
+        for ( DbfMetrics listener : listeners ){
+            listener.tableImported( tableName, file, records, bytes, nanos );
+        }
+    }
+
+    @Override
+    public void tableExported( String tableName, File file, long records, long bytes, long nanos ){
+        exports.merge( file.getAbsolutePath(), new TableTransfer( tableName, file.getAbsolutePath(), records, bytes, nanos ), TableTransfer::add );
+        for ( DbfMetrics listener : listeners ){
+            listener.tableExported( tableName, file, records, bytes, nanos );
+        }
+    }
+
+    @Override
+    public void folderOpened( String folder, boolean cacheHit ){
+        ( cacheHit ? folderCacheHits : folderCacheMisses ).increment();
+        for ( DbfMetrics listener : listeners ){
+            listener.folderOpened( folder, cacheHit );
+        }
+    }
+
+    @Override
+    public void tableCacheChecked( String tableName, boolean cacheHit ){
+        ( cacheHit ? tableCacheHits : tableCacheMisses ).increment();
+        for ( DbfMetrics listener : listeners ){
+            listener.tableCacheChecked( tableName, cacheHit );
+        }
+    }
+
+    @Override
+    public void statementExecuted( String kind, long nanos, boolean failed ){
+        latencies.computeIfAbsent( kind, LatencyHistogram::new ).record( nanos, failed );
+        for ( DbfMetrics listener : listeners ){
+            listener.statementExecuted( kind, nanos, failed );
+        }
+    }
+
+    /**
+     * @return the first keyword of the SQL, if it is a known statement kind, otherwise 'other'. The number of kinds stays small.
+     * The driver commands are 'save', 'show', 'cancel', 'start', 'reload' and 'refresh'.
+     * Called for each executed statement, so the keyword is compared in place, without copying the SQL.
+     */
+    public static String getStatementKind( String sql ){
+        if ( sql == null ){
+            return OTHER_KIND;
+        }
+        int start = 0;
+        while ( start < sql.length() && ( Character.isWhitespace( sql.charAt( start )) || sql.charAt( start ) == '(' )){
+            start++;
+        }
+        int end = start;
+        while ( end < sql.length() && Character.isLetter( sql.charAt( end ))){
+            end++;
+        }
+        for ( String kind : STATEMENT_KINDS ){
+            if ( kind.length() == end - start && sql.regionMatches( true, start, kind, 0, kind.length() )){
+                return kind;
+            }
+        }
+        return OTHER_KIND;
+    }
+
+    @Override
+    public List<TableTransfer> getImports(){
+        return new ArrayList<>( imports.values() );
+    }
+
+    @Override
+    public List<TableTransfer> getExports(){
+        return new ArrayList<>( exports.values() );
+    }
+
+    @Override
+    public long getFolderCacheHits(){
+        return folderCacheHits.sum();
+    }
+
+    @Override
+    public long getFolderCacheMisses(){
+        return folderCacheMisses.sum();
+    }
+
+    @Override
+    public long getTableCacheHits(){
+        return tableCacheHits.sum();
+    }
+
+    @Override
+    public long getTableCacheMisses(){
+        return tableCacheMisses.sum();
+    }
+
+    @Override
+    public List<StatementLatency> getStatementLatencies(){
+        final List<StatementLatency> list = new ArrayList<>();
+        for ( LatencyHistogram histogram : latencies.values() ){
+            list.add( histogram.snapshot() );
+        }
+        return list;
+    }
+
+    @Override
+    public long[] getLatencyBucketLimitsUs(){
+        return BUCKET_LIMITS_US.clone();
+    }
+
+    @Override
+    public void reset(){
+        imports.clear();
+        exports.clear();
+        latencies.clear();
+        folderCacheHits.reset();
+        folderCacheMisses.reset();
+        tableCacheHits.reset();
+        tableCacheMisses.reset();
+    }
+
+    /**
+     * The last transfer of a table, and the totals of all transfers.
+     */
+    public static class TableTransfer {
+        private final String tableName;
+        private final String file;
+        private final long count;
+        private final long lastRecords, lastBytes, lastNanos;
+        private final long totalRecords, totalBytes, totalNanos;
+
+        TableTransfer( String tableName, String file, long records, long bytes, long nanos ){
+            this( tableName, file, 1, records, bytes, nanos, records, bytes, nanos );
+        }
+
+        private TableTransfer( String tableName, String file, long count, long lastRecords, long lastBytes, long lastNanos,
+                               long totalRecords, long totalBytes, long totalNanos ){
+            this.tableName = tableName;
+            this.file = file;
+            this.count = count;
+            this.lastRecords = lastRecords;
+            this.lastBytes = lastBytes;
+            this.lastNanos = lastNanos;
+            this.totalRecords = totalRecords;
+            this.totalBytes = totalBytes;
+            this.totalNanos = totalNanos;
+        }
+
+        static TableTransfer add( TableTransfer previous, TableTransfer last ){
+            return new TableTransfer( last.tableName, last.file, previous.count + 1, last.lastRecords, last.lastBytes, last.lastNanos,
+                    previous.totalRecords + last.lastRecords, previous.totalBytes + last.lastBytes, previous.totalNanos + last.lastNanos );
+        }
+
+        public String getTableName(){
+            return tableName;
+        }
+
+        public String getFile(){
+            return file;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getLastRecords(){
+            return lastRecords;
+        }
+
+        public long getLastBytes(){
+            return lastBytes;
+        }
+
+        public long getLastDurationMs(){
+            return TimeUnit.NANOSECONDS.toMillis( lastNanos );
+        }
+
+        public long getLastRecordsPerSecond(){
+            return lastNanos > 0 ? lastRecords * 1000000000L / lastNanos : 0;
+        }
+
+        public long getLastBytesPerSecond(){
+            return lastNanos > 0 ? (long)( lastBytes * 1e9 / lastNanos ) : 0;
+        }
+
+        public long getTotalRecords(){
+            return totalRecords;
+        }
+
+        public long getTotalBytes(){
+            return totalBytes;
+        }
+
+        public long getTotalDurationMs(){
+            return TimeUnit.NANOSECONDS.toMillis( totalNanos );
+        }
+
+        @Override
+        public String toString(){
+            return tableName + " records=" + lastRecords + " bytes=" + lastBytes + " ms=" + getLastDurationMs() + " records/s=" + getLastRecordsPerSecond();
+        }
+    }
+
+    /**
+     * Snapshot of the latency histogram of a statement kind.
+     */
+    public static class StatementLatency {
+        private final String kind;
+        private final long count, failed, totalNanos, maxNanos;
+        private final long[] buckets;
+
+        StatementLatency( String kind, long count, long failed, long totalNanos, long maxNanos, long[] buckets ){
+            this.kind = kind;
+            this.count = count;
+            this.failed = failed;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public String getKind(){
+            return kind;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getFailed(){
+            return failed;
+        }
+
+        public long getTotalMs(){
+            return TimeUnit.NANOSECONDS.toMillis( totalNanos );
+        }
+
+        public long getMaxMs(){
+            return TimeUnit.NANOSECONDS.toMillis( maxNanos );
+        }
+
+        public long getMaxUs(){
+            return TimeUnit.NANOSECONDS.toMicros( maxNanos );
+        }
+
+        public double getMeanMs(){
+            return count > 0 ? totalNanos / 1e6 / count : 0;
+        }
+
+        public long getP50Us(){
+            return getPercentileUs( 0.50 );
+        }
+
+        public long getP95Us(){
+            return getPercentileUs( 0.95 );
+        }
+
+        public long getP99Us(){
+            return getPercentileUs( 0.99 );
+        }
+
+        /**
+         * Number of statements in each bucket, see getLatencyBucketLimitsUs().
+         */
+        public long[] getBuckets(){
+            return buckets.clone();
+        }
+
+        /**
+         * @return the upper limit of the bucket holding the percentile. For the last bucket, the max latency.
+         */
+        private long getPercentileUs( double percentile ){
+            final long rank = (long)Math.ceil( count * percentile );
+            long cumulated = 0;
+            for ( int i = 0; i < BUCKET_LIMITS_US.length; i++ ){
+                cumulated += buckets[i];
+                if ( cumulated >= rank ){
+                    return Math.min( BUCKET_LIMITS_US[i], getMaxUs() );
+                }
+            }
+            return getMaxUs();
+        }
+
+        @Override
+        public String toString(){
+            return kind + " count=" + count + " mean=" + String.format( Locale.ROOT, "%.3f", getMeanMs()) + "ms p95<=" +
+                    String.format( Locale.ROOT, "%.3f", getP95Us() / 1000.0 ) + "ms max=" + String.format( Locale.ROOT, "%.3f", getMaxUs() / 1000.0 ) + "ms";
+        }
+    }
+
+    private static class LatencyHistogram {
+        final String kind;
+        final LongAdder[] buckets = new LongAdder[ BUCKET_LIMITS_US.length + 1 ];
+        final LongAdder count = new LongAdder(), failed = new LongAdder(), totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        LatencyHistogram( String kind ){
+            this.kind = kind;
+            for ( int i = 0; i < buckets.length; i++ ){
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record( long nanos, boolean isFailed ){
+            final long micros = TimeUnit.NANOSECONDS.toMicros( nanos );
+            int bucket = 0;
+            while ( bucket < BUCKET_LIMITS_US.length && micros >= BUCKET_LIMITS_US[bucket] ){
+                bucket++;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add( nanos );
+            if ( isFailed ){
+                failed.increment();
+            }
+            maxNanos.accumulateAndGet( nanos, Math::max );
+        }
+
+        StatementLatency snapshot(){
+            final long[] values = new long[ buckets.length ];
+            for ( int i = 0; i < buckets.length; i++ ){
+                values[i] = buckets[i].sum();
+            }
+            return new StatementLatency( kind, count.sum(), failed.sum(), totalNanos.sum(), maxNanos.get(), values );
+        }
+    }
+}
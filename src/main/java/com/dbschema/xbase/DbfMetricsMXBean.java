@@ -0,0 +1,42 @@
+package com.dbschema.xbase;
+
+import java.util.List;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * The metrics visible in JMX as com.dbschema.xbase:type=DbfMetrics.
+ */
+public interface DbfMetricsMXBean {
+
+    /**
+     * Imports of each DBF file: the last one and the totals.
+     */
+    List<DbfMetricsCollector.TableTransfer> getImports();
+
+    /**
+     * Exports of each table by 'save dbf to': the last one and the totals.
+     */
+    List<DbfMetricsCollector.TableTransfer> getExports();
+
+    long getFolderCacheHits();
+
+    long getFolderCacheMisses();
+
+    long getTableCacheHits();
+
+    long getTableCacheMisses();
+
+    /**
+     * Latency histogram for each statement kind.
+     */
+    List<DbfMetricsCollector.StatementLatency> getStatementLatencies();
+
+    /**
+     * Upper bounds of the latency histogram buckets, in microseconds. The last bucket has no upper bound.
+     */
+    long[] getLatencyBucketLimitsUs();
+
+    void reset();
+}
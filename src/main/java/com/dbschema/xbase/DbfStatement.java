@@ -0,0 +1,382 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfLazyLoader;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Statement returned by H2WrappedConnection. Before a statement is sent to H2 we check if it is a driver command ( see DbfCommands ),
+ * load the tables it uses with load=lazy or load=async, and hold the swap lock, so the folder watcher or 'reload dbf table'
+ * do not replace a table during the execution. The other methods are delegated to the H2 statement.
+ */
+class DbfStatement implements Statement {
+
+    /**
+     * The call to the H2 statement, with the SQL to execute. For driver commands this is the command result SQL.
+     */
+    interface Execution<T> {
+        T execute( String sql ) throws SQLException;
+    }
+
+    final H2WrappedConnection connection;
+    private final Statement target;
+    private volatile DbfLazyLoader.LoadRequest loadRequest;
+
+    DbfStatement( H2WrappedConnection connection, Statement target ){
+        this.connection = connection;
+        this.target = target;
+    }
+
+    private <T> T executeStatement( String sql, Execution<T> execution ) throws SQLException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result;
+            final DbfCommands.Match command = DbfCommands.find( sql );
+            if ( command != null ){
+                command.execute( connection );
+                result = executeLocked( command.getResultSql(), execution );
+            } else {
+                loadTablesUsedIn( sql );
+                if ( connection.isAutoIndex() ){
+                    final long startMillis = System.currentTimeMillis();
+                    result = executeLocked( sql, execution );
+                    connection.adviseIfSlow( sql, System.currentTimeMillis() - startMillis );
+                } else {
+                    result = executeLocked( sql, execution );
+                }
+            }
+            failed = false;
+            return result;
+        } finally {
+            DbfJdbcDriver.getMetrics().statementExecuted( DbfMetricsCollector.getStatementKind( sql ), System.nanoTime() - start, failed );
+        }
+    }
+
+    /**
+     * Execute holding the read lock of the swap lock.
+     */
+    <T> T executeLocked( String sql, Execution<T> execution ) throws SQLException {
+        final Lock lock = connection.getSwapLock();
+        if ( lock == null ){
+            return execution.execute( sql );
+        }
+        lock.lock();
+        try {
+            return execution.execute( sql );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The loads can be cancelled using cancel().
+     */
+    private void loadTablesUsedIn( String sql ) throws SQLException {
+        if ( connection.hasPendingTables() ){
+            loadRequest = new DbfLazyLoader.LoadRequest();
+            try {
+                connection.loadTablesUsedIn( sql, loadRequest );
+            } finally {
+                loadRequest = null;
+            }
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        return executeStatement( sql, target::executeQuery );
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        return executeStatement( sql, target::executeUpdate );
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeUpdate( effectiveSql, autoGeneratedKeys ));
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeUpdate( effectiveSql, columnIndexes ));
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeUpdate( effectiveSql, columnNames ));
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        return executeStatement( sql, target::execute );
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.execute( effectiveSql, autoGeneratedKeys ));
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.execute( effectiveSql, columnIndexes ));
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.execute( effectiveSql, columnNames ));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        return executeStatement( sql, target::executeLargeUpdate );
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeLargeUpdate( effectiveSql, autoGeneratedKeys ));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeLargeUpdate( effectiveSql, columnIndexes ));
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        return executeStatement( sql, effectiveSql -> target.executeLargeUpdate( effectiveSql, columnNames ));
+    }
+
+    /**
+     * Driver commands are not executed in batches. The tables used by the statement are loaded now.
+     */
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        loadTablesUsedIn( sql );
+        target.addBatch( sql );
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        return executeTimed( DbfMetricsCollector.BATCH_KIND, null, null, sql -> target.executeBatch() );
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        return executeTimed( DbfMetricsCollector.BATCH_KIND, null, null, sql -> target.executeLargeBatch() );
+    }
+
+    /**
+     * Execute the command, if not null, then execute holding the swap lock. The execution time is recorded in the metrics.
+     */
+    <T> T executeTimed( String kind, DbfCommands.Match command, String sql, Execution<T> execution ) throws SQLException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            if ( command != null ){
+                command.execute( connection );
+            }
+            final T result = executeLocked( sql, execution );
+            failed = false;
+            return result;
+        } finally {
+            DbfJdbcDriver.getMetrics().statementExecuted( kind, System.nanoTime() - start, failed );
+        }
+    }
+
+    /**
+     * Cancel also the table loads this statement waits for.
+     */
+    @Override
+    public void cancel() throws SQLException {
+        final DbfLazyLoader.LoadRequest request = loadRequest;
+        if ( request != null ){
+            request.cancel();
+        }
+        target.cancel();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        target.close();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return target.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        target.setMaxFieldSize( max );
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return target.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        target.setMaxRows( max );
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        target.setEscapeProcessing( enable );
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return target.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        target.setQueryTimeout( seconds );
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return target.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        target.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        target.setCursorName( name );
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return target.getResultSet();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return target.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return target.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        target.setFetchDirection( direction );
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return target.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        target.setFetchSize( rows );
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return target.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return target.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return target.getResultSetType();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        target.clearBatch();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return target.getMoreResults( current );
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return target.getGeneratedKeys();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return target.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        target.setPoolable( poolable );
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return target.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        target.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return target.isCloseOnCompletion();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return target.getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        target.setLargeMaxRows( max );
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return target.getLargeMaxRows();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return target.unwrap( iface );
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return target.isWrapperFor( iface );
+    }
+}
@@ -1,22 +1,26 @@
 package com.dbschema.xbase;
 
+import com.dbschema.xbase.io.DbfFolderLoader;
+import com.dbschema.xbase.io.DbfIndexAdvisor;
+import com.dbschema.xbase.io.DbfLazyLoader;
+import com.dbschema.xbase.io.DbfLoadListener;
+import com.dbschema.xbase.io.DbfFingerprint;
 import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.io.DbfTableReloader;
 import com.dbschema.xbase.io.H2StoreInDbf;
-import com.dbschema.xbase.schema.Table;
-import com.linuxense.javadbf.DBFReader;
+import com.dbschema.xbase.schema.DataTypeUtil;
 import org.h2.jdbc.JdbcConnection;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.logging.Level;
 
 import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
 
@@ -26,96 +30,232 @@ import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
  * Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
  *
  * When you open a connection, we store transfer all DBF data to a H2 database stored in user.home/.DbSchema/ .
- * We also create a proxy on Statement and intercept 'save dbf to folder_path' statements.
+ * The statements are wrapped in DbfStatement, DbfPreparedStatement and DbfCallableStatement, which execute the driver
+ * commands registered in DbfCommands: 'save dbf to folder_path', 'save dbf changes to folder_path', 'show dbf index advice',
+ * 'show dbf stats', 'cancel dbf load', 'start dbf load', 'reload dbf table table_name' and 'refresh dbf'.
  * The dbf save code can be improved, we are happy for contributions.
  */
 public class H2WrappedConnection implements Connection {
 
-    private static final Pattern SAVE_COMMAND_PATTERN = Pattern.compile( "(\\s*)save(\\s+)dbf(\\s+)to(\\s+)(.*)", Pattern.CASE_INSENSITIVE );
-
     private final JdbcConnection h2Connection;
+    private final String h2JdbcUrl;
+    private final File rootFolder;
     private String defaultCharset;
-
-    H2WrappedConnection(JdbcConnection h2Connection, String defaultCharset ){
+    private final int importBatch;
+    private final int importThreads;
+    private final int exportThreads;
+    private final String loadMode;
+    private final String types;
+    private DbfLazyLoader lazyLoader;
+    private final DbfIndexAdvisor indexAdvisor;
+    private final boolean autoIndex;
+    private ReadWriteLock swapLock;
+    private Runnable closeHook;
+
+    H2WrappedConnection(JdbcConnection h2Connection, String h2JdbcUrl, File rootFolder, Properties properties ) throws SQLException {
         this.h2Connection = h2Connection;
-        this.defaultCharset = defaultCharset;
-    }
-
-    void transferFolder(File folder, File rootFolder, Connection h2Connection) throws SQLException {
-        final File[] files = folder.listFiles();
-        DbfLoaderInH2 loader = new DbfLoaderInH2();
-        if ( files != null ) {
-            for (File file : files) {
-                if (file.isFile() && file.getName().toLowerCase().endsWith(".dbf")) {
-                    try ( DBFReader reader = new DBFReader(new FileInputStream(file)) ){
-                        final Table table = new Table(rootFolder, file);
-                        loader.transfer( table, reader, h2Connection );
-                        if ( defaultCharset == null ){
-                            defaultCharset = loader.getCharset();
-                        }
-                    } catch ( Exception ex ){
-                        throw new SQLException(ex.getLocalizedMessage(), ex );
-                    }
-                } else if ( file.isDirectory() ){
-                    transferFolder( file, rootFolder, h2Connection );
-                }
-            }
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.rootFolder = rootFolder;
+        this.defaultCharset = properties.getProperty( DbfJdbcDriver.PARAM_CHARSET );
+        this.importBatch = DbfJdbcDriver.getIntProperty( properties, DbfJdbcDriver.PARAM_IMPORT_BATCH, DbfLoaderInH2.DEFAULT_COMMIT_INTERVAL );
+        this.importThreads = DbfJdbcDriver.getIntProperty( properties, DbfJdbcDriver.PARAM_IMPORT_THREADS, 1 );
+        this.exportThreads = DbfJdbcDriver.getIntProperty( properties, DbfJdbcDriver.PARAM_EXPORT_THREADS, 0 );
+        this.loadMode = properties.getProperty( DbfJdbcDriver.PARAM_LOAD, DbfJdbcDriver.LOAD_EAGER );
+        this.types = properties.getProperty( DbfJdbcDriver.PARAM_TYPES, DataTypeUtil.TYPES_STANDARD );
+        final String advisorMode = properties.getProperty( DbfJdbcDriver.PARAM_INDEX_ADVISOR, DbfIndexAdvisor.ADVISOR_OFF );
+        this.autoIndex = DbfIndexAdvisor.ADVISOR_AUTO.equalsIgnoreCase( advisorMode );
+        if ( autoIndex || DbfIndexAdvisor.ADVISOR_ADVICE.equalsIgnoreCase( advisorMode )){
+            indexAdvisor = new DbfIndexAdvisor( h2JdbcUrl, autoIndex,
+                    DbfJdbcDriver.getIntProperty( properties, DbfJdbcDriver.PARAM_INDEX_ADVISOR_TIME, DbfIndexAdvisor.DEFAULT_MIN_TIME ));
+            DbfIndexAdvisor.enableStatistics( h2Connection );
+        } else if ( DbfIndexAdvisor.ADVISOR_OFF.equalsIgnoreCase( advisorMode )){
+            indexAdvisor = null;
+        } else {
+            throw new SQLException("Invalid value for parameter '" + DbfJdbcDriver.PARAM_INDEX_ADVISOR + "': '" + advisorMode + "'. Expected off, advice or auto.");
+        }
+    }
+
+    /**
+     * @return the lazy loader, if the connection was created with load=lazy or load=async.
+     */
+    DbfLazyLoader transferFolder() throws SQLException {
+        final DbfFolderLoader loader = new DbfFolderLoader( h2JdbcUrl, importBatch, importThreads );
+        loader.setTypes( types );
+        final boolean async = DbfJdbcDriver.LOAD_ASYNC.equalsIgnoreCase( loadMode );
+        if ( async || DbfJdbcDriver.LOAD_LAZY.equalsIgnoreCase( loadMode )){
+            lazyLoader = new DbfLazyLoader( h2JdbcUrl, importBatch );
+            lazyLoader.setTypes( types );
+            loader.setLazyLoader( lazyLoader );
+        } else if ( DbfJdbcDriver.LOAD_DIRECT.equalsIgnoreCase( loadMode )){
+            loader.setDirect( true );
+        } else if ( !DbfJdbcDriver.LOAD_EAGER.equalsIgnoreCase( loadMode )){
+            throw new SQLException("Invalid value for parameter '" + DbfJdbcDriver.PARAM_LOAD + "': '" + loadMode + "'. Expected eager, lazy, async or direct.");
+        }
+        loader.transferFolder( rootFolder, h2Connection );
+        if ( async ){
+            lazyLoader.startBackgroundLoad();
+        }
+        if ( defaultCharset == null ){
+            defaultCharset = loader.getCharset();
+        }
+        return lazyLoader;
+    }
+
+    /**
+     * Executed once, when the connection is closed, before closing the H2 connection.
+     */
+    void setCloseHook( Runnable closeHook ){
+        this.closeHook = closeHook;
+    }
+
+    void setLazyLoader( DbfLazyLoader lazyLoader ){
+        this.lazyLoader = lazyLoader;
+    }
+
+    /**
+     * With load=async or load=lazy, get notified when the tables are loaded. The status of each table is also stored
+     * in the dbs_meta_load_status table. With load=eager the tables are loaded before the connection is returned.
+     * @return false if no tables are loaded after connect.
+     */
+    public boolean addLoadListener( DbfLoadListener listener ){
+        if ( lazyLoader == null ){
+            return false;
+        }
+        lazyLoader.addListener( listener );
+        return true;
+    }
+
+    public void removeLoadListener( DbfLoadListener listener ){
+        if ( lazyLoader != null ){
+            lazyLoader.removeListener( listener );
+        }
+    }
+
+    /**
+     * Statements are executed holding the read lock, so they never run while the folder watcher or 'reload dbf table' replace a table.
+     */
+    void setSwapLock( ReadWriteLock swapLock ){
+        this.swapLock = swapLock;
+    }
+
+    Lock getSwapLock(){
+        return swapLock != null ? swapLock.readLock() : null;
+    }
+
+    boolean hasPendingTables(){
+        return lazyLoader != null && lazyLoader.hasPendingTables();
+    }
+
+    /**
+     * @param request cancelled by Statement.cancel(), or null.
+     */
+    void loadTablesUsedIn( String sql, DbfLazyLoader.LoadRequest request ) throws SQLException {
+        if ( lazyLoader != null ){
+            lazyLoader.loadTablesUsedIn( sql, request );
         }
     }
 
     @Override
     public Statement createStatement() throws SQLException {
-        Statement statement = h2Connection.createStatement();
-        return new StatementProxy(statement).proxyStatement;
+        return new DbfStatement( this, h2Connection.createStatement() );
     }
 
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        Statement statement = h2Connection.createStatement(resultSetType, resultSetConcurrency );
-        return new StatementProxy(statement).proxyStatement;
+        return new DbfStatement( this, h2Connection.createStatement(resultSetType, resultSetConcurrency ));
     }
 
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        Statement statement = h2Connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability );
-        return new StatementProxy(statement).proxyStatement;
+        return new DbfStatement( this, h2Connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability ));
     }
 
+    /**
+     * Driver commands are prepared in H2 as their result SQL. For other statements we load the tables they use.
+     */
+    private String getPreparedSql( String sql, DbfCommands.Match command ) throws SQLException {
+        if ( command != null ){
+            return command.getResultSql();
+        }
+        if ( lazyLoader != null ){
+            lazyLoader.loadTablesUsedIn( sql );
+        }
+        return sql;
+    }
 
-    private class StatementProxy implements InvocationHandler {
-
-        private final Object target;
-        final Statement proxyStatement;
+    boolean isAutoIndex(){
+        return autoIndex;
+    }
 
-        StatementProxy(Object target) {
-            this.target = target;
-            this.proxyStatement = (Statement)Proxy.newProxyInstance(Statement.class.getClassLoader(),
-                    new Class[]{Statement.class},
-                    this);
+    /**
+     * With indexAdvisor=auto, slow statements are analyzed right away, and the advised indexes are created.
+     */
+    void adviseIfSlow( String sql, long elapsed ){
+        if ( indexAdvisor.isSlow( elapsed )){
+            try {
+                indexAdvisor.adviseStatement( h2Connection, sql, elapsed );
+            } catch ( SQLException ex ){
+                LOGGER.log(Level.WARNING, "Index advisor failed for " + sql, ex );
+            }
         }
+    }
 
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            Matcher matcher;
-            if (args != null && args.length > 0 && ( matcher = SAVE_COMMAND_PATTERN.matcher(args[0].toString())).matches()) {
-                LOGGER.info("Saving dbf...");
-                long start = System.currentTimeMillis();
-                try {
-                    saveDbf(matcher.group(5));
-                } catch ( SQLException ex ){
-                    throw ex;
-                } catch ( Exception ex ){
-                    throw new SQLException( ex.getLocalizedMessage(), ex );
-                }
-                args= new String[]{""};
-                long elapsed = System.currentTimeMillis() - start;
-                LOGGER.info("Executing " + method.getName() + " finished in " + elapsed + " ms");
+    /**
+     * @param changesOnly write only the tables modified since they were loaded, and copy the original DBF files of the others.
+     */
+    void saveDbf( String path, boolean changesOnly ) throws Exception {
+        final File outputFolder = getOutputFolder( path );
+        if ( lazyLoader != null ){
+            lazyLoader.loadAll();
+        }
+        LOGGER.info("Saving dbf...");
+        final long start = System.currentTimeMillis();
+        final H2StoreInDbf storeInDbf = new H2StoreInDbf( h2JdbcUrl, defaultCharset, exportThreads );
+        storeInDbf.setChangesOnly( changesOnly );
+        storeInDbf.store( h2Connection, outputFolder );
+        LOGGER.info("Saving dbf finished in " + ( System.currentTimeMillis() - start ) + " ms");
+    }
+
+    /**
+     * @param tableNames comma separated table names, optionally quoted.
+     */
+    void saveDbfTables( String tableNames, String path ) throws Exception {
+        final List<String> tables = new ArrayList<>();
+        for ( String tableName : tableNames.split(",") ){
+            tableName = unquote( tableName );
+            if ( tableName.isEmpty() ){
+                throw new SQLException("Save dbf table: empty table name in '" + tableNames + "'");
             }
-            return method.invoke(target, args);
+            tables.add( tableName );
+        }
+        final File outputFolder = getOutputFolder( path );
+        if ( lazyLoader != null ){
+            lazyLoader.loadTablesUsedIn( tableNames );
         }
+        LOGGER.info("Saving dbf tables " + tables + "...");
+        final long start = System.currentTimeMillis();
+        final H2StoreInDbf storeInDbf = new H2StoreInDbf( h2JdbcUrl, defaultCharset, exportThreads );
+        storeInDbf.setTables( tables );
+        storeInDbf.store( h2Connection, outputFolder );
+        LOGGER.info("Saving dbf tables finished in " + ( System.currentTimeMillis() - start ) + " ms");
+    }
+
+    /**
+     * Write the query result as the DBF file name.dbf in the folder.
+     */
+    void saveDbfQuery( String sql, String name, String path ) throws Exception {
+        name = unquote( name );
+        final File outputFolder = getOutputFolder( path );
+        if ( lazyLoader != null ){
+            lazyLoader.loadTablesUsedIn( sql );
+        }
+        LOGGER.info("Saving dbf query as " + name + "...");
+        final long start = System.currentTimeMillis();
+        new H2StoreInDbf( h2JdbcUrl, defaultCharset, 1 ).storeQuery( h2Connection, sql, name, outputFolder );
+        LOGGER.info("Saving dbf query finished in " + ( System.currentTimeMillis() - start ) + " ms");
     }
 
-    private void saveDbf( String path) throws Exception {
+    private static File getOutputFolder( String path ) throws SQLException {
         if ( path == null || path.trim().length() == 0 ){
             throw new SQLException("Save dbf path is empty. Please specify a directory path");
         }
@@ -125,18 +265,93 @@ public class H2WrappedConnection implements Connection {
         }
         File outputFolder = new File ( path );
         outputFolder.mkdirs();
-        new H2StoreInDbf( h2Connection, outputFolder, defaultCharset );
+        return outputFolder;
+    }
+
+    private static String unquote( String name ){
+        name = name.trim();
+        if ( name.length() > 1 && ( name.startsWith("\"") && name.endsWith("\"") || name.startsWith("'") && name.endsWith("'") )){
+            name = name.substring( 1, name.length() - 1 );
+        }
+        return name;
+    }
+
+    void cancelLoad(){
+        if ( lazyLoader != null ){
+            lazyLoader.cancelBackgroundLoad();
+        }
+    }
+
+    /**
+     * Start again the background load of the pending tables, for example after 'cancel dbf load'.
+     */
+    void startLoad(){
+        if ( lazyLoader != null && lazyLoader.hasPendingTables() ){
+            lazyLoader.startBackgroundLoad();
+        }
+    }
+
+    void adviseIndexes() throws SQLException {
+        if ( indexAdvisor != null ){
+            indexAdvisor.adviseFromStatistics( h2Connection );
+        }
+    }
+
+    /**
+     * Load the table again from its DBF file. Changes done in H2 since the table was loaded are lost.
+     * The table name is matched exactly. An unquoted name which matches no table exactly may differ by case,
+     * if it matches only one table: 'cars' and 'Cars' are different tables of the DBF files cars.dbf and Cars.DBF.
+     */
+    void reloadTable( String tableName ) throws Exception {
+        final String name = unquote( tableName );
+        final boolean quoted = !name.equals( tableName.trim() );
+        final Map<String,DbfFingerprint> fingerprints = DbfFingerprint.loadAll( h2Connection );
+        DbfFingerprint fingerprint = fingerprints.get( name );
+        if ( fingerprint == null && !quoted ){
+            for ( Map.Entry<String,DbfFingerprint> entry : fingerprints.entrySet() ){
+                if ( entry.getKey().equalsIgnoreCase( name )){
+                    if ( fingerprint != null ){
+                        throw new SQLException("Table name '" + name + "' matches more tables differing by case. Quote the table name.");
+                    }
+                    fingerprint = entry.getValue();
+                }
+            }
+        }
+        if ( fingerprint == null ){
+            throw new SQLException("Table '" + name + "' was not loaded from a DBF file");
+        }
+        createReloader().reload( new File( fingerprint.filePath ), true );
+    }
+
+    /**
+     * Reload the tables of the DBF files changed since they were loaded, load the new files and drop the tables of removed files.
+     */
+    void refresh() throws Exception {
+        final List<String> reloadedTables = createReloader().refresh();
+        LOGGER.info("Reloaded tables " + reloadedTables );
+    }
+
+    private DbfTableReloader createReloader() throws SQLException {
+        if ( DbfJdbcDriver.LOAD_DIRECT.equalsIgnoreCase( loadMode )){
+            throw new SQLException("Tables are not reloaded with load=direct, they read the DBF files directly");
+        }
+        final DbfTableReloader reloader = new DbfTableReloader( rootFolder, h2JdbcUrl, importBatch, swapLock );
+        reloader.setLazyLoader( lazyLoader );
+        reloader.setTypes( types );
+        return reloader;
     }
 
 
     @Override
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return h2Connection.prepareStatement( sql );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ) ), sql, command );
     }
 
     @Override
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return h2Connection.prepareCall( sql );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfCallableStatement( this, h2Connection.prepareCall( getPreparedSql( sql, command ) ), sql, command );
     }
 
     @Override
@@ -166,7 +381,18 @@ public class H2WrappedConnection implements Connection {
 
     @Override
     public void close() throws SQLException {
-        h2Connection.close();
+        final Runnable hook;
+        synchronized ( this ){
+            hook = h2Connection.isClosed() ? null : closeHook;
+            closeHook = null;
+        }
+        try {
+            if ( hook != null ){
+                hook.run();
+            }
+        } finally {
+            h2Connection.close();
+        }
     }
 
     @Override
@@ -174,6 +400,10 @@ public class H2WrappedConnection implements Connection {
         return h2Connection.isClosed();
     }
 
+    /**
+     * The H2 metadata. With load=lazy and load=async it does not load the pending tables: they are listed with their columns,
+     * but without rows and without the indexes read from the DBF index files. Their status is in dbs_meta_load_status.
+     */
     @Override
     public DatabaseMetaData getMetaData() throws SQLException {
         return h2Connection.getMetaData();
@@ -223,12 +453,14 @@ public class H2WrappedConnection implements Connection {
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return h2Connection.prepareStatement( sql, resultSetType, resultSetConcurrency );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ), resultSetType, resultSetConcurrency ), sql, command );
     }
 
     @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return h2Connection.prepareCall( sql, resultSetType, resultSetConcurrency );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfCallableStatement( this, h2Connection.prepareCall( getPreparedSql( sql, command ), resultSetType, resultSetConcurrency ), sql, command );
     }
 
     @Override
@@ -275,27 +507,32 @@ public class H2WrappedConnection implements Connection {
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return h2Connection.prepareStatement( sql, resultSetType, resultSetConcurrency, resultSetHoldability );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ), resultSetType, resultSetConcurrency, resultSetHoldability ), sql, command );
     }
 
     @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return h2Connection.prepareCall( sql, resultSetType, resultSetConcurrency, resultSetHoldability );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfCallableStatement( this, h2Connection.prepareCall( getPreparedSql( sql, command ), resultSetType, resultSetConcurrency, resultSetHoldability ), sql, command );
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return h2Connection.prepareStatement( sql, autoGeneratedKeys );
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ), autoGeneratedKeys ), sql, command );
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        return h2Connection.prepareStatement(sql, columnIndexes);
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ), columnIndexes ), sql, command );
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        return h2Connection.prepareStatement( sql, columnNames);
+        final DbfCommands.Match command = DbfCommands.find( sql );
+        return new DbfPreparedStatement( this, h2Connection.prepareStatement( getPreparedSql( sql, command ), columnNames ), sql, command );
     }
 
     @Override
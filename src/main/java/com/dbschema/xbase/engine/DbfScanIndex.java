@@ -0,0 +1,193 @@
+package com.dbschema.xbase.engine;
+
+import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.engine.Constants;
+import org.h2.engine.Session;
+import org.h2.index.BaseIndex;
+import org.h2.index.Cursor;
+import org.h2.index.IndexType;
+import org.h2.message.DbException;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.IndexColumn;
+import org.h2.table.TableFilter;
+import org.h2.value.DataType;
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Full scan over the DBF records, deleted records are skipped. The row key is the sequence number of the record.
+ * A scan reads the records in batches, and keeps the DBF file open only while a batch is read.
+ */
+class DbfScanIndex extends BaseIndex {
+
+    private static final int MIN_BATCH_SIZE = 64, MAX_BATCH_SIZE = 4096;
+
+    private final DbfTable dbfTable;
+
+    DbfScanIndex(DbfTable table, int id, IndexColumn[] columns, IndexType indexType) {
+        super(table, id, table.getName() + "_DATA", columns, indexType);
+        this.dbfTable = table;
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        return new DbfCursor( session );
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks, TableFilter[] filters, int filter, SortOrder sortOrder, AllColumnsForPlan allColumnsSet) {
+        return getRowCountApproximation() + Constants.COST_ROW_OFFSET;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        long count = 0;
+        final Cursor cursor = find( session, null, null );
+        while ( cursor.next() ){
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return dbfTable.getHeaderRecordCount();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return dbfTable.getDiskSpaceUsed();
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return table.getSQL(false) + ".dbfScan";
+    }
+
+    @Override
+    public boolean isFindUsingFullTableScan() {
+        return true;
+    }
+
+    @Override
+    public void close(Session session) {
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public void remove(Session session) {
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("DBF direct tables first or last");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public void checkRename() {
+    }
+
+    /**
+     * Reads the records in batches, see DbfTable.readRecords(). The first batches are small, so queries which need only
+     * the first records read only a few of them, then the batch size grows up to MAX_BATCH_SIZE.
+     */
+    private class DbfCursor implements Cursor {
+
+        private final Session session;
+        private final Column[] tableColumns;
+        private Iterator<Object[]> batch = Collections.emptyIterator();
+        private int batchSize = MIN_BATCH_SIZE, nextRecord;
+        private boolean last;
+        private Row current;
+        private long recordNo;
+
+        DbfCursor( Session session ){
+            this.session = session;
+            this.tableColumns = table.getColumns();
+        }
+
+        @Override
+        public Row get() {
+            return current;
+        }
+
+        @Override
+        public SearchRow getSearchRow() {
+            return current;
+        }
+
+        @Override
+        public boolean next() {
+            while ( !batch.hasNext() ){
+                if ( last ){
+                    current = null;
+                    return false;
+                }
+                readBatch();
+            }
+            final Object[] record = batch.next();
+            final Value[] values = new Value[tableColumns.length];
+            for ( int i = 0; i < values.length; i++ ){
+                values[i] = toValue( i, i < record.length ? record[i] : null );
+            }
+            current = table.createRow( values, Row.MEMORY_CALCULATE );
+            current.setKey( ++recordNo );
+            return true;
+        }
+
+        private void readBatch() {
+            try {
+                final DbfTable.RecordBatch recordBatch = dbfTable.readRecords( nextRecord, batchSize );
+                batch = recordBatch.records.iterator();
+                nextRecord = recordBatch.nextRecord;
+                last = recordBatch.last;
+                batchSize = Math.min( batchSize * 4, MAX_BATCH_SIZE );
+            } catch ( IOException ex ){
+                throw DbException.convertIOException( ex, dbfTable.getName() );
+            }
+        }
+
+        private Value toValue( int column, Object value ){
+            return value == null ? ValueNull.INSTANCE : tableColumns[column].convert( DataType.convertToValue( session, value, Value.UNKNOWN ));
+        }
+
+        @Override
+        public boolean previous() {
+            throw DbException.getUnsupportedException("DBF direct tables previous");
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.dbschema.xbase.engine;
+
+import com.dbschema.xbase.io.DbfMappedReader;
+import com.linuxense.javadbf.DBFReader;
+import org.h2.command.ddl.CreateTableData;
+import org.h2.engine.Session;
+import org.h2.index.Index;
+import org.h2.index.IndexType;
+import org.h2.message.DbException;
+import org.h2.result.Row;
+import org.h2.table.IndexColumn;
+import org.h2.table.TableBase;
+import org.h2.table.TableType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Read-only H2 table over a DBF file. Each scan reads the records sequentially in batches, deleted records are skipped.
+ * The file is opened for each batch and closed after, so scans stopped early do not keep it open.
+ * Records are decoded by the DbfMappedReader, or by the DBFReader if they have field types the mapped reader cannot decode.
+ * The table is not deterministic, so H2 does not cache query results: each query sees the current content of the file.
+ */
+public class DbfTable extends TableBase {
+
+    private final File file;
+    private final String charset;
+    private final DbfScanIndex scanIndex;
+    private long headerFileLength = -1, headerFileModified = -1, headerRecordCount;
+
+    DbfTable(CreateTableData data, File file, String charset ) {
+        super(data);
+        this.file = file;
+        this.charset = charset;
+        this.scanIndex = new DbfScanIndex( this, data.id, IndexColumn.wrap( getColumns() ), IndexType.createScan( false ));
+    }
+
+    /**
+     * Read the not-deleted records from the position fromRecord, at most maxRecords records, deleted records included.
+     * The records are copied in the heap and the file is closed before returning, so a scan which is not read
+     * until the end, for example because of a LIMIT, does not keep the file open.
+     * Files with field types the mapped reader cannot decode are read using DBFReader from the copied records.
+     */
+    RecordBatch readRecords( int fromRecord, int maxRecords ) throws IOException {
+        final List<Object[]> records = new ArrayList<>();
+        try ( DbfMappedReader reader = new DbfMappedReader( file, charset != null ? Charset.forName( charset ) : null )){
+            final int toRecord = (int)Math.min( reader.getRecordCount(), (long)fromRecord + maxRecords );
+            if ( reader.isSupported() ){
+                final DbfMappedReader.RecordCursor cursor = reader.readRecords( fromRecord, toRecord );
+                while ( cursor.next() ){
+                    final Object[] record = new Object[reader.getFieldCount()];
+                    for ( int i = 0; i < record.length; i++ ){
+                        record[i] = cursor.getValue( i );
+                    }
+                    records.add( record );
+                }
+            } else {
+                final InputStream is = reader.readRecordsAsStream( fromRecord, toRecord );
+                final DBFReader dbfReader = charset != null ? new DBFReader( is, Charset.forName( charset )) : new DBFReader( is );
+                try {
+                    Object[] record;
+                    while ( ( record = dbfReader.nextRecord() ) != null ){
+                        records.add( record );
+                    }
+                } finally {
+                    dbfReader.close();
+                }
+            }
+            return new RecordBatch( records, toRecord, toRecord >= reader.getRecordCount() );
+        }
+    }
+
+    static class RecordBatch {
+
+        final List<Object[]> records;
+        final int nextRecord;
+        final boolean last;
+
+        RecordBatch( List<Object[]> records, int nextRecord, boolean last ){
+            this.records = records;
+            this.nextRecord = nextRecord;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The record count from the DBF header, deleted records included. Used by the query planner for each statement,
+     * so we read only the header record count, and read it again only if the file size or modification time changed.
+     */
+    synchronized long getHeaderRecordCount() {
+        final long length = file.length(), modified = file.lastModified();
+        if ( length != headerFileLength || modified != headerFileModified ){
+            final ByteBuffer header = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+            try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )){
+                channel.read( header, 0 );
+            } catch ( IOException ex ){
+                return 0;
+            }
+            headerRecordCount = header.hasRemaining() ? 0 : Math.max( 0, header.getInt( 4 ));
+            headerFileLength = length;
+            headerFileModified = modified;
+        }
+        return headerRecordCount;
+    }
+
+    @Override
+    public boolean lock(Session session, boolean exclusive, boolean forceLockEvenInMvcc) {
+        return false;
+    }
+
+    @Override
+    public void close(Session session) {
+    }
+
+    @Override
+    public void unlock(Session s) {
+    }
+
+    @Override
+    public Index addIndex(Session session, String indexName, int indexId, IndexColumn[] cols, IndexType indexType, boolean create, String indexComment) {
+        throw DbException.getUnsupportedException("Indexes on DBF direct tables");
+    }
+
+    @Override
+    public void removeRow(Session session, Row row) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public void addRow(Session session, Row row) {
+        throw DbException.getUnsupportedException("DBF direct tables are read-only");
+    }
+
+    @Override
+    public void checkSupportAlter() {
+        throw DbException.getUnsupportedException("Alter DBF direct tables");
+    }
+
+    @Override
+    public TableType getTableType() {
+        return TableType.EXTERNAL_TABLE_ENGINE;
+    }
+
+    @Override
+    public Index getScanIndex(Session session) {
+        return scanIndex;
+    }
+
+    @Override
+    public Index getUniqueIndex() {
+        return null;
+    }
+
+    @Override
+    public ArrayList<Index> getIndexes() {
+        final ArrayList<Index> indexes = new ArrayList<>();
+        indexes.add( scanIndex );
+        return indexes;
+    }
+
+    @Override
+    public boolean isLockedExclusively() {
+        return false;
+    }
+
+    @Override
+    public long getMaxDataModificationId() {
+        return database.getModificationDataId();
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetRowCount() {
+        return false;
+    }
+
+    @Override
+    public boolean canDrop() {
+        return true;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return scanIndex.getRowCount( session );
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return getHeaderRecordCount();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return file.length();
+    }
+
+    @Override
+    public void checkRename() {
+    }
+}
@@ -0,0 +1,29 @@
+package com.dbschema.xbase.engine;
+
+import org.h2.api.TableEngine;
+import org.h2.command.ddl.CreateTableData;
+import org.h2.message.DbException;
+import org.h2.table.Table;
+
+import java.io.File;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * H2 table engine used with load=direct. The H2 table reads the records directly from the DBF file, without copying them in H2.
+ * The DBF file path and the charset are given as table engine parameters:
+ * <pre>create table "cars"( ... ) engine "com.dbschema.xbase.engine.DbfTableEngine" with "/path/cars.dbf", "ISO-8859-1"</pre>
+ */
+public class DbfTableEngine implements TableEngine {
+
+    @Override
+    public Table createTable(CreateTableData data) {
+        if ( data.tableEngineParams == null || data.tableEngineParams.isEmpty() ){
+            throw DbException.getUnsupportedException("The DBF file path is missing. Use: create table ... engine \"" + DbfTableEngine.class.getName() + "\" with \"<file path>\"");
+        }
+        final File file = new File( data.tableEngineParams.get(0) );
+        final String charset = data.tableEngineParams.size() > 1 ? data.tableEngineParams.get(1) : null;
+        return new DbfTable( data, file, charset );
+    }
+}
@@ -0,0 +1,231 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.dbschema.xbase.schema.Db;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFDataType;
+import com.linuxense.javadbf.DBFField;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * The catalog of the tables loaded from DBF files. The original DBF fields of each table are stored in dbs_meta_columns,
+ * in the order of the DBF file, and the structure of the created H2 table ( the H2 create table statement ) in dbs_meta_tables.
+ * The fields of a table are written in one batch and one commit when the table is created.
+ *
+ * 'save dbf to' loads the catalog once and writes the DBF files with the original fields, without reading the H2
+ * column metadata. Tables created or altered using SQL have another structure than the stored one, only for them
+ * the H2 columns are read.
+ */
+public class DbfCatalog {
+
+    public static final String META_COLUMNS_TABLE_NAME = "dbs_meta_columns";
+    public static final String META_TABLES_TABLE_NAME = "dbs_meta_tables";
+
+    private static final String CREATE_META_COLUMNS_TABLE =
+            "create table if not exists " + META_COLUMNS_TABLE_NAME + "( " +
+                    "table_name varchar(2000) not null, " +
+                    "column_name varchar(2000) not null, " +
+                    "column_type varchar(120), " +
+                    "length int not null, " +
+                    "decimal int not null, " +
+                    "ordinal int, " +
+                    "primary key (table_name, column_name))";
+    // Cache databases created by older versions have no ordinal column
+    private static final String ADD_ORDINAL_COLUMN =
+            "alter table " + META_COLUMNS_TABLE_NAME + " add column if not exists ordinal int";
+    private static final String CREATE_META_TABLES_TABLE =
+            "create table if not exists " + META_TABLES_TABLE_NAME + "( " +
+                    "table_name varchar(2000) not null primary key, " +
+                    "structure varchar )";
+    private static final String INSERT_COLUMN =
+            "insert into " + META_COLUMNS_TABLE_NAME + "( table_name, column_name, column_type, length, decimal, ordinal ) values ( ?,?,?,?,?,? )";
+    private static final String SELECT_STRUCTURE =
+            "select SQL from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA=SCHEMA() and TABLE_NAME=?";
+
+    private final Db db = new Db();
+    private final Map<String,String> structures = new HashMap<>();
+
+    private DbfCatalog(){
+    }
+
+    /**
+     * Create the catalog tables. Call this once before loading the tables.
+     */
+    public static void createMetaTables( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( CREATE_META_COLUMNS_TABLE );
+            st.execute( ADD_ORDINAL_COLUMN );
+            st.execute( CREATE_META_TABLES_TABLE );
+        }
+        h2Connection.commit();
+    }
+
+    /**
+     * Store the fields of the table and the structure of its H2 table. Call this after the H2 table is created.
+     */
+    public static void save( Connection h2Connection, Table table ) throws SQLException {
+        deleteColumns( h2Connection, table.name );
+        try ( PreparedStatement st = h2Connection.prepareStatement( INSERT_COLUMN ) ){
+            int ordinal = 0;
+            for ( DBFField field : table.fields ){
+                st.setString( 1, table.name );
+                st.setString( 2, field.getName() );
+                st.setString( 3, field.getType().name() );
+                st.setInt( 4, field.getLength() );
+                st.setInt( 5, field.getDecimalCount() );
+                st.setInt( 6, ordinal++ );
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+        saveStructure( h2Connection, table.name );
+        h2Connection.commit();
+    }
+
+    /**
+     * Move the catalog entry of a renamed table. The structure is read again, it contains the table name.
+     */
+    static void rename( Connection h2Connection, String fromName, String toName ) throws SQLException {
+        delete( h2Connection, toName );
+        try ( PreparedStatement st = h2Connection.prepareStatement( "update " + META_COLUMNS_TABLE_NAME + " set table_name=? where table_name=?" ) ){
+            st.setString( 1, toName );
+            st.setString( 2, fromName );
+            st.execute();
+        }
+        try ( PreparedStatement st = h2Connection.prepareStatement( "delete from " + META_TABLES_TABLE_NAME + " where table_name=?" ) ){
+            st.setString( 1, fromName );
+            st.execute();
+        }
+        saveStructure( h2Connection, toName );
+    }
+
+    /**
+     * Remove the table from the catalog. The caller commits.
+     */
+    static void delete( Connection h2Connection, String tableName ) throws SQLException {
+        deleteColumns( h2Connection, tableName );
+        try ( PreparedStatement st = h2Connection.prepareStatement( "delete from " + META_TABLES_TABLE_NAME + " where table_name=?" ) ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+    }
+
+    private static void deleteColumns( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement( "delete from " + META_COLUMNS_TABLE_NAME + " where table_name=?" ) ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+    }
+
+    private static void saveStructure( Connection h2Connection, String tableName ) throws SQLException {
+        final String structure = getStructure( h2Connection, tableName );
+        if ( structure == null ){
+            return;
+        }
+        try ( PreparedStatement st = h2Connection.prepareStatement( "merge into " + META_TABLES_TABLE_NAME + "( table_name, structure ) key( table_name ) values ( ?,? )" ) ){
+            st.setString( 1, tableName );
+            st.setString( 2, structure );
+            st.execute();
+        }
+    }
+
+    private static String getStructure( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement( SELECT_STRUCTURE ) ){
+            st.setString( 1, tableName );
+            try ( ResultSet rs = st.executeQuery() ){
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Load the catalog, reading once the structures and once the fields of all tables.
+     */
+    public static DbfCatalog load( Connection h2Connection ) throws SQLException {
+        final DbfCatalog catalog = new DbfCatalog();
+        try ( Statement st = h2Connection.createStatement() ){
+            try ( ResultSet rs = st.executeQuery( "select table_name, structure from " + META_TABLES_TABLE_NAME ) ){
+                while ( rs.next() ){
+                    catalog.structures.put( rs.getString(1), rs.getString(2) );
+                }
+            }
+            try ( ResultSet rs = st.executeQuery( "select table_name, column_name, column_type, length, decimal from " + META_COLUMNS_TABLE_NAME +
+                    " order by table_name, ordinal" ) ){
+                while ( rs.next() ){
+                    catalog.db.getOrCreateTable( rs.getString(1) ).addField( createField( rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5) ));
+                }
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * The DBF field as it was read from the file. Fields which cannot be written get the UNKNOWN type, see isWritable().
+     */
+    private static DBFField createField( String name, String type, int length, int decimal ){
+        try {
+            final DBFDataType dataType = DBFDataType.valueOf( type );
+            if ( DbfFileWriter.isSupported( dataType )){
+                return DataTypeUtil.createField( name, dataType, length, decimal );
+            }
+        } catch ( IllegalArgumentException | UnsupportedOperationException ex ){
+            LOGGER.log(Level.INFO, "Field " + name + " " + type + "(" + length + "," + decimal + ") cannot be written", ex );
+        }
+        final DBFField field = new DBFField();
+        field.setName( name );
+        return field;
+    }
+
+    /**
+     * @param structure the current structure of the H2 table, the SQL column of INFORMATION_SCHEMA.TABLES.
+     * @return the table as it was loaded from the DBF file, or null if the table was not loaded from a DBF file,
+     * or it was altered using SQL since.
+     */
+    public Table getTable( String tableName, String structure ){
+        final String storedStructure = structures.get( tableName );
+        if ( storedStructure == null || !storedStructure.equals( structure )){
+            return null;
+        }
+        return db.getTable( tableName );
+    }
+
+    /**
+     * @return the original DBF field of a column, or null if the column was not loaded from a DBF file or its type cannot be written.
+     */
+    public DBFField getField( String tableName, String columnName ){
+        final Table table = db.getTable( tableName );
+        if ( table != null ){
+            for ( DBFField field : table.fields ){
+                if ( field.getName().equals( columnName )){
+                    return field.getType() != null && DbfFileWriter.isSupported( field.getType() ) ? field : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if some fields have a type which the DbfFileWriter cannot write, like CURRENCY.
+     */
+    public static boolean isWritable( Table table ){
+        for ( DBFField field : table.fields ){
+            if ( field.getType() == null || !DbfFileWriter.isSupported( field.getType() )){
+                return false;
+            }
+        }
+        return !table.fields.isEmpty();
+    }
+}
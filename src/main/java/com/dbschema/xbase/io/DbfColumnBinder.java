@@ -0,0 +1,362 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.linuxense.javadbf.DBFDataType;
+import com.linuxense.javadbf.DBFField;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Set one column of the H2 insert statement using the typed setter for the DBF field type.
+ * The binders are created once for each table, so for each record we do no type lookup.
+ * Values can be taken from a DBFReader record, or read directly from a DbfMappedReader cursor.
+ * Memo, binary and OLE fields read by a cursor are streamed from the memo file in H2 CLOB or BLOB columns.
+ */
+abstract class DbfColumnBinder {
+
+    private final int sqlType;
+
+    private DbfColumnBinder( int sqlType ){
+        this.sqlType = sqlType;
+    }
+
+    /**
+     * @param types the types mapping used to create the H2 table, see DataTypeUtil.getH2Type().
+     */
+    static DbfColumnBinder[] create( List<DBFField> fields, String types ){
+        return create( fields, types, null, null );
+    }
+
+    /**
+     * @param memoReader the memo file of the DBF file, or null. Without memo file, memo fields are set to null.
+     * @param charset the charset of the memo text.
+     */
+    static DbfColumnBinder[] create( List<DBFField> fields, String types, DbfMemoReader memoReader, Charset charset ){
+        final DbfColumnBinder[] binders = new DbfColumnBinder[fields.size()];
+        for ( int i = 0; i < binders.length; i++ ){
+            final DBFField field = fields.get(i);
+            switch ( field.getType() ){
+                case MEMO:
+                    binders[i] = new MemoBinder( DataTypeUtil.getJavaType( field, types ), memoReader, charset );
+                    break;
+                case BINARY:
+                case BLOB:
+                case GENERAL_OLE:
+                case PICTURE:
+                    binders[i] = new BlobBinder( DataTypeUtil.getJavaType( field, types ), memoReader );
+                    break;
+                default:
+                    binders[i] = create( field, types );
+            }
+        }
+        return binders;
+    }
+
+    static DbfColumnBinder create( DBFField field, String types ){
+        final int sqlType = DataTypeUtil.getJavaType( field, types );
+        if ( field.getType() == DBFDataType.NUMERIC ){
+            switch ( sqlType ){
+                case Types.INTEGER:
+                case Types.BIGINT: return new NumericLongBinder( sqlType );
+                case Types.DOUBLE: return new NumericDoubleBinder( sqlType );
+            }
+        }
+        switch ( field.getType() ){
+            case CHARACTER: return new StringBinder( sqlType );
+            case NUMERIC:
+            case FLOATING_POINT:
+            case CURRENCY: return new DecimalBinder( sqlType );
+            case LONG:
+            case AUTOINCREMENT: return new LongBinder( sqlType );
+            case DOUBLE: return new DoubleBinder( sqlType );
+            case LOGICAL: return new BooleanBinder( sqlType );
+            case DATE: return new DateBinder( sqlType );
+            default: return new ObjectBinder( sqlType );
+        }
+    }
+
+    /**
+     * Bind a value read by DBFReader. Values of an unexpected Java type are set using setObject().
+     */
+    final void bind( PreparedStatement st, int index, Object value ) throws SQLException {
+        if ( value == null ){
+            st.setNull( index, sqlType );
+        } else if ( !bindValue( st, index, value )){
+            st.setObject( index, value );
+        }
+    }
+
+    final void setNull( PreparedStatement st, int index ) throws SQLException {
+        st.setNull( index, sqlType );
+    }
+
+    /**
+     * @return false if the value has not the expected Java type.
+     */
+    abstract boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException;
+
+    /**
+     * Bind the field of the current cursor record.
+     */
+    abstract void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException;
+
+
+    private static class StringBinder extends DbfColumnBinder {
+        StringBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof String )) return false;
+            st.setString( index, (String)value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            st.setString( index, cursor.getString( field ));
+        }
+    }
+
+    private static class DecimalBinder extends DbfColumnBinder {
+        DecimalBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof BigDecimal )) return false;
+            st.setBigDecimal( index, (BigDecimal)value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final BigDecimal value = cursor.getBigDecimal( field );
+            if ( value == null ){
+                setNull( st, index );
+            } else {
+                st.setBigDecimal( index, value );
+            }
+        }
+    }
+
+    private static class LongBinder extends DbfColumnBinder {
+        LongBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Integer || value instanceof Long )) return false;
+            st.setLong( index, ((Number)value).longValue() );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            st.setLong( index, cursor.getLong( field ));
+        }
+    }
+
+    /**
+     * NUMERIC field without decimals stored in an int or bigint column.
+     */
+    private static class NumericLongBinder extends DbfColumnBinder {
+        NumericLongBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Number )) return false;
+            st.setLong( index, ((Number)value).longValue() );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final BigDecimal value = cursor.getBigDecimal( field );
+            if ( value == null ){
+                setNull( st, index );
+            } else {
+                st.setLong( index, value.longValue() );
+            }
+        }
+    }
+
+    /**
+     * NUMERIC field with decimals stored in a double column.
+     */
+    private static class NumericDoubleBinder extends DbfColumnBinder {
+        NumericDoubleBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Number )) return false;
+            st.setDouble( index, ((Number)value).doubleValue() );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final BigDecimal value = cursor.getBigDecimal( field );
+            if ( value == null ){
+                setNull( st, index );
+            } else {
+                st.setDouble( index, value.doubleValue() );
+            }
+        }
+    }
+
+    private static class DoubleBinder extends DbfColumnBinder {
+        DoubleBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Double )) return false;
+            st.setDouble( index, (Double)value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            st.setDouble( index, cursor.getDouble( field ));
+        }
+    }
+
+    private static class BooleanBinder extends DbfColumnBinder {
+        BooleanBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Boolean )) return false;
+            st.setBoolean( index, (Boolean)value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final Boolean value = cursor.getBoolean( field );
+            if ( value == null ){
+                setNull( st, index );
+            } else {
+                st.setBoolean( index, value );
+            }
+        }
+    }
+
+    private static class DateBinder extends DbfColumnBinder {
+        DateBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof Date )) return false;
+            st.setDate( index, new java.sql.Date( ((Date)value).getTime() ));
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final Date value = cursor.getDate( field );
+            if ( value == null ){
+                setNull( st, index );
+            } else {
+                st.setDate( index, new java.sql.Date( value.getTime() ));
+            }
+        }
+    }
+
+    private static class ObjectBinder extends DbfColumnBinder {
+        ObjectBinder( int sqlType ){ super( sqlType ); }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            st.setObject( index, value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            bind( st, index, cursor.getValue( field ));
+        }
+    }
+
+    /**
+     * Text memo, streamed from the memo file using setCharacterStream(). H2 reads the stream in its LOB storage.
+     */
+    private static class MemoBinder extends DbfColumnBinder {
+        private final DbfMemoReader memoReader;
+        private final Charset charset;
+
+        MemoBinder( int sqlType, DbfMemoReader memoReader, Charset charset ){
+            super( sqlType );
+            this.memoReader = memoReader;
+            this.charset = charset;
+        }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof String )) return false;
+            st.setString( index, (String)value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final DbfMemoReader.MemoStream memo = openMemo( memoReader, cursor, field );
+            if ( memo == null ){
+                setNull( st, index );
+            } else {
+                st.setCharacterStream( index, new InputStreamReader( memo, charset ));
+            }
+        }
+    }
+
+    /**
+     * Binary and OLE memo, streamed from the memo file using setBinaryStream().
+     */
+    private static class BlobBinder extends DbfColumnBinder {
+        private final DbfMemoReader memoReader;
+
+        BlobBinder( int sqlType, DbfMemoReader memoReader ){
+            super( sqlType );
+            this.memoReader = memoReader;
+        }
+
+        @Override
+        boolean bindValue( PreparedStatement st, int index, Object value ) throws SQLException {
+            if ( !( value instanceof byte[] )) return false;
+            st.setBytes( index, (byte[])value );
+            return true;
+        }
+
+        @Override
+        void bind( PreparedStatement st, int index, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+            final DbfMemoReader.MemoStream memo = openMemo( memoReader, cursor, field );
+            if ( memo == null ){
+                setNull( st, index );
+            } else if ( memo.getLength() >= 0 ){
+                st.setBinaryStream( index, memo, memo.getLength() );
+            } else {
+                st.setBinaryStream( index, memo );
+            }
+        }
+    }
+
+    private static DbfMemoReader.MemoStream openMemo( DbfMemoReader memoReader, DbfMappedReader.RecordCursor cursor, int field ) throws SQLException {
+        if ( memoReader == null ){
+            return null;
+        }
+        final int block = cursor.getMemoBlock( field );
+        try {
+            return block > 0 ? memoReader.openStream( block ) : null;
+        } catch ( IOException ex ){
+            throw new SQLException( "Cannot read memo block " + block + " of record " + ( cursor.getRecordIndex() + 1 ), ex );
+        }
+    }
+}
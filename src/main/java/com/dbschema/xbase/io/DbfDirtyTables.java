@@ -0,0 +1,90 @@
+package com.dbschema.xbase.io;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Track which tables were modified since they were loaded from the DBF files.
+ * After a table is loaded we create a DbfDirtyTrigger on it, which marks the table in dbs_meta_dirty.
+ * 'save dbf changes to' writes only the marked tables, and copies the original DBF files of the others.
+ * The marks are relative to the loaded DBF files, so they are not cleared by a save, only by reloading the table.
+ */
+public class DbfDirtyTables {
+
+    public static final String META_DIRTY_TABLE_NAME = "dbs_meta_dirty";
+    private final static char QUOTE_CHAR = '"';
+    private static final String TRIGGER_SUFFIX = "_dbs_dirty";
+
+    private static final String CREATE_META_DIRTY_TABLE =
+            "create table if not exists " + META_DIRTY_TABLE_NAME + "( table_name varchar(2000) not null primary key )";
+
+    public static void createMetaTable( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( CREATE_META_DIRTY_TABLE );
+        }
+        h2Connection.commit();
+    }
+
+    /**
+     * Create the trigger on a table and clear its mark. Call this after the data was loaded.
+     */
+    public static void track( Connection h2Connection, String tableName ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( "create trigger if not exists " + QUOTE_CHAR + tableName + TRIGGER_SUFFIX + QUOTE_CHAR +
+                    " after insert, update, delete on " + QUOTE_CHAR + tableName + QUOTE_CHAR +
+                    " call " + QUOTE_CHAR + DbfDirtyTrigger.class.getName() + QUOTE_CHAR );
+        }
+        markClean( h2Connection, tableName );
+    }
+
+    static void markDirty( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("merge into " + META_DIRTY_TABLE_NAME + "( table_name ) key( table_name ) values ( ? )") ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+    }
+
+    public static void markClean( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("delete from " + META_DIRTY_TABLE_NAME + " where table_name=?") ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    /**
+     * @return the tables modified since they were loaded.
+     */
+    public static Set<String> loadDirtyTables( Connection h2Connection ) throws SQLException {
+        final Set<String> tables = new HashSet<>();
+        try ( Statement st = h2Connection.createStatement();
+              ResultSet rs = st.executeQuery("select table_name from " + META_DIRTY_TABLE_NAME ) ){
+            while ( rs.next() ){
+                tables.add( rs.getString(1) );
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return the tables with a dirty trigger. Tables created later by the user have no trigger, they are always saved.
+     */
+    public static Set<String> loadTrackedTables( Connection h2Connection ) throws SQLException {
+        final Set<String> tables = new HashSet<>();
+        try ( Statement st = h2Connection.createStatement();
+              ResultSet rs = st.executeQuery("select TABLE_NAME from INFORMATION_SCHEMA.TRIGGERS where JAVA_CLASS='" + DbfDirtyTrigger.class.getName() + "'" ) ){
+            while ( rs.next() ){
+                tables.add( rs.getString(1) );
+            }
+        }
+        return tables;
+    }
+}
@@ -0,0 +1,47 @@
+package com.dbschema.xbase.io;
+
+import org.h2.api.Trigger;
+import org.h2.engine.SessionInterface;
+import org.h2.jdbc.JdbcConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * H2 statement trigger ( fired once per statement, not per row ) created on the tables loaded from DBF files.
+ * Any insert, update or delete marks the table as modified in the same transaction, so a rollback removes the mark as well.
+ */
+public class DbfDirtyTrigger implements Trigger {
+
+    private String tableName;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type) {
+        this.tableName = tableName;
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        // With auto-commit H2 would commit after the merge, which is not allowed inside a trigger.
+        // The mark is committed together with the statement which fired the trigger.
+        final SessionInterface session = ((JdbcConnection)conn).getSession();
+        final boolean autoCommit = session.getAutoCommit();
+        session.setAutoCommit( false );
+        try {
+            DbfDirtyTables.markDirty( conn, tableName );
+        } finally {
+            session.setAutoCommit( autoCommit );
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void remove() {
+    }
+}
@@ -0,0 +1,406 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.linuxense.javadbf.DBFCharsetHelper;
+import com.linuxense.javadbf.DBFDataType;
+import com.linuxense.javadbf.DBFField;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * DBF writer encoding the fields directly in a record buffer, and writing the records through a FileChannel in large blocks.
+ * The file is written to a temporary file in the same folder. close() writes the record count in the header, and
+ * moves the temporary file over the target file, so readers see either the old or the complete new file.
+ * The memo file is moved over its target only after the DBF file, so if the DBF file cannot be replaced, both target files
+ * are kept unchanged. abort() deletes the temporary files.
+ *
+ * Supports the field types written by DBFWriter: character, numeric, floating point, date and logical.
+ * The values are encoded like DBFWriter does, so the files are the same.
+ * Memo, general and picture fields are also supported. Their values are streamed in a FoxPro .fpt memo file,
+ * see DbfMemoWriter, and the DBF file gets the FoxPro signature.
+ */
+public class DbfFileWriter implements Closeable {
+
+    private static final int HEADER_SIZE = 32, FIELD_DESCRIPTOR_SIZE = 32, FIELD_NAME_SIZE = 11;
+    private static final byte DBASE3_SIGNATURE = 0x03, FOXPRO_MEMO_SIGNATURE = (byte)0xF5, HEADER_TERMINATOR = 0x0D, END_OF_FILE = 0x1A;
+    private static final int MEMO_FIELD_LENGTH = 10;
+    private static final int BLOCK_SIZE = 1 << 20;
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.ISO_8859_1;
+
+    private final File file;
+    private final File tempFile;
+    private final FileChannel channel;
+    private final DBFField[] fields;
+    private final Charset charset;
+    private final int headerLength;
+    private final int recordLength;
+    private final byte[] record;
+    private final ByteBuffer block;
+    private final GregorianCalendar calendar = new GregorianCalendar();
+    private final DbfMemoWriter memoWriter;
+    private int recordCount;
+    private boolean closed, moved;
+
+    public DbfFileWriter( File file, DBFField[] fields, Charset charset ) throws IOException {
+        if ( fields == null || fields.length == 0 ){
+            throw new IOException("Should have at least one field");
+        }
+        this.file = file;
+        this.fields = fields.clone();
+        this.charset = charset != null ? charset : DEFAULT_CHARSET;
+        int length = 1;
+        boolean hasMemo = false;
+        for ( int i = 0; i < this.fields.length; i++ ){
+            final DBFField field = this.fields[i];
+            if ( !isSupported( field.getType() )){
+                throw new IOException("Unknown field type " + field.getType() + " for field " + field.getName() );
+            }
+            if ( isMemo( field.getType() )){
+                // Visual FoxPro memo fields have 4 bytes binary block numbers, we write the block numbers as text
+                if ( field.getLength() != MEMO_FIELD_LENGTH ){
+                    this.fields[i] = DataTypeUtil.createField( field.getName(), field.getType(), MEMO_FIELD_LENGTH, 0 );
+                }
+                hasMemo = true;
+            }
+            length += this.fields[i].getLength();
+        }
+        this.recordLength = length;
+        this.headerLength = HEADER_SIZE + FIELD_DESCRIPTOR_SIZE * fields.length + 1;
+        this.record = new byte[recordLength];
+        this.block = ByteBuffer.allocate( Math.max( BLOCK_SIZE, headerLength + recordLength ));
+        final File folder = file.getAbsoluteFile().getParentFile();
+        this.tempFile = File.createTempFile( file.getName(), ".tmp", folder );
+        this.channel = FileChannel.open( tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        DbfMemoWriter memoWriter = null;
+        try {
+            if ( hasMemo ){
+                memoWriter = new DbfMemoWriter( getMemoFile( file ), this.charset );
+            }
+            this.memoWriter = memoWriter;
+            writeHeader();
+        } catch ( IOException ex ){
+            if ( memoWriter != null ){
+                memoWriter.abort();
+            }
+            channel.close();
+            tempFile.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * The .fpt file with the same name as the DBF file.
+     */
+    private static File getMemoFile( File file ){
+        final String name = file.getName();
+        final String baseName = name.toLowerCase().endsWith(".dbf") ? name.substring( 0, name.length() - ".dbf".length() ) : name;
+        return new File( file.getAbsoluteFile().getParentFile(), baseName + ".fpt" );
+    }
+
+    public static boolean isSupported( DBFDataType type ){
+        switch ( type ){
+            case CHARACTER:
+            case NUMERIC:
+            case FLOATING_POINT:
+            case DATE:
+            case LOGICAL:
+            case MEMO:
+            case GENERAL_OLE:
+            case PICTURE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMemo( DBFDataType type ){
+        return type == DBFDataType.MEMO || type == DBFDataType.GENERAL_OLE || type == DBFDataType.PICTURE;
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.wrap( new byte[headerLength] ).order( ByteOrder.LITTLE_ENDIAN );
+        final Calendar now = Calendar.getInstance();
+        header.put( memoWriter != null ? FOXPRO_MEMO_SIGNATURE : DBASE3_SIGNATURE );
+        header.put( (byte)( now.get( Calendar.YEAR ) - 1900 ));
+        header.put( (byte)( now.get( Calendar.MONTH ) + 1 ));
+        header.put( (byte)now.get( Calendar.DAY_OF_MONTH ));
+        header.putInt( 0 );
+        header.putShort( (short)headerLength );
+        header.putShort( (short)recordLength );
+        header.put( 29, (byte)DBFCharsetHelper.getDBFCodeForCharset( charset ));
+        int pos = HEADER_SIZE;
+        for ( DBFField field : fields ){
+            final byte[] name = field.getName().getBytes( charset );
+            System.arraycopy( name, 0, header.array(), pos, Math.min( name.length, FIELD_NAME_SIZE - 1 ));
+            header.put( pos + FIELD_NAME_SIZE, field.getType().getCode() );
+            header.put( pos + 16, (byte)field.getLength() );
+            header.put( pos + 17, (byte)field.getDecimalCount() );
+            pos += FIELD_DESCRIPTOR_SIZE;
+        }
+        header.put( pos, HEADER_TERMINATOR );
+        block.put( header.array() );
+    }
+
+    /**
+     * Write one record with the values in the order of the fields.
+     */
+    public void addRecord( Object[] values ) throws IOException {
+        record[0] = ' ';
+        int offset = 1;
+        for ( int i = 0; i < fields.length; i++ ){
+            Object value = i < values.length ? values[i] : null;
+            if ( isMemo( fields[i].getType() )){
+                value = writeMemo( fields[i], value );
+            }
+            encode( fields[i], value, offset );
+            offset += fields[i].getLength();
+        }
+        writeRecord();
+    }
+
+    /**
+     * Write one record reading the current row of the ResultSet. The columns should be in the order of the fields.
+     * Each column is read using the getter matching the field type, so no intermediate Object[] is created.
+     */
+    public void addRecord( ResultSet rs ) throws IOException, SQLException {
+        record[0] = ' ';
+        int offset = 1;
+        for ( int i = 0; i < fields.length; i++ ){
+            final DBFField field = fields[i];
+            final Object value;
+            switch ( field.getType() ){
+                case NUMERIC:
+                case FLOATING_POINT: value = rs.getBigDecimal( i + 1 ); break;
+                case DATE: value = rs.getDate( i + 1 ); break;
+                case LOGICAL: {
+                    final boolean bool = rs.getBoolean( i + 1 );
+                    value = rs.wasNull() ? null : bool;
+                    break;
+                }
+                case MEMO: value = writeMemo( field, rs.getCharacterStream( i + 1 )); break;
+                case GENERAL_OLE:
+                case PICTURE: value = writeMemo( field, rs.getBinaryStream( i + 1 )); break;
+                default: value = rs.getString( i + 1 ); break;
+            }
+            encode( field, value, offset );
+            offset += field.getLength();
+        }
+        writeRecord();
+    }
+
+    private void encode( DBFField field, Object value, int offset ){
+        final int length = field.getLength();
+        switch ( field.getType() ){
+            case NUMERIC:
+            case FLOATING_POINT:
+                if ( value == null ){
+                    Arrays.fill( record, offset, offset + length, (byte)' ' );
+                } else {
+                    putText( formatNumber( (Number)value, field.getDecimalCount() ), offset, length, true );
+                }
+                break;
+            case DATE:
+                if ( value == null ){
+                    Arrays.fill( record, offset, offset + length, (byte)' ' );
+                } else {
+                    calendar.setTime( (Date)value );
+                    putDigits( calendar.get( Calendar.YEAR ), offset, 4 );
+                    putDigits( calendar.get( Calendar.MONTH ) + 1, offset + 4, 2 );
+                    putDigits( calendar.get( Calendar.DAY_OF_MONTH ), offset + 6, 2 );
+                }
+                break;
+            case LOGICAL:
+                record[offset] = value instanceof Boolean ? ( (Boolean)value ? (byte)'T' : (byte)'F' ) : (byte)'?';
+                break;
+            case MEMO:
+            case GENERAL_OLE:
+            case PICTURE:
+                putText( value != null ? value.toString() : "", offset, length, true );
+                break;
+            default:
+                putText( value != null ? value.toString() : "", offset, length, false );
+                break;
+        }
+    }
+
+    /**
+     * Copy the value in the memo file. Text is read as a Reader, binary values as an InputStream, and both are closed.
+     * @return the first block of the value, or null if the value is null.
+     */
+    private Integer writeMemo( DBFField field, Object value ) throws IOException {
+        try {
+            if ( value instanceof Clob ){
+                value = ((Clob)value).getCharacterStream();
+            } else if ( value instanceof Blob ){
+                value = ((Blob)value).getBinaryStream();
+            } else if ( value instanceof byte[] ){
+                value = new ByteArrayInputStream( (byte[])value );
+            } else if ( value != null && !( value instanceof Reader ) && !( value instanceof InputStream )){
+                value = new StringReader( value.toString() );
+            }
+        } catch ( SQLException ex ){
+            throw new IOException( "Cannot read the value of " + field.getName(), ex );
+        }
+        if ( value instanceof Reader ){
+            try ( Reader reader = (Reader)value ){
+                return memoWriter.writeText( reader );
+            }
+        } else if ( value instanceof InputStream ){
+            try ( InputStream in = (InputStream)value ){
+                return memoWriter.writeBinary( in, field.getType() == DBFDataType.PICTURE ? DbfMemoWriter.PICTURE_BLOCK : DbfMemoWriter.OBJECT_BLOCK );
+            }
+        }
+        return null;
+    }
+
+    private static String formatNumber( Number value, int decimalCount ){
+        final BigDecimal decimal;
+        if ( value instanceof BigDecimal ){
+            decimal = (BigDecimal)value;
+        } else if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte ){
+            decimal = BigDecimal.valueOf( value.longValue() );
+        } else {
+            decimal = new BigDecimal( value.toString() );
+        }
+        return decimal.setScale( decimalCount, RoundingMode.HALF_EVEN ).toPlainString();
+    }
+
+    /**
+     * Text longer than the field is cut at the end, like DBFWriter does. Numbers are aligned right.
+     */
+    private void putText( String text, int offset, int length, boolean alignRight ){
+        byte[] bytes = text.getBytes( charset );
+        while ( bytes.length > length && !text.isEmpty() ){
+            text = text.substring( 0, text.length() - 1 );
+            bytes = text.getBytes( charset );
+        }
+        Arrays.fill( record, offset, offset + length, (byte)' ' );
+        System.arraycopy( bytes, 0, record, alignRight ? offset + length - bytes.length : offset, bytes.length );
+    }
+
+    private void putDigits( int value, int offset, int digits ){
+        for ( int i = digits - 1; i >= 0; i-- ){
+            record[offset + i] = (byte)( '0' + value % 10 );
+            value /= 10;
+        }
+    }
+
+    private void writeRecord() throws IOException {
+        if ( block.remaining() < recordLength ){
+            flush();
+        }
+        block.put( record );
+        recordCount++;
+    }
+
+    private void flush() throws IOException {
+        ((Buffer)block).flip();
+        while ( block.hasRemaining() ){
+            channel.write( block );
+        }
+        ((Buffer)block).clear();
+    }
+
+    public int getRecordCount(){
+        return recordCount;
+    }
+
+    /**
+     * Write the end of file marker and the record count, then replace the target file.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( closed ){
+            return;
+        }
+        closed = true;
+        try {
+            if ( !block.hasRemaining() ){
+                flush();
+            }
+            block.put( END_OF_FILE );
+            flush();
+            final ByteBuffer count = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN ).putInt( 0, recordCount );
+            channel.write( count, 4 );
+            channel.force( true );
+            channel.close();
+            if ( memoWriter != null ){
+                memoWriter.finish();
+            }
+            try {
+                Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException ex ){
+                Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+            moved = true;
+            if ( memoWriter != null ){
+                try {
+                    memoWriter.moveToTarget();
+                } catch ( IOException ex ){
+                    throw new IOException( "The file " + file + " was written, but its memo file could not be replaced", ex );
+                }
+                deleteOtherMemoFiles();
+            }
+        } catch ( IOException | RuntimeException ex ){
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Discard the written records. The target files are not modified. Does nothing after a successful close().
+     */
+    public void abort(){
+        closed = true;
+        if ( !moved ){
+            try {
+                channel.close();
+            } catch ( IOException ignore ){
+            }
+            tempFile.delete();
+        }
+        if ( memoWriter != null ){
+            memoWriter.abort();
+        }
+    }
+
+    /**
+     * A .dbt file with the same name, for example copied before by 'save dbf changes to', would be read instead of the .fpt file.
+     */
+    private void deleteOtherMemoFiles(){
+        final File memoFile = getMemoFile( file );
+        final String baseName = memoFile.getName().substring( 0, memoFile.getName().length() - ".fpt".length() );
+        for ( String extension : new String[]{ ".dbt", ".DBT" } ){
+            new File( memoFile.getParentFile(), baseName + extension ).delete();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.dbschema.xbase.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Identifies the version of a DBF file loaded in H2. The fingerprints are stored in the H2 cache database,
+ * so after a restart we reload only the DBF files which changed since the last load.
+ * The layout hash ( header without record count and update date ) and the hash of the last loaded records tell if a changed
+ * file only got new records appended, so we can load only the new records. The records hash is computed by the loader
+ * from the memory-mapped file it loads ( DbfLoaderInH2.hashRecords() ), so the file is not read a second time.
+ * Only the last records, about TAIL_HASH_SIZE bytes, are hashed: checking an append reads only these records, not the
+ * whole file. Older records changed in place together with an append are not detected, use 'reload dbf table' for them.
+ * The size and modification time of the memo file are compared too, as memo values can change without changing the DBF file.
+ */
+public class DbfFingerprint {
+
+    public static final String META_FILES_TABLE_NAME = "dbs_meta_files";
+
+    private static final int DBF_HEADER_SIZE = 32;
+    private static final int MAX_HEADER_SIZE = 0xFFFF;
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+    /**
+     * Minimal size of the last records included in the records hash. At least one record is hashed.
+     */
+    public static final int TAIL_HASH_SIZE = 1 << 16;
+
+    public final String filePath;
+    public final long fileSize;
+    public final long lastModified;
+    public final int recordCount;
+    public final int lastUpdate;
+    public final long headerHash;
+    public final long layoutHash;
+    /**
+     * Hash of the last records ( see getTailStart() ), including the deleted flags. 0 if not computed.
+     */
+    private long recordsHash;
+    /**
+     * Size and modification time of the .dbt or .fpt memo file, -1 if there is no memo file.
+     */
+    public final long memoSize;
+    public final long memoModified;
+    private final int headerLength;
+    private final int recordLength;
+    /**
+     * Charset used to read the file. Not part of the fingerprint.
+     */
+    public String charset;
+
+    DbfFingerprint(String filePath, long fileSize, long lastModified, int recordCount, int lastUpdate, long headerHash,
+                   long layoutHash, long recordsHash, long memoSize, long memoModified, int headerLength, int recordLength ){
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.recordCount = recordCount;
+        this.lastUpdate = lastUpdate;
+        this.headerHash = headerHash;
+        this.layoutHash = layoutHash;
+        this.recordsHash = recordsHash;
+        this.memoSize = memoSize;
+        this.memoModified = memoModified;
+        this.headerLength = headerLength;
+        this.recordLength = recordLength;
+    }
+
+    /**
+     * Read the fingerprint from the file size, modification time and the DBF header.
+     * The header contains the record count, the last update date (YYMMDD) and the field descriptors.
+     */
+    public static DbfFingerprint read( File file ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ){
+            final byte[] header = new byte[DBF_HEADER_SIZE];
+            raf.readFully( header );
+            final int lastUpdate = ( 1900 + ( header[1] & 0xFF )) * 10000 + ( header[2] & 0xFF ) * 100 + ( header[3] & 0xFF );
+            final int recordCount = ( header[4] & 0xFF ) | ( header[5] & 0xFF ) << 8 | ( header[6] & 0xFF ) << 16 | ( header[7] & 0xFF ) << 24;
+            final int headerLength = Math.min( ( header[8] & 0xFF ) | ( header[9] & 0xFF ) << 8, MAX_HEADER_SIZE );
+            final int recordLength = ( header[10] & 0xFF ) | ( header[11] & 0xFF ) << 8;
+            final CRC32 crc = new CRC32();
+            crc.update( header );
+            final CRC32 layoutCrc = new CRC32();
+            layoutCrc.update( header, 0, 1 );
+            layoutCrc.update( header, 8, DBF_HEADER_SIZE - 8 );
+            if ( headerLength > DBF_HEADER_SIZE ){
+                final byte[] fields = new byte[(int)Math.min( headerLength - DBF_HEADER_SIZE, raf.length() - DBF_HEADER_SIZE )];
+                raf.readFully( fields );
+                crc.update( fields );
+                layoutCrc.update( fields );
+            }
+            final File memoFile = DbfMemoReader.findMemoFile( file );
+            return new DbfFingerprint( file.getAbsolutePath(), file.length(), file.lastModified(), recordCount, lastUpdate, crc.getValue(),
+                    layoutCrc.getValue(), 0, memoFile != null ? memoFile.length() : -1, memoFile != null ? memoFile.lastModified() : -1, headerLength, recordLength );
+        }
+    }
+
+    /**
+     * First record included in the records hash of a file with recordCount records.
+     */
+    public static int getTailStart( int recordCount, int recordLength ){
+        return Math.max( 0, recordCount - Math.max( 1, TAIL_HASH_SIZE / Math.max( 1, recordLength )));
+    }
+
+    /**
+     * Set the hash of the records from getTailStart() to hashedRecordCount, computed while loading the file.
+     * Ignored if the file had another record count when this fingerprint was read: the hash stays 0, so the
+     * next change of the file loads it again.
+     */
+    void setRecordsHash( int hashedRecordCount, long recordsHash ){
+        this.recordsHash = hashedRecordCount == recordCount ? recordsHash : 0;
+    }
+
+    /**
+     * Add the records from fromRecord (inclusive) to toRecord (exclusive) to the hash.
+     * @return false if the file is shorter than the records.
+     */
+    private boolean updateRecordsHash( CRC32 crc, RandomAccessFile raf, int fromRecord, int toRecord ) throws IOException {
+        if ( recordLength <= 0 || headerLength + (long)toRecord * recordLength > raf.length() ){
+            return false;
+        }
+        raf.seek( headerLength + (long)fromRecord * recordLength );
+        final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        long remaining = (long)( toRecord - fromRecord ) * recordLength;
+        while ( remaining > 0 ){
+            final int length = (int)Math.min( buffer.length, remaining );
+            raf.readFully( buffer, 0, length );
+            crc.update( buffer, 0, length );
+            remaining -= length;
+        }
+        return true;
+    }
+
+    /**
+     * True if the file has the same layout as when the stored fingerprint was taken, and only new records were
+     * appended: the last stored records, with their deleted flags, have the same hash. Reads only these records.
+     * The records hash of this fingerprint is set after the new records are loaded, see DbfLoaderInH2.appendFile().
+     */
+    public boolean isAppendedTo( DbfFingerprint stored ) throws IOException {
+        if ( stored == null || !filePath.equals( stored.filePath ) || layoutHash != stored.layoutHash || stored.layoutHash == 0 ||
+                recordCount <= stored.recordCount || stored.recordCount <= 0 || fileSize < stored.fileSize || stored.recordsHash == 0 ){
+            return false;
+        }
+        try ( RandomAccessFile raf = new RandomAccessFile( filePath, "r" ) ){
+            final CRC32 crc = new CRC32();
+            return updateRecordsHash( crc, raf, getTailStart( stored.recordCount, recordLength ), stored.recordCount ) &&
+                    crc.getValue() == stored.recordsHash;
+        }
+    }
+
+    private static final String CREATE_META_FILES_TABLE =
+            "create table if not exists " + META_FILES_TABLE_NAME + "( " +
+                    "table_name varchar(2000) not null primary key, " +
+                    "file_path varchar(4000) not null, " +
+                    "file_size bigint not null, " +
+                    "last_modified bigint not null, " +
+                    "record_count int not null, " +
+                    "last_update int not null, " +
+                    "header_hash bigint not null, " +
+                    "charset varchar(120), " +
+                    "layout_hash bigint default 0 not null, " +
+                    "records_hash bigint default 0 not null, " +
+                    "memo_size bigint default -1 not null, " +
+                    "memo_modified bigint default -1 not null )";
+
+    public static void createMetaTable( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( CREATE_META_FILES_TABLE );
+            // Cache databases created by older driver versions. Records hashes of the first and last record only, or of all
+            // the records of files larger than TAIL_HASH_SIZE, do not match the hash of the last records, so these tables
+            // are reloaded once when records are appended.
+            st.execute( "alter table " + META_FILES_TABLE_NAME + " add column if not exists layout_hash bigint default 0 not null" );
+            st.execute( "alter table " + META_FILES_TABLE_NAME + " add column if not exists records_hash bigint default 0 not null" );
+            // Tables with memo files loaded by older versions have no memo values, they are reloaded
+            st.execute( "alter table " + META_FILES_TABLE_NAME + " add column if not exists memo_size bigint default -1 not null" );
+            st.execute( "alter table " + META_FILES_TABLE_NAME + " add column if not exists memo_modified bigint default -1 not null" );
+        }
+        h2Connection.commit();
+    }
+
+    /**
+     * @return the stored fingerprints by table name.
+     */
+    public static Map<String,DbfFingerprint> loadAll( Connection h2Connection ) throws SQLException {
+        final Map<String,DbfFingerprint> fingerprints = new HashMap<>();
+        try ( Statement st = h2Connection.createStatement();
+              ResultSet rs = st.executeQuery("select table_name, file_path, file_size, last_modified, record_count, last_update, header_hash, charset, layout_hash, records_hash, memo_size, memo_modified from " + META_FILES_TABLE_NAME ) ){
+            while ( rs.next() ){
+                final DbfFingerprint fingerprint = new DbfFingerprint( rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getInt(5), rs.getInt(6), rs.getLong(7),
+                        rs.getLong(9), rs.getLong(10), rs.getLong(11), rs.getLong(12), 0, 0 );
+                fingerprint.charset = rs.getString(8);
+                fingerprints.put( rs.getString(1), fingerprint );
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return the stored fingerprint of the table, or null.
+     */
+    public static DbfFingerprint load( Connection h2Connection, String tableName ) throws SQLException {
+        return loadAll( h2Connection ).get( tableName );
+    }
+
+    public void save( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("merge into " + META_FILES_TABLE_NAME +
+                "( table_name, file_path, file_size, last_modified, record_count, last_update, header_hash, charset, layout_hash, records_hash, memo_size, memo_modified ) key( table_name ) values ( ?,?,?,?,?,?,?,?,?,?,?,? )") ){
+            st.setString( 1, tableName );
+            st.setString( 2, filePath );
+            st.setLong( 3, fileSize );
+            st.setLong( 4, lastModified );
+            st.setInt( 5, recordCount );
+            st.setInt( 6, lastUpdate );
+            st.setLong( 7, headerHash );
+            st.setString( 8, charset );
+            st.setLong( 9, layoutHash );
+            st.setLong( 10, recordsHash );
+            st.setLong( 11, memoSize );
+            st.setLong( 12, memoModified );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    public static void delete( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("delete from " + META_FILES_TABLE_NAME + " where table_name=?") ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+        if ( !( obj instanceof DbfFingerprint )) return false;
+        final DbfFingerprint other = (DbfFingerprint)obj;
+        return filePath.equals( other.filePath ) && fileSize == other.fileSize && lastModified == other.lastModified &&
+                recordCount == other.recordCount && lastUpdate == other.lastUpdate && headerHash == other.headerHash &&
+                memoSize == other.memoSize && memoModified == other.memoModified;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode( headerHash ) ^ Long.hashCode( fileSize );
+    }
+
+    @Override
+    public String toString() {
+        return filePath + " size=" + fileSize + " modified=" + lastModified + " records=" + recordCount + " updated=" + lastUpdate;
+    }
+}
@@ -0,0 +1,294 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.DbfJdbcDriver;
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Load all DBF files from a folder and its sub-folders in H2.
+ * With more than one thread, each table is loaded by a worker using its own DBFReader and its own H2 session.
+ * A failing table does not stop the import of the others: all failures are reported at the end in one SQLException.
+ * We store a fingerprint of each loaded file in H2, and reload only the files with a changed fingerprint.
+ * Tables of DBF files which no longer exist are dropped.
+ */
+public class DbfFolderLoader {
+
+    private final String h2JdbcUrl;
+    private final int commitInterval;
+    private final int threads;
+    private DbfLazyLoader lazyLoader;
+    private boolean direct;
+    private String types = DataTypeUtil.TYPES_STANDARD;
+    private String charset;
+
+    /**
+     * @param h2JdbcUrl used by the workers to open their own H2 sessions.
+     * @param threads number of workers. 1 loads the tables one after another on the given connection, 0 uses one worker for each CPU core.
+     */
+    public DbfFolderLoader( String h2JdbcUrl, int commitInterval, int threads ){
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.commitInterval = commitInterval;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * With a lazy loader, the changed tables are only created in H2 and registered in the lazy loader.
+     */
+    public void setLazyLoader( DbfLazyLoader lazyLoader ){
+        this.lazyLoader = lazyLoader;
+    }
+
+    /**
+     * Create the tables using the DbfTableEngine, which reads the records directly from the DBF files. No data is copied in H2.
+     */
+    public void setDirect( boolean direct ){
+        this.direct = direct;
+    }
+
+    /**
+     * The mapping of DBF fields to H2 column types, see DataTypeUtil.getH2Type(). Default standard.
+     */
+    public void setTypes( String types ){
+        this.types = types;
+    }
+
+    public void transferFolder( File rootFolder, Connection h2Connection ) throws SQLException {
+        final List<File> files = new ArrayList<>();
+        collectFiles( rootFolder, files );
+        // The folder is loaded once, when the database is opened ( see DbfLoadCoordinator ), the reloads keep the log
+        DbfLoaderInH2.beginBulkLoad( h2Connection );
+        try {
+            DbfCatalog.createMetaTables( h2Connection );
+            DbfFingerprint.createMetaTable( h2Connection );
+            DbfDirtyTables.createMetaTable( h2Connection );
+            DbfIndexAdvisor.createMetaTable( h2Connection );
+            DbfLoadStatus.createMetaTable( h2Connection );
+            final List<File> changedFiles = getChangedFiles( rootFolder, files, h2Connection );
+            LOGGER.log(Level.INFO, "Found " + files.size() + " DBF files, " + changedFiles.size() + " changed since the last load");
+            final List<SQLException> failures = lazyLoader != null || direct ?
+                    transferDefinitions( rootFolder, changedFiles, h2Connection ) :
+                    threads > 1 && changedFiles.size() > 1 ?
+                    transferParallel( rootFolder, changedFiles ) :
+                    transferSequential( rootFolder, changedFiles, h2Connection );
+            if ( !failures.isEmpty() ){
+                final StringBuilder sb = new StringBuilder("Failed to load ").append( failures.size() ).append(" DBF file(s):");
+                for ( SQLException failure : failures ){
+                    sb.append("\n").append( failure.getLocalizedMessage() );
+                }
+                final SQLException ex = new SQLException( sb.toString(), failures.get(0) );
+                for ( SQLException failure : failures ){
+                    ex.setNextException( failure );
+                }
+                throw ex;
+            }
+        } finally {
+            DbfLoaderInH2.endBulkLoad( h2Connection );
+        }
+    }
+
+    /**
+     * Compare the DBF files with the fingerprints stored at the last load. Drop the tables of removed files.
+     * Files where records were only appended get the new records inserted in the existing table.
+     * @return the files which have to be loaded.
+     */
+    private List<File> getChangedFiles( File rootFolder, List<File> files, Connection h2Connection ) throws SQLException {
+        final Map<String,DbfFingerprint> storedFingerprints = DbfFingerprint.loadAll( h2Connection );
+        final Set<String> h2Tables = new HashSet<>();
+        try ( ResultSet rs = h2Connection.getMetaData().getTables( null, null, null, new String[]{ direct ? "EXTERNAL" : "TABLE" } ) ){
+            while ( rs.next() ){
+                h2Tables.add( rs.getString(3) );
+            }
+        }
+        final Set<String> dirtyTables = DbfDirtyTables.loadDirtyTables( h2Connection );
+        final List<File> changedFiles = new ArrayList<>();
+        for ( File file : files ){
+            final String tableName = new Table( rootFolder, file ).name;
+            final DbfFingerprint storedFingerprint = storedFingerprints.remove( tableName );
+            DbfFingerprint fingerprint = null;
+            try {
+                fingerprint = DbfFingerprint.read( file );
+            } catch ( IOException ex ){
+                LOGGER.log(Level.INFO, "Cannot read fingerprint of " + file, ex );
+            }
+            if ( fingerprint != null && fingerprint.equals( storedFingerprint ) && h2Tables.contains( tableName )){
+                setCharset( storedFingerprint.charset );
+                DbfJdbcDriver.getMetrics().tableCacheChecked( tableName, true );
+            } else if ( fingerprint != null && storedFingerprint != null && h2Tables.contains( tableName ) && !direct
+                    && !dirtyTables.contains( tableName ) && appendFile( rootFolder, file, storedFingerprint, h2Connection )){
+                setCharset( storedFingerprint.charset );
+                DbfJdbcDriver.getMetrics().tableCacheChecked( tableName, true );
+            } else {
+                changedFiles.add( file );
+                DbfJdbcDriver.getMetrics().tableCacheChecked( tableName, false );
+            }
+        }
+        for ( String removedTable : storedFingerprints.keySet() ){
+            LOGGER.log(Level.INFO, "Drop table '" + removedTable + "', the DBF file was removed");
+            DbfLoaderInH2.dropTable( h2Connection, removedTable );
+            DbfFingerprint.delete( h2Connection, removedTable );
+            DbfDirtyTables.markClean( h2Connection, removedTable );
+            DbfLoadStatus.delete( h2Connection, removedTable );
+        }
+        return changedFiles;
+    }
+
+    /**
+     * Insert the records appended to the DBF file since the last load.
+     * @return false if the file changed otherwise, or the append failed. Then the file is fully loaded.
+     */
+    private boolean appendFile( File rootFolder, File file, DbfFingerprint storedFingerprint, Connection h2Connection ){
+        try {
+            return new DbfLoaderInH2( commitInterval, types ).appendFile( new Table( rootFolder, file ), file, storedFingerprint, h2Connection );
+        } catch ( Exception ex ){
+            LOGGER.log(Level.INFO, "Cannot append new records of " + file + ", the file is loaded again", ex );
+            return false;
+        }
+    }
+
+    static void collectFiles( File folder, List<File> files ){
+        final File[] children = folder.listFiles();
+        if ( children != null ) {
+            for (File file : children) {
+                if (file.isFile() && file.getName().toLowerCase().endsWith(".dbf")) {
+                    files.add( file );
+                } else if ( file.isDirectory() ){
+                    collectFiles( file, files );
+                }
+            }
+        }
+    }
+
+    private List<SQLException> transferSequential( File rootFolder, List<File> files, Connection h2Connection ){
+        final List<SQLException> failures = new ArrayList<>();
+        final DbfLoaderInH2 loader = new DbfLoaderInH2( commitInterval, types );
+        for ( File file : files ){
+            try {
+                setCharset( transferFile( rootFolder, file, loader, h2Connection ));
+            } catch ( Exception ex ){
+                failures.add( toSQLException( file, ex ));
+            }
+        }
+        return failures;
+    }
+
+    private List<SQLException> transferDefinitions( File rootFolder, List<File> files, Connection h2Connection ){
+        final List<SQLException> failures = new ArrayList<>();
+        final DbfLoaderInH2 loader = new DbfLoaderInH2( commitInterval, types );
+        for ( File file : files ){
+            final Table table = new Table(rootFolder, file);
+            try ( DBFReader reader = new DBFReader(new FileInputStream(file)) ){
+                final DbfFingerprint fingerprint = DbfFingerprint.read( file );
+                DbfFingerprint.delete( h2Connection, table.name );
+                if ( direct ){
+                    loader.transferDirectDefinition( table, reader, file, h2Connection );
+                    fingerprint.charset = loader.getCharset();
+                    fingerprint.save( h2Connection, table.name );
+                } else {
+                    loader.transferDefinition( table, reader, h2Connection );
+                    lazyLoader.register( table, file, fingerprint );
+                    DbfLoadStatus.pending( h2Connection, table.name, fingerprint.recordCount );
+                }
+                setCharset( loader.getCharset() );
+            } catch ( Exception ex ){
+                failures.add( toSQLException( file, ex ));
+            }
+        }
+        return failures;
+    }
+
+    private List<SQLException> transferParallel( File rootFolder, List<File> files ) throws SQLException {
+        LOGGER.log(Level.INFO, "Load " + files.size() + " DBF files using " + threads + " threads");
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, files.size() ), runnable -> {
+            Thread thread = new Thread( runnable, "dbf-import-" + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        final List<Future<String>> futures = new ArrayList<>();
+        for ( File file : files ){
+            futures.add( executor.submit( () -> {
+                try ( Connection workerConnection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+                    return transferFile( rootFolder, file, new DbfLoaderInH2( commitInterval, types ), workerConnection );
+                }
+            }));
+        }
+        executor.shutdown();
+        final List<SQLException> failures = new ArrayList<>();
+        try {
+            for ( int i = 0; i < files.size(); i++ ){
+                try {
+                    setCharset( futures.get(i).get() );
+                } catch ( ExecutionException ex ){
+                    failures.add( toSQLException( files.get(i), ex.getCause() ));
+                }
+            }
+        } catch ( InterruptedException ex ){
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new SQLException("DBF import interrupted", ex );
+        }
+        return failures;
+    }
+
+    private String transferFile( File rootFolder, File file, DbfLoaderInH2 loader, Connection h2Connection ) throws Exception {
+        final Timestamp started = new Timestamp( System.currentTimeMillis() );
+        final Table table = new Table(rootFolder, file);
+        final DbfFingerprint fingerprint = DbfFingerprint.read( file );
+        DbfFingerprint.delete( h2Connection, table.name );
+        try ( DBFReader reader = new DBFReader(new FileInputStream(file)) ){
+            loader.transferDefinition( table, reader, h2Connection );
+        }
+        loader.transferData( table, file, h2Connection );
+        loader.transferIndexes( table, file, h2Connection );
+        DbfDirtyTables.track( h2Connection, table.name );
+        fingerprint.charset = loader.getCharset();
+        loader.hashRecords( fingerprint );
+        fingerprint.save( h2Connection, table.name );
+        DbfLoadStatus.loaded( h2Connection, table.name, fingerprint.recordCount, started );
+        return loader.getCharset();
+    }
+
+    private void setCharset( String charset ){
+        if ( this.charset == null ){
+            this.charset = charset;
+        }
+    }
+
+    private static SQLException toSQLException( File file, Throwable ex ){
+        LOGGER.log(Level.SEVERE, "Error loading " + file, ex );
+        return new SQLException( file + ": " + ( ex.getLocalizedMessage() != null ? ex.getLocalizedMessage() : ex.toString() ), ex );
+    }
+
+    /**
+     * Charset of the first DBF file which has one.
+     */
+    public String getCharset(){
+        return charset;
+    }
+}
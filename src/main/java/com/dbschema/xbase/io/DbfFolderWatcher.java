@@ -0,0 +1,200 @@
+package com.dbschema.xbase.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Used with watch=true. Watch the DBF folder and its sub-folders, and reload the tables of the changed DBF files in the background.
+ * Changes of the memo and index files reload the table of the DBF file with the same name.
+ * The events are debounced: a file is reloaded after no event was received for it during the delay.
+ * The tables are reloaded by the DbfTableReloader. Tables modified in H2 since they were loaded are not reloaded, so the changes are not lost.
+ */
+public class DbfFolderWatcher implements Closeable {
+
+    public static final int DEFAULT_DELAY = 1000;
+    private static final long POLL_INTERVAL = 100;
+
+    private final File rootFolder;
+    private final DbfTableReloader reloader;
+    private final int delay;
+    private final WatchService watchService;
+    private final Map<WatchKey,Path> watchedFolders = new HashMap<>();
+    private final Map<File,Long> pendingFiles = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param swapLock the tables are replaced holding the write lock. Statements hold the read lock while they are executed.
+     * @param delay milliseconds without events before a changed file is reloaded.
+     */
+    public DbfFolderWatcher( File rootFolder, String h2JdbcUrl, int commitInterval, ReadWriteLock swapLock, int delay ) throws IOException {
+        this.rootFolder = rootFolder;
+        this.reloader = new DbfTableReloader( rootFolder, h2JdbcUrl, commitInterval, swapLock );
+        this.delay = Math.max( 0, delay );
+        this.watchService = rootFolder.toPath().getFileSystem().newWatchService();
+        registerFolder( rootFolder, false );
+        this.thread = new Thread( this::run, "dbf-watch-" + rootFolder.getName() );
+        this.thread.setDaemon( true );
+    }
+
+    public void start(){
+        thread.start();
+    }
+
+    public void setLazyLoader( DbfLazyLoader lazyLoader ){
+        reloader.setLazyLoader( lazyLoader );
+    }
+
+    public void setTypes( String types ){
+        reloader.setTypes( types );
+    }
+
+    /**
+     * @param scheduleFiles schedule the DBF files of the folder, for folders created after the watcher was started.
+     */
+    private void registerFolder( File folder, boolean scheduleFiles ) throws IOException {
+        final WatchKey key = folder.toPath().register( watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+        watchedFolders.put( key, folder.toPath() );
+        final File[] children = folder.listFiles();
+        if ( children != null ){
+            for ( File child : children ){
+                if ( child.isDirectory() ){
+                    registerFolder( child, scheduleFiles );
+                } else if ( scheduleFiles && isDbfFile( child )){
+                    schedule( child );
+                }
+            }
+        }
+    }
+
+    private void run(){
+        while ( !closed ){
+            try {
+                final WatchKey key = watchService.poll( POLL_INTERVAL, TimeUnit.MILLISECONDS );
+                if ( key != null ){
+                    processEvents( key );
+                }
+                for ( File file : takeQuietFiles() ){
+                    reload( file );
+                }
+            } catch ( InterruptedException | ClosedWatchServiceException ex ){
+                break;
+            } catch ( Throwable ex ){
+                LOGGER.log(Level.SEVERE, "Error in DBF folder watcher", ex );
+            }
+        }
+    }
+
+    private void processEvents( WatchKey key ) throws IOException {
+        final Path folder = watchedFolders.get( key );
+        for ( WatchEvent<?> event : key.pollEvents() ){
+            if ( event.kind() == StandardWatchEventKinds.OVERFLOW ){
+                // Events were lost, check all files
+                registerFolder( rootFolder, true );
+                continue;
+            }
+            if ( folder == null ) continue;
+            final File file = folder.resolve( (Path)event.context() ).toFile();
+            if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory() ){
+                registerFolder( file, true );
+            } else {
+                final File dbfFile = getDbfFile( file );
+                if ( dbfFile != null ){
+                    schedule( dbfFile );
+                }
+            }
+        }
+        if ( !key.reset() ){
+            watchedFolders.remove( key );
+        }
+    }
+
+    private static boolean isDbfFile( File file ){
+        return file.getName().toLowerCase( Locale.ROOT ).endsWith(".dbf");
+    }
+
+    /**
+     * @return the DBF file of a DBF, memo or compound index file.
+     */
+    private static File getDbfFile( File file ){
+        final String name = file.getName();
+        final String lowerName = name.toLowerCase( Locale.ROOT );
+        if ( lowerName.endsWith(".dbf") ){
+            return file;
+        }
+        if ( lowerName.endsWith(".dbt") || lowerName.endsWith(".fpt") || lowerName.endsWith(".cdx") || lowerName.endsWith(".mdx") ){
+            final String baseName = name.substring( 0, name.length() - 4 );
+            final File[] siblings = file.getParentFile().listFiles();
+            if ( siblings != null ){
+                for ( File sibling : siblings ){
+                    if ( isDbfFile( sibling ) && sibling.getName().substring( 0, sibling.getName().length() - 4 ).equalsIgnoreCase( baseName )){
+                        return sibling;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized void schedule( File dbfFile ){
+        pendingFiles.put( dbfFile, System.currentTimeMillis() );
+    }
+
+    private synchronized List<File> takeQuietFiles(){
+        final List<File> files = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        for ( Iterator<Map.Entry<File,Long>> it = pendingFiles.entrySet().iterator(); it.hasNext(); ){
+            final Map.Entry<File,Long> entry = it.next();
+            if ( now - entry.getValue() >= delay ){
+                files.add( entry.getKey() );
+                it.remove();
+            }
+        }
+        return files;
+    }
+
+    private void reload( File file ){
+        try {
+            reloader.reload( file, false );
+        } catch ( Exception ex ){
+            LOGGER.log(Level.WARNING, "Error reloading " + file, ex );
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch ( IOException ignore ){
+        }
+        // The thread is not interrupted, this would close the H2 file channels during a reload
+        try {
+            thread.join( 10000 );
+        } catch ( InterruptedException ex ){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFField;
+import org.h2.command.Prepared;
+import org.h2.command.dml.Select;
+import org.h2.engine.Session;
+import org.h2.expression.condition.Comparison;
+import org.h2.index.Index;
+import org.h2.index.IndexCondition;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.table.Column;
+import org.h2.table.TableFilter;
+import org.h2.table.TableType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Suggest H2 indexes for slow statements. The slow statements are taken from the H2 query statistics, or reported by
+ * DbfStatement. Each statement is prepared again, and for each table read with a table scan we take the columns
+ * of the equality and range conditions H2 could have used with an index.
+ * The advice is stored in dbs_meta_index_advice. The indexes created from the advice are created again when the table is reloaded.
+ */
+public class DbfIndexAdvisor {
+
+    public static final String META_ADVICE_TABLE_NAME = "dbs_meta_index_advice";
+    public static final String ADVISOR_OFF = "off", ADVISOR_ADVICE = "advice", ADVISOR_AUTO = "auto";
+    public static final int DEFAULT_MIN_TIME = 100;
+    private static final int MAX_STATEMENTS = 100;
+    private final static char QUOTE_CHAR = '"';
+    private static final String INDEX_SUFFIX = "_dbs_advice";
+
+    private static final String CREATE_META_ADVICE_TABLE =
+            "create table if not exists " + META_ADVICE_TABLE_NAME + "( " +
+                    "table_name varchar(2000) not null, " +
+                    "column_names varchar(4000) not null, " +
+                    "index_name varchar(4000) not null, " +
+                    "sample_sql varchar(8000), " +
+                    "executions bigint not null, " +
+                    "cumulative_time double not null, " +
+                    "created boolean not null, " +
+                    "primary key (table_name, column_names))";
+
+    private final String h2JdbcUrl;
+    private final boolean auto;
+    private final int minTime;
+
+    /**
+     * @param auto create the advised indexes, otherwise only store the advice.
+     * @param minTime statements faster than this number of milliseconds are ignored.
+     */
+    public DbfIndexAdvisor( String h2JdbcUrl, boolean auto, int minTime ){
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.auto = auto;
+        this.minTime = minTime;
+    }
+
+    public static void createMetaTable( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( CREATE_META_ADVICE_TABLE );
+        }
+        h2Connection.commit();
+    }
+
+    public static void enableStatistics( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute("SET QUERY_STATISTICS TRUE");
+        }
+    }
+
+    public boolean isSlow( long elapsed ){
+        return elapsed >= minTime;
+    }
+
+    /**
+     * Analyze a statement reported as slow by DbfStatement.
+     */
+    public void adviseStatement( JdbcConnection h2Connection, String sql, long elapsed ) throws SQLException {
+        final List<Advice> adviceList = new ArrayList<>();
+        analyze( h2Connection, sql, 1, elapsed, adviceList );
+        store( adviceList, true );
+    }
+
+    /**
+     * Analyze the slowest statements from the H2 query statistics.
+     */
+    public void adviseFromStatistics( JdbcConnection h2Connection ) throws SQLException {
+        final List<Advice> adviceList = new ArrayList<>();
+        try ( PreparedStatement st = h2Connection.prepareStatement("select SQL_STATEMENT, EXECUTION_COUNT, CUMULATIVE_EXECUTION_TIME " +
+                "from INFORMATION_SCHEMA.QUERY_STATISTICS where AVERAGE_EXECUTION_TIME >= ? order by CUMULATIVE_EXECUTION_TIME desc limit " + MAX_STATEMENTS )){
+            st.setInt( 1, minTime );
+            try ( ResultSet rs = st.executeQuery() ){
+                while ( rs.next() ){
+                    analyze( h2Connection, rs.getString(1), rs.getLong(2), rs.getDouble(3), adviceList );
+                }
+            }
+        }
+        store( adviceList, false );
+    }
+
+    private static class Advice {
+        final String tableName;
+        final List<String> columns;
+        final String sql;
+        long executions;
+        double time;
+
+        Advice( String tableName, List<String> columns, String sql, long executions, double time ){
+            this.tableName = tableName;
+            this.columns = columns;
+            this.sql = sql;
+            this.executions = executions;
+            this.time = time;
+        }
+    }
+
+    private void analyze( JdbcConnection h2Connection, String sql, long executions, double time, List<Advice> adviceList ){
+        if ( sql == null || !sql.trim().toLowerCase().startsWith("select") ){
+            return;
+        }
+        try {
+            final Session session = (Session)h2Connection.getSession();
+            final Prepared prepared = session.prepare( sql );
+            if ( prepared instanceof Select ){
+                for ( TableFilter filter : ((Select)prepared).getTopFilters() ){
+                    analyze( session, (Select)prepared, filter, sql, executions, time, adviceList );
+                }
+            }
+        } catch ( Exception ex ){
+            LOGGER.log(Level.INFO, "Cannot analyze statement " + sql, ex );
+        }
+    }
+
+    private void analyze( Session session, Select select, TableFilter filter, String sql, long executions, double time, List<Advice> adviceList ){
+        for ( ; filter != null; filter = filter.getJoin() ){
+            if ( filter.getNestedJoin() != null ){
+                analyze( session, select, filter.getNestedJoin(), sql, executions, time, adviceList );
+            }
+            final org.h2.table.Table table = filter.getTable();
+            if ( table.getTableType() != TableType.TABLE || DataTypeUtil.isH2SystemTable( table.getName() ) ||
+                    filter.getIndex() == null || !filter.getIndex().getIndexType().isScan() ){
+                continue;
+            }
+            // After prepare() H2 keeps only the index conditions usable with the chosen index, so we create them again
+            final List<IndexCondition> conditions = filter.getIndexConditions();
+            final int chosenConditions = conditions.size();
+            if ( select.getCondition() != null && !filter.isJoinOuter() && !filter.isJoinOuterIndirect() ){
+                select.getCondition().createIndexConditions( session, filter );
+            }
+            if ( filter.getJoinCondition() != null ){
+                filter.getJoinCondition().createIndexConditions( session, filter );
+            }
+            final List<String> columns = new ArrayList<>();
+            String rangeColumn = null;
+            for ( IndexCondition condition : conditions.subList( chosenConditions, conditions.size() )){
+                final Column column = condition.getColumn();
+                if ( column == null ) continue;
+                switch ( condition.getCompareType() ){
+                    case Comparison.EQUAL:
+                    case Comparison.EQUAL_NULL_SAFE:
+                    case Comparison.IN_LIST:
+                    case Comparison.IN_QUERY:
+                        if ( !columns.contains( column.getName() )){
+                            columns.add( column.getName() );
+                        }
+                        break;
+                    case Comparison.BIGGER:
+                    case Comparison.BIGGER_EQUAL:
+                    case Comparison.SMALLER:
+                    case Comparison.SMALLER_EQUAL:
+                        if ( rangeColumn == null ){
+                            rangeColumn = column.getName();
+                        }
+                        break;
+                }
+            }
+            // Columns compared for equality first, then one range column
+            if ( rangeColumn != null && !columns.contains( rangeColumn )){
+                columns.add( rangeColumn );
+            }
+            if ( !columns.isEmpty() && !hasIndexOn( table, columns.get(0) )){
+                addAdvice( adviceList, new Advice( table.getName(), columns, sql, executions, time ));
+            }
+        }
+    }
+
+    /**
+     * Statements which need the same index sum their times. A statement counts once for each index.
+     */
+    private static void addAdvice( List<Advice> adviceList, Advice advice ){
+        for ( Advice existing : adviceList ){
+            if ( existing.tableName.equals( advice.tableName ) && existing.columns.equals( advice.columns )){
+                if ( !existing.sql.equals( advice.sql )){
+                    existing.executions += advice.executions;
+                    existing.time += advice.time;
+                }
+                return;
+            }
+        }
+        adviceList.add( advice );
+    }
+
+    private static boolean hasIndexOn( org.h2.table.Table table, String firstColumn ){
+        for ( Index index : table.getIndexes() ){
+            final Column[] columns = index.getColumns();
+            if ( !index.getIndexType().isScan() && columns.length > 0 && columns[0].getName().equals( firstColumn )){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge the advice in the meta table. The H2 query statistics are cumulated since the database was opened,
+     * so they replace the stored numbers if they are bigger. Statements reported by DbfStatement are added.
+     * With auto=true the indexes are created using a separate H2 session, so the transaction of the user is not committed.
+     */
+    private void store( List<Advice> adviceList, boolean add ) throws SQLException {
+        if ( adviceList.isEmpty() ){
+            return;
+        }
+        try ( Connection connection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+            for ( Advice advice : adviceList ){
+                final String columnNames = String.join( ",", advice.columns );
+                try ( PreparedStatement st = connection.prepareStatement("update " + META_ADVICE_TABLE_NAME + ( add ?
+                        " set executions=executions+?, cumulative_time=cumulative_time+?" :
+                        " set executions=greatest(executions,?), cumulative_time=greatest(cumulative_time,?)" ) +
+                        ", sample_sql=? where table_name=? and column_names=?") ){
+                    st.setLong( 1, advice.executions );
+                    st.setDouble( 2, advice.time );
+                    st.setString( 3, advice.sql );
+                    st.setString( 4, advice.tableName );
+                    st.setString( 5, columnNames );
+                    if ( st.executeUpdate() == 0 ){
+                        try ( PreparedStatement stInsert = connection.prepareStatement("insert into " + META_ADVICE_TABLE_NAME +
+                                "( table_name, column_names, index_name, sample_sql, executions, cumulative_time, created ) values ( ?,?,?,?,?,?,false )") ){
+                            stInsert.setString( 1, advice.tableName );
+                            stInsert.setString( 2, columnNames );
+                            stInsert.setString( 3, getIndexName( advice.tableName, columnNames ));
+                            stInsert.setString( 4, advice.sql );
+                            stInsert.setLong( 5, advice.executions );
+                            stInsert.setDouble( 6, advice.time );
+                            stInsert.execute();
+                        }
+                    }
+                }
+                connection.commit();
+                LOGGER.log(Level.INFO, "Index advice on '" + advice.tableName + "' ( " + columnNames + " ) for " + advice.sql );
+                if ( auto ){
+                    createIndex( connection, advice.tableName, columnNames );
+                }
+            }
+        }
+    }
+
+    private static void createIndex( Connection h2Connection, String tableName, String columnNames ) throws SQLException {
+        final StringBuilder createSb = new StringBuilder("create index if not exists ").append(QUOTE_CHAR).append( getIndexName( tableName, columnNames )).append(QUOTE_CHAR).append(" on ").append(QUOTE_CHAR).append(tableName).append(QUOTE_CHAR).append("(");
+        boolean appendComma = false;
+        for ( String column : columnNames.split(",") ){
+            if (appendComma) {
+                createSb.append(",");
+            }
+            createSb.append(QUOTE_CHAR).append(column).append(QUOTE_CHAR);
+            appendComma = true;
+        }
+        createSb.append(")");
+        LOGGER.log(Level.INFO, createSb.toString());
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( createSb.toString() );
+        } catch ( SQLException ex ){
+            LOGGER.log(Level.WARNING, "Cannot create advised index on '" + tableName + "' ( " + columnNames + " )", ex );
+            return;
+        }
+        try ( PreparedStatement st = h2Connection.prepareStatement("update " + META_ADVICE_TABLE_NAME + " set created=true where table_name=? and column_names=?") ){
+            st.setString( 1, tableName );
+            st.setString( 2, columnNames );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    private static String getIndexName( String tableName, String columnNames ){
+        return tableName + INDEX_SUFFIX + "_" + columnNames.replace( ',', '_' );
+    }
+
+    /**
+     * Create again the advised indexes of a table which was reloaded from the DBF file.
+     * Advice for columns which no longer exist is ignored.
+     */
+    public static void createAdvisedIndexes( Connection h2Connection, Table table ) throws SQLException {
+        final List<String> columnNamesList = new ArrayList<>();
+        try ( PreparedStatement st = h2Connection.prepareStatement("select column_names from " + META_ADVICE_TABLE_NAME + " where table_name=? and created=true") ){
+            st.setString( 1, table.name );
+            try ( ResultSet rs = st.executeQuery() ){
+                while ( rs.next() ){
+                    columnNamesList.add( rs.getString(1) );
+                }
+            }
+        }
+        for ( String columnNames : columnNamesList ){
+            if ( hasFields( table, columnNames )){
+                createIndex( h2Connection, table.name, columnNames );
+            }
+        }
+    }
+
+    private static boolean hasFields( Table table, String columnNames ){
+        for ( String column : columnNames.split(",") ){
+            boolean found = false;
+            for ( DBFField field : table.fields ){
+                found |= field.getName().equals( column );
+            }
+            if ( !found ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Query returning the stored advice, the most expensive first.
+     */
+    public static String getAdviceQuery(){
+        return "select table_name, column_names, index_name, created, executions, cumulative_time, sample_sql, " +
+                "'create index \"' || index_name || '\" on \"' || table_name || '\"(\"' || replace( column_names, ',', '\",\"' ) || '\")' as create_sql " +
+                "from " + META_ADVICE_TABLE_NAME + " order by cumulative_time desc";
+    }
+}
@@ -0,0 +1,302 @@
+package com.dbschema.xbase.io;
+
+import com.linuxense.javadbf.DBFField;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Key expression of an index shipped with a DBF file. We read only the index headers, not the index entries,
+ * and use the key expressions to create the same indexes in H2.
+ * The index files are found in the folder of the DBF file:
+ * <ul>
+ *     <li>.cdx FoxPro compound index and .mdx dBase IV multiple index, with the same name as the DBF file. Each tag is one index.</li>
+ *     <li>.ntx Clipper and .ndx dBase III single indexes, with a name starting with the DBF file name. If the names of more
+ *     DBF files are a prefix of the index name, like car.dbf and cars.dbf for cars_name.ntx, the index belongs to the longest.</li>
+ * </ul>
+ * Only key expressions made of fields, optionally concatenated with '+' and wrapped in functions like UPPER() or DTOS(),
+ * can be mapped to H2 columns.
+ */
+public class DbfIndexFile {
+
+    private static final int NDX_EXPRESSION_OFFSET = 24, NDX_EXPRESSION_SIZE = 488;
+    private static final int NTX_EXPRESSION_OFFSET = 22, NTX_EXPRESSION_SIZE = 256;
+    private static final int MDX_PAGE_SIZE = 512, MDX_TAG_TABLE_OFFSET = 544, MDX_TAG_ENTRY_SIZE = 32, MDX_MAX_TAGS = 48;
+    private static final int MDX_EXPRESSION_OFFSET = 24, MDX_EXPRESSION_SIZE = 220;
+    private static final int CDX_NODE_SIZE = 512, CDX_HEADER_SIZE = 1024, CDX_MAX_NODES = 1000;
+    private static final int CDX_LEAF_NODE = 2;
+    private static final Set<String> KEY_FUNCTIONS = new HashSet<>( Arrays.asList(
+            "UPPER", "LOWER", "DTOS", "DTOC", "STR", "LEFT", "TRIM", "RTRIM", "LTRIM", "ALLTRIM", "PADR", "PADL", "DESCEND" ));
+
+    public final File file;
+    public final String tagName;
+    public final String expression;
+
+    DbfIndexFile( File file, String tagName, String expression ){
+        this.file = file;
+        this.tagName = tagName;
+        this.expression = expression;
+    }
+
+    /**
+     * Read the indexes of a DBF file. Index files which cannot be read are logged and ignored.
+     */
+    public static List<DbfIndexFile> readIndexes( File dbfFile ){
+        final List<DbfIndexFile> indexes = new ArrayList<>();
+        final String dbfName = getBaseName( dbfFile ).toLowerCase( Locale.ROOT );
+        final File[] files = dbfFile.getAbsoluteFile().getParentFile().listFiles();
+        if ( files == null ){
+            return indexes;
+        }
+        Arrays.sort( files );
+        final List<String> dbfNames = new ArrayList<>();
+        for ( File file : files ){
+            if ( file.isFile() && file.getName().toLowerCase( Locale.ROOT ).endsWith(".dbf") ){
+                dbfNames.add( getBaseName( file ).toLowerCase( Locale.ROOT ));
+            }
+        }
+        for ( File file : files ){
+            final String fileName = file.getName().toLowerCase( Locale.ROOT );
+            final String baseName = getBaseName( file ).toLowerCase( Locale.ROOT );
+            if ( !file.isFile() ) continue;
+            try {
+                if ( fileName.endsWith(".cdx") && baseName.equals( dbfName )){
+                    readCdx( file, indexes );
+                } else if ( fileName.endsWith(".mdx") && baseName.equals( dbfName )){
+                    readMdx( file, indexes );
+                } else if ( fileName.endsWith(".ntx") && isSingleIndexOf( baseName, dbfName, dbfNames )){
+                    indexes.add( new DbfIndexFile( file, getBaseName( file ), readString( file, NTX_EXPRESSION_OFFSET, NTX_EXPRESSION_SIZE )));
+                } else if ( fileName.endsWith(".ndx") && isSingleIndexOf( baseName, dbfName, dbfNames )){
+                    indexes.add( new DbfIndexFile( file, getBaseName( file ), readString( file, NDX_EXPRESSION_OFFSET, NDX_EXPRESSION_SIZE )));
+                }
+            } catch ( IOException | RuntimeException ex ){
+                LOGGER.log(Level.WARNING, "Cannot read index file " + file, ex );
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * A single index file belongs to the DBF file with the longest name which is a prefix of the index name.
+     */
+    private static boolean isSingleIndexOf( String indexName, String dbfName, List<String> dbfNames ){
+        if ( !indexName.startsWith( dbfName )){
+            return false;
+        }
+        for ( String otherName : dbfNames ){
+            if ( otherName.length() > dbfName.length() && indexName.startsWith( otherName )){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * dBase IV: a tag table after the file header, each entry pointing to the page of the tag header.
+     */
+    private static void readMdx( File file, List<DbfIndexFile> indexes ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ){
+            final ByteBuffer header = read( raf, 0, MDX_TAG_TABLE_OFFSET + MDX_TAG_ENTRY_SIZE * MDX_MAX_TAGS );
+            final int tagCount = Math.min( header.getShort( 28 ) & 0xFFFF, MDX_MAX_TAGS );
+            for ( int i = 0; i < tagCount; i++ ){
+                final int entry = MDX_TAG_TABLE_OFFSET + i * MDX_TAG_ENTRY_SIZE;
+                final long tagPage = header.getInt( entry ) & 0xFFFFFFFFL;
+                final String tagName = toString( header, entry + 4, 11 );
+                if ( tagPage == 0 || tagName.isEmpty() ) continue;
+                final ByteBuffer tagHeader = read( raf, tagPage * MDX_PAGE_SIZE, MDX_EXPRESSION_OFFSET + MDX_EXPRESSION_SIZE );
+                indexes.add( new DbfIndexFile( file, tagName, toString( tagHeader, MDX_EXPRESSION_OFFSET, MDX_EXPRESSION_SIZE )));
+            }
+        }
+    }
+
+    /**
+     * FoxPro: the file starts with a compact index whose keys are the tag names, and whose record numbers are
+     * the offsets of the tag headers. Each tag header is followed by the key expression.
+     */
+    private static void readCdx( File file, List<DbfIndexFile> indexes ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ){
+            final ByteBuffer header = read( raf, 0, CDX_HEADER_SIZE );
+            final int keyLength = header.getShort( 12 ) & 0xFFFF;
+            final List<String> tagNames = new ArrayList<>();
+            final List<Long> tagOffsets = new ArrayList<>();
+            readCdxNode( raf, header.getInt( 0 ) & 0xFFFFFFFFL, keyLength, tagNames, tagOffsets, new HashSet<>() );
+            for ( int i = 0; i < tagNames.size(); i++ ){
+                final ByteBuffer tagHeader = read( raf, tagOffsets.get(i), CDX_HEADER_SIZE );
+                final int expressionLength = Math.min( tagHeader.getShort( 510 ) & 0xFFFF, CDX_HEADER_SIZE - 512 );
+                indexes.add( new DbfIndexFile( file, tagNames.get(i), toString( tagHeader, 512, expressionLength )));
+            }
+        }
+    }
+
+    private static void readCdxNode( RandomAccessFile raf, long offset, int keyLength, List<String> tagNames, List<Long> tagOffsets, Set<Long> visited ) throws IOException {
+        if ( offset <= 0 || offset + CDX_NODE_SIZE > raf.length() || !visited.add( offset ) || visited.size() > CDX_MAX_NODES ){
+            return;
+        }
+        final ByteBuffer node = read( raf, offset, CDX_NODE_SIZE );
+        final int attributes = node.getShort( 0 ) & 0xFFFF;
+        final int keyCount = node.getShort( 2 ) & 0xFFFF;
+        if ( ( attributes & CDX_LEAF_NODE ) == 0 ){
+            // Interior node: key, record number and child pointer, the numbers stored big-endian
+            final int entrySize = keyLength + 8;
+            for ( int i = 0; i < keyCount && 12 + ( i + 1 ) * entrySize <= CDX_NODE_SIZE; i++ ){
+                final long child = Integer.reverseBytes( node.getInt( 12 + i * entrySize + keyLength + 4 )) & 0xFFFFFFFFL;
+                readCdxNode( raf, child, keyLength, tagNames, tagOffsets, visited );
+            }
+            return;
+        }
+        // Leaf node: bit-packed record number, duplicate and trailing counts, the keys stored from the end of the node
+        final long recordMask = node.getInt( 14 ) & 0xFFFFFFFFL;
+        final int duplicateMask = node.get( 18 ) & 0xFF, trailMask = node.get( 19 ) & 0xFF;
+        final int recordBits = node.get( 20 ) & 0xFF, duplicateBits = node.get( 21 ) & 0xFF;
+        final int entrySize = node.get( 23 ) & 0xFF;
+        if ( entrySize == 0 || entrySize > 8 ){
+            return;
+        }
+        final byte[] key = new byte[keyLength];
+        int keyEnd = CDX_NODE_SIZE;
+        for ( int i = 0; i < keyCount && 24 + ( i + 1 ) * entrySize <= CDX_NODE_SIZE; i++ ){
+            long info = 0;
+            for ( int b = entrySize - 1; b >= 0; b-- ){
+                info = ( info << 8 ) | ( node.get( 24 + i * entrySize + b ) & 0xFF );
+            }
+            final long recordNumber = info & recordMask;
+            final int duplicates = (int)(( info >>> recordBits ) & duplicateMask );
+            final int trailing = (int)(( info >>> ( recordBits + duplicateBits )) & trailMask );
+            final int length = keyLength - duplicates - trailing;
+            keyEnd -= length;
+            if ( length < 0 || keyEnd < 24 + keyCount * entrySize ){
+                return;
+            }
+            for ( int b = 0; b < length; b++ ){
+                key[duplicates + b] = node.get( keyEnd + b );
+            }
+            tagNames.add( new String( key, 0, duplicates + length, StandardCharsets.ISO_8859_1 ).trim() );
+            tagOffsets.add( recordNumber );
+        }
+    }
+
+    private static ByteBuffer read( RandomAccessFile raf, long offset, int length ) throws IOException {
+        final byte[] bytes = new byte[length];
+        raf.seek( offset );
+        int read = 0;
+        while ( read < length ){
+            final int count = raf.read( bytes, read, length - read );
+            if ( count < 0 ) break;
+            read += count;
+        }
+        return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private static String readString( File file, int offset, int length ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ){
+            return toString( read( raf, offset, length ), 0, length );
+        }
+    }
+
+    /**
+     * Read a zero terminated string.
+     */
+    private static String toString( ByteBuffer buffer, int offset, int length ){
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = offset; i < offset + length && i < buffer.capacity(); i++ ){
+            final byte b = buffer.get( i );
+            if ( b == 0 ) break;
+            sb.append( (char)( b & 0xFF ));
+        }
+        return sb.toString().trim();
+    }
+
+    private static String getBaseName( File file ){
+        final String name = file.getName();
+        final int idx = name.lastIndexOf('.');
+        return idx > 0 ? name.substring( 0, idx ) : name;
+    }
+
+    /**
+     * Map the key expression to the table fields.
+     * @return the field names in the key order, or null if the expression is not made only of fields.
+     */
+    public List<String> getColumns( List<DBFField> fields ){
+        final List<String> columns = new ArrayList<>();
+        for ( String part : splitConcatenation( expression.replace(" ", "" ))){
+            final String fieldName = getFieldName( part );
+            DBFField found = null;
+            for ( DBFField field : fields ){
+                if ( field.getName().equalsIgnoreCase( fieldName )){
+                    found = field;
+                }
+            }
+            if ( found == null ){
+                return null;
+            }
+            if ( !columns.contains( found.getName() )){
+                columns.add( found.getName() );
+            }
+        }
+        return columns.isEmpty() ? null : columns;
+    }
+
+    private static List<String> splitConcatenation( String expression ){
+        final List<String> parts = new ArrayList<>();
+        int depth = 0, start = 0;
+        for ( int i = 0; i < expression.length(); i++ ){
+            final char c = expression.charAt( i );
+            if ( c == '(' ) depth++;
+            else if ( c == ')' ) depth--;
+            else if ( c == '+' && depth == 0 ){
+                parts.add( expression.substring( start, i ));
+                start = i + 1;
+            }
+        }
+        parts.add( expression.substring( start ));
+        return parts;
+    }
+
+    /**
+     * Unwrap functions like UPPER(NAME) or STR(NUMBER,10) and aliases like CUSTOMER->NAME.
+     */
+    private static String getFieldName( String part ){
+        String name = part;
+        int open;
+        while ( ( open = name.indexOf('(') ) > 0 && name.endsWith(")") && KEY_FUNCTIONS.contains( name.substring( 0, open ).toUpperCase( Locale.ROOT ))){
+            name = getFirstArgument( name.substring( open + 1, name.length() - 1 ));
+        }
+        final int alias = name.lastIndexOf("->");
+        if ( alias > -1 ){
+            name = name.substring( alias + 2 );
+        }
+        return name;
+    }
+
+    private static String getFirstArgument( String arguments ){
+        int depth = 0;
+        for ( int i = 0; i < arguments.length(); i++ ){
+            final char c = arguments.charAt( i );
+            if ( c == '(' ) depth++;
+            else if ( c == ')' ) depth--;
+            else if ( c == ',' && depth == 0 ) return arguments.substring( 0, i );
+        }
+        return arguments;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + ( tagName.equalsIgnoreCase( getBaseName( file )) ? "" : " tag " + tagName ) + " on " + expression;
+    }
+}
@@ -0,0 +1,446 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.dbschema.xbase.schema.Table;
+
+import java.io.Closeable;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Used with load=lazy and load=async. On connect the H2 tables are created empty, and the data of a table is loaded the first
+ * time a statement refers it. The loader is shared by all connections to the same folder.
+ * Concurrent statements which need the same table wait for one single load.
+ * With load=async a background thread loads the pending tables, the smaller ones first. A statement waits only
+ * for the tables it uses, starting their load if the background thread did not reach them yet.
+ * The table loads run in the loader threads, and each statement, and the background thread, waits for them using its own
+ * LoadRequest. Cancelling a request stops its wait at once, the load of a table is stopped only when no request waits for it.
+ */
+public class DbfLazyLoader implements Closeable {
+
+    /**
+     * SQL state of cancelled loads, the same as for cancelled statements.
+     */
+    public static final String CANCELLED_STATE = "57014";
+
+    private final String h2JdbcUrl;
+    private final int commitInterval;
+    private String types = DataTypeUtil.TYPES_STANDARD;
+    // By exact table name: tables of files named Cars.dbf and cars.dbf in different folders may differ only by case
+    private final Map<String,PendingTable> pendingTables = new ConcurrentHashMap<>();
+    private final List<DbfLoadListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService loadExecutor;
+    private LoadRequest backgroundRequest;
+    private Thread backgroundThread;
+
+    private static class PendingTable {
+        final Table table;
+        final File file;
+        final DbfFingerprint fingerprint;
+        // The state of the table, guarded by the waiters set
+        private final Set<LoadRequest> waiters = new HashSet<>();
+        private boolean loaded;
+        // Completed with true when loaded, false when cancelled, or with the load error
+        private CompletableFuture<Boolean> runningLoad;
+        private DbfLoaderInH2 runningLoader;
+
+        PendingTable( Table table, File file, DbfFingerprint fingerprint ){
+            this.table = table;
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Stop the running load if no other request waits for it.
+         */
+        void removeWaiter( LoadRequest request ){
+            synchronized ( waiters ){
+                waiters.remove( request );
+                if ( waiters.isEmpty() && runningLoader != null ){
+                    runningLoader.cancel();
+                }
+            }
+        }
+
+        /**
+         * @return false if all requests waiting for the table were cancelled, and the load should not start.
+         */
+        boolean startLoad( DbfLoaderInH2 loader ){
+            synchronized ( waiters ){
+                if ( waiters.isEmpty() ){
+                    return false;
+                }
+                runningLoader = loader;
+                return true;
+            }
+        }
+
+        void endLoad( boolean success ){
+            synchronized ( waiters ){
+                runningLoader = null;
+                runningLoad = null;
+                loaded = success;
+            }
+        }
+    }
+
+    /**
+     * The loads needed by one statement, or by the background thread. Cancel stops waiting for the table being loaded,
+     * and stops its load if no other request waits for it.
+     */
+    public static class LoadRequest {
+        private volatile boolean cancelled;
+        private volatile PendingTable current;
+        private final CompletableFuture<Boolean> cancelledFuture = new CompletableFuture<>();
+
+        public void cancel(){
+            cancelled = true;
+            final PendingTable pendingTable = current;
+            cancelledFuture.complete( false );
+            if ( pendingTable != null ){
+                pendingTable.removeWaiter( this );
+            }
+        }
+
+        public boolean isCancelled(){
+            return cancelled;
+        }
+    }
+    public DbfLazyLoader( String h2JdbcUrl, int commitInterval ){
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.commitInterval = commitInterval;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.loadExecutor = Executors.newCachedThreadPool( runnable -> {
+            final Thread thread = new Thread( runnable, "dbf-lazy-load-" + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        });
+    }
+
+    /**
+     * The mapping of DBF fields to H2 column types, should be the one used to create the tables. Default standard.
+     */
+    public void setTypes( String types ){
+        this.types = types;
+    }
+
+    /**
+     * Register a table which is created in H2, but without data.
+     */
+    public void register( Table table, File file, DbfFingerprint fingerprint ){
+        pendingTables.put( table.name, new PendingTable( table, file, fingerprint ));
+    }
+
+    public boolean hasPendingTables(){
+        return !pendingTables.isEmpty();
+    }
+
+    public boolean isPending( String tableName ){
+        return pendingTables.containsKey( tableName );
+    }
+
+    /**
+     * Forget a pending table, for example when its DBF file was removed.
+     */
+    public void unregister( String tableName ){
+        pendingTables.remove( tableName );
+    }
+
+    /**
+     * Load the pending tables which names are found in the SQL. Table names are matched case-insensitive,
+     * as whole identifiers, so tables which names differ only by case are all loaded.
+     * A column with the same name as a table may cause loading a table which is not used.
+     */
+    public void loadTablesUsedIn( String sql ) throws SQLException {
+        loadTablesUsedIn( sql, null );
+    }
+
+    /**
+     * @param request used to cancel the loads from another thread, or null.
+     */
+    public void loadTablesUsedIn( String sql, LoadRequest request ) throws SQLException {
+        if ( pendingTables.isEmpty() || sql == null ){
+            return;
+        }
+        final String lowerSql = sql.toLowerCase( Locale.ROOT );
+        final List<PendingTable> usedTables = new ArrayList<>();
+        for ( Map.Entry<String,PendingTable> entry : pendingTables.entrySet() ){
+            if ( containsIdentifier( lowerSql, entry.getKey().toLowerCase( Locale.ROOT ) )){
+                usedTables.add( entry.getValue() );
+            }
+        }
+        for ( PendingTable pendingTable : usedTables ){
+            load( pendingTable, request );
+        }
+    }
+
+    /**
+     * Load all pending tables, for example before saving the database to DBF files.
+     */
+    public void loadAll() throws SQLException {
+        for ( PendingTable pendingTable : new ArrayList<>( pendingTables.values() )){
+            load( pendingTable, null );
+        }
+    }
+
+    private static boolean containsIdentifier( String sql, String name ){
+        int idx = sql.indexOf( name );
+        while ( idx > -1 ){
+            final int end = idx + name.length();
+            if ( ( idx == 0 || !isIdentifierChar( sql.charAt( idx - 1 ))) && ( end == sql.length() || !isIdentifierChar( sql.charAt( end )))){
+                return true;
+            }
+            idx = sql.indexOf( name, idx + 1 );
+        }
+        return false;
+    }
+
+    private static boolean isIdentifierChar( char c ){
+        return Character.isLetterOrDigit( c ) || c == '_' || c == '$';
+    }
+
+    /**
+     * Start the load of the table in a loader thread, or join the running load, and wait for it.
+     * If this request is cancelled, the wait ends at once with a cancel error. The load goes on as long as other requests
+     * wait for it, otherwise it is stopped, and the table stays pending.
+     * @param request used to cancel the wait from another thread, or null.
+     */
+    private void load( PendingTable pendingTable, LoadRequest request ) throws SQLException {
+        final LoadRequest waiter = request != null ? request : new LoadRequest();
+        waiter.current = pendingTable;
+        try {
+            while ( true ){
+                final CompletableFuture<Boolean> load;
+                synchronized ( pendingTable.waiters ){
+                    if ( waiter.isCancelled() ){
+                        throw cancelled( pendingTable );
+                    }
+                    if ( pendingTable.loaded ){
+                        return;
+                    }
+                    pendingTable.waiters.add( waiter );
+                    if ( pendingTable.runningLoad == null ){
+                        pendingTable.runningLoad = submitLoad( pendingTable );
+                    }
+                    load = pendingTable.runningLoad;
+                }
+                final boolean loaded;
+                try {
+                    CompletableFuture.anyOf( load, waiter.cancelledFuture ).get();
+                    if ( waiter.isCancelled() ){
+                        throw cancelled( pendingTable );
+                    }
+                    loaded = load.get();
+                } catch ( InterruptedException ex ){
+                    Thread.currentThread().interrupt();
+                    throw new SQLException( "Interrupted while waiting for the load of table '" + pendingTable.table.name + "'", CANCELLED_STATE, ex );
+                } catch ( ExecutionException ex ){
+                    throw ex.getCause() instanceof SQLException ? (SQLException)ex.getCause() :
+                            new SQLException( "Error loading " + pendingTable.file + ": " + ex.getCause(), ex.getCause() );
+                }
+                if ( loaded ){
+                    return;
+                }
+                // The load was stopped as all its requests were cancelled, before this request joined it: load again
+            }
+        } finally {
+            waiter.current = null;
+            pendingTable.removeWaiter( waiter );
+        }
+    }
+
+    /**
+     * Called holding the waiters lock of the table.
+     */
+    private CompletableFuture<Boolean> submitLoad( PendingTable pendingTable ) throws SQLException {
+        final CompletableFuture<Boolean> load = new CompletableFuture<>();
+        try {
+            loadExecutor.execute( () -> {
+                final DbfLoaderInH2 loader = new DbfLoaderInH2( commitInterval, types );
+                if ( !pendingTable.startLoad( loader )){
+                    pendingTable.endLoad( false );
+                    load.complete( false );
+                    return;
+                }
+                try {
+                    transfer( pendingTable, loader );
+                    pendingTables.remove( pendingTable.table.name, pendingTable );
+                    pendingTable.endLoad( true );
+                    load.complete( true );
+                } catch ( SQLException | RuntimeException ex ){
+                    pendingTable.endLoad( false );
+                    if ( loader.isCancelled() ){
+                        load.complete( false );
+                    } else {
+                        load.completeExceptionally( ex );
+                    }
+                }
+            });
+        } catch ( RejectedExecutionException ex ){
+            throw new SQLException( "The DBF loader is closed", ex );
+        }
+        return load;
+    }
+
+    private static SQLException cancelled( PendingTable pendingTable ){
+        return new SQLException( "Load of table '" + pendingTable.table.name + "' cancelled", CANCELLED_STATE );
+    }
+
+    private void transfer( PendingTable pendingTable, DbfLoaderInH2 loader ) throws SQLException {
+        final String tableName = pendingTable.table.name;
+        final int recordCount = pendingTable.fingerprint.recordCount;
+        LOGGER.log(Level.INFO, "Lazy load table '" + tableName + "'");
+        final Timestamp started = new Timestamp( System.currentTimeMillis() );
+        for ( DbfLoadListener listener : listeners ){
+            listener.tableLoadStarted( tableName, recordCount );
+        }
+        try ( Connection h2Connection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+            try {
+                DbfLoadStatus.loading( h2Connection, tableName, recordCount, started );
+                DbfLoaderInH2.truncateTable( h2Connection, tableName );
+                loader.transferData( pendingTable.table, pendingTable.file, h2Connection );
+                loader.transferIndexes( pendingTable.table, pendingTable.file, h2Connection );
+                DbfDirtyTables.track( h2Connection, tableName );
+                pendingTable.fingerprint.charset = loader.getCharset();
+                loader.hashRecords( pendingTable.fingerprint );
+                pendingTable.fingerprint.save( h2Connection, tableName );
+                DbfLoadStatus.loaded( h2Connection, tableName, recordCount, started );
+            } catch ( Exception ex ){
+                final SQLException sqlException = ex instanceof SQLException ? (SQLException)ex :
+                        new SQLException( "Error loading " + pendingTable.file + ": " + ex.getLocalizedMessage(), ex );
+                try {
+                    DbfLoadStatus.failed( h2Connection, tableName, recordCount, started, loader.isCancelled(), sqlException.getLocalizedMessage() );
+                } catch ( SQLException statusEx ){
+                    LOGGER.log(Level.INFO, "Cannot save load status of '" + tableName + "'", statusEx );
+                }
+                throw sqlException;
+            }
+        } catch ( SQLException ex ){
+            for ( DbfLoadListener listener : listeners ){
+                listener.tableLoadFailed( tableName, loader.isCancelled(), ex );
+            }
+            throw ex;
+        }
+        for ( DbfLoadListener listener : listeners ){
+            listener.tableLoaded( tableName, recordCount );
+        }
+    }
+
+    public void addListener( DbfLoadListener listener ){
+        listeners.add( listener );
+    }
+
+    public void removeListener( DbfLoadListener listener ){
+        listeners.remove( listener );
+    }
+
+    /**
+     * Used with load=async, and by 'start dbf load'. Start a thread loading all pending tables, the smaller first.
+     * Tables which fail to load stay pending, and are loaded again when a statement uses them.
+     * Does nothing if the background load is running. After it is cancelled or done, it can be started again.
+     */
+    public synchronized void startBackgroundLoad(){
+        if ( backgroundThread != null ){
+            return;
+        }
+        final List<PendingTable> tables = new ArrayList<>( pendingTables.values() );
+        tables.sort( Comparator.comparingInt( pendingTable -> pendingTable.fingerprint.recordCount ));
+        final LoadRequest backgroundRequest = new LoadRequest();
+        this.backgroundRequest = backgroundRequest;
+        backgroundThread = new Thread( () -> {
+            LOGGER.log(Level.INFO, "Load " + tables.size() + " tables in background");
+            for ( PendingTable pendingTable : tables ){
+                if ( backgroundRequest.isCancelled() ){
+                    break;
+                }
+                if ( pendingTables.get( pendingTable.table.name ) != pendingTable ){
+                    // Loaded by a statement, or unregistered
+                    continue;
+                }
+                try {
+                    load( pendingTable, backgroundRequest );
+                } catch ( SQLException ex ){
+                    if ( CANCELLED_STATE.equals( ex.getSQLState() )){
+                        LOGGER.log(Level.INFO, ex.getLocalizedMessage() );
+                    } else {
+                        LOGGER.log(Level.WARNING, "Background load of table '" + pendingTable.table.name + "' failed", ex );
+                    }
+                }
+            }
+            LOGGER.log(Level.INFO, "Background load " + ( backgroundRequest.isCancelled() ? "cancelled" : "done" ));
+            synchronized ( this ){
+                if ( backgroundThread == Thread.currentThread() ){
+                    backgroundThread = null;
+                    this.backgroundRequest = null;
+                }
+            }
+            for ( DbfLoadListener listener : listeners ){
+                listener.backgroundLoadFinished();
+            }
+        }, "dbf-async-load" );
+        backgroundThread.setDaemon( true );
+        backgroundThread.start();
+    }
+
+    /**
+     * Stop the background load. The table being loaded and the tables not loaded yet stay pending,
+     * they are loaded when a statement uses them. The table being loaded is still loaded if a statement waits for it.
+     */
+    public void cancelBackgroundLoad(){
+        final LoadRequest request;
+        synchronized ( this ){
+            request = backgroundRequest;
+        }
+        if ( request != null ){
+            request.cancel();
+        }
+    }
+
+    /**
+     * Cancel the background load and wait for it and the loader threads to stop.
+     * The threads are not interrupted, this would close the H2 file channels during a load.
+     */
+    @Override
+    public void close(){
+        final Thread thread;
+        synchronized ( this ){
+            thread = backgroundThread;
+        }
+        cancelBackgroundLoad();
+        loadExecutor.shutdown();
+        try {
+            if ( thread != null ){
+                thread.join( 10000 );
+            }
+            // The loads without waiting requests are cancelled, wait for them to stop
+            loadExecutor.awaitTermination( 10, TimeUnit.SECONDS );
+        } catch ( InterruptedException ex ){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
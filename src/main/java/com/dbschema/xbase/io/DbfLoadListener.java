@@ -0,0 +1,33 @@
+package com.dbschema.xbase.io;
+
+import java.sql.SQLException;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Follow the tables loaded in the background with load=async, or on first use with load=lazy.
+ * Register it with H2WrappedConnection.addLoadListener(). The methods are called in the thread loading the table,
+ * they should return fast.
+ */
+public interface DbfLoadListener {
+
+    default void tableLoadStarted( String tableName, int recordCount ){
+    }
+
+    default void tableLoaded( String tableName, int recordCount ){
+    }
+
+    /**
+     * The table stays pending, it is loaded again the next time a statement uses it.
+     * @param cancelled true if the load was cancelled using Statement.cancel() or 'cancel dbf load'.
+     */
+    default void tableLoadFailed( String tableName, boolean cancelled, SQLException ex ){
+    }
+
+    /**
+     * With load=async, the background load is done, or was cancelled.
+     */
+    default void backgroundLoadFinished(){
+    }
+}
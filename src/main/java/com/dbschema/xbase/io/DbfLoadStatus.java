@@ -0,0 +1,88 @@
+package com.dbschema.xbase.io;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * The load status of each table, stored in dbs_meta_load_status, so the progress of load=async or load=lazy can be
+ * followed with 'select * from dbs_meta_load_status'. Tables loaded on connect are stored as loaded.
+ */
+public class DbfLoadStatus {
+
+    public static final String META_LOAD_STATUS_TABLE_NAME = "dbs_meta_load_status";
+    public static final String PENDING = "pending", LOADING = "loading", LOADED = "loaded", FAILED = "failed", CANCELLED = "cancelled";
+
+    private static final String CREATE_META_LOAD_STATUS_TABLE =
+            "create table if not exists " + META_LOAD_STATUS_TABLE_NAME + "( " +
+                    "table_name varchar(2000) not null primary key, " +
+                    "status varchar(20) not null, " +
+                    "record_count int, " +
+                    "started timestamp, " +
+                    "finished timestamp, " +
+                    "error varchar(2000) )";
+
+    public static void createMetaTable( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( CREATE_META_LOAD_STATUS_TABLE );
+        }
+        h2Connection.commit();
+    }
+
+    public static void pending( Connection h2Connection, String tableName, int recordCount ) throws SQLException {
+        save( h2Connection, tableName, PENDING, recordCount, null, null, null );
+    }
+
+    static void loading( Connection h2Connection, String tableName, int recordCount, Timestamp started ) throws SQLException {
+        save( h2Connection, tableName, LOADING, recordCount, started, null, null );
+    }
+
+    public static void loaded( Connection h2Connection, String tableName, int recordCount, Timestamp started ) throws SQLException {
+        save( h2Connection, tableName, LOADED, recordCount, started, new Timestamp( System.currentTimeMillis() ), null );
+    }
+
+    static void failed( Connection h2Connection, String tableName, int recordCount, Timestamp started, boolean cancelled, String error ) throws SQLException {
+        save( h2Connection, tableName, cancelled ? CANCELLED : FAILED, recordCount, started, new Timestamp( System.currentTimeMillis() ),
+                error != null && error.length() > 2000 ? error.substring( 0, 2000 ) : error );
+    }
+
+    private static void save( Connection h2Connection, String tableName, String status, int recordCount, Timestamp started, Timestamp finished, String error ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("merge into " + META_LOAD_STATUS_TABLE_NAME +
+                "( table_name, status, record_count, started, finished, error ) key( table_name ) values ( ?,?,?,?,?,? )") ){
+            st.setString( 1, tableName );
+            st.setString( 2, status );
+            st.setInt( 3, recordCount );
+            st.setTimestamp( 4, started );
+            st.setTimestamp( 5, finished );
+            st.setString( 6, error );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    public static void delete( Connection h2Connection, String tableName ) throws SQLException {
+        try ( PreparedStatement st = h2Connection.prepareStatement("delete from " + META_LOAD_STATUS_TABLE_NAME + " where table_name=?") ){
+            st.setString( 1, tableName );
+            st.execute();
+        }
+        h2Connection.commit();
+    }
+
+    /**
+     * The query executed by 'show dbf stats': the load status and time of each table, its DBF file,
+     * and if it was modified in H2 since it was loaded.
+     */
+    public static String getStatsQuery(){
+        return "select s.table_name, s.status, s.record_count, f.file_path, f.file_size, s.started, s.finished, " +
+                "datediff( 'MILLISECOND', s.started, s.finished ) as load_ms, d.table_name is not null as modified, s.error " +
+                "from " + META_LOAD_STATUS_TABLE_NAME + " s " +
+                "left join " + DbfFingerprint.META_FILES_TABLE_NAME + " f on f.table_name=s.table_name " +
+                "left join " + DbfDirtyTables.META_DIRTY_TABLE_NAME + " d on d.table_name=s.table_name " +
+                "order by s.table_name";
+    }
+}
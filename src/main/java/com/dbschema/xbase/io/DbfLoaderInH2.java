@@ -1,14 +1,26 @@
 package com.dbschema.xbase.io;
 
+import com.dbschema.xbase.DbfJdbcDriver;
+import com.dbschema.xbase.engine.DbfTableEngine;
 import com.dbschema.xbase.schema.DataTypeUtil;
 import com.dbschema.xbase.schema.Table;
 import com.linuxense.javadbf.DBFField;
 import com.linuxense.javadbf.DBFReader;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 
 import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
@@ -19,120 +31,498 @@ import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
  */
 public class DbfLoaderInH2 {
 
-    private String insertSql;
+    public static final int DEFAULT_COMMIT_INTERVAL = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    private final int commitInterval;
+    private final String types;
     private String charset;
+    private volatile boolean cancelled;
+    private long insertedRecords;
+    private int hashedRecordCount = -1;
+    private long recordsHash;
 
     private final static char QUOTE_CHAR = '"';
-    public static final String META_TABLE_NAME = "dbs_meta_columns";
-    private static final String INSERT_INTO_META_TABLE =
-            "insert into " + META_TABLE_NAME + "( table_name, column_name, column_type, length, decimal ) values ( ?,?,?,?,? )";
+    private static final String SHADOW_SUFFIX = "_dbs_shadow";
+    /**
+     * Number of running bulk loads by H2 database URL.
+     */
+    private static final Map<String,Integer> bulkLoads = new HashMap<>();
+
+    public DbfLoaderInH2(){
+        this( DEFAULT_COMMIT_INTERVAL );
+    }
+
+    /**
+     * @param commitInterval number of records inserted between two commits. Records are sent to H2 in JDBC batches.
+     */
+    public DbfLoaderInH2( int commitInterval ){
+        this( commitInterval, DataTypeUtil.TYPES_STANDARD );
+    }
+
+    /**
+     * @param types the mapping of DBF fields to H2 column types, see DataTypeUtil.getH2Type().
+     *              All tables of one H2 database should be loaded with the same types mapping.
+     */
+    public DbfLoaderInH2( int commitInterval, String types ){
+        this.commitInterval = Math.max( 1, commitInterval );
+        this.types = types;
+    }
+
+    /**
+     * Disable the H2 transaction log while importing a folder. Call endBulkLoad() when the import is done.
+     * The H2 database is anyway a cache which can be re-created from the DBF files.
+     * The setting applies to the whole database, so use it only for the folder load done when the database is opened,
+     * not for the lazy loads or the reloads, which run while other sessions use the database.
+     * Bulk loads of one database are counted: the log is disabled by the first one and enabled again by the last one.
+     */
+    public static void beginBulkLoad( Connection h2Connection ) throws SQLException {
+        final String database = h2Connection.getMetaData().getURL();
+        synchronized ( bulkLoads ){
+            if ( bulkLoads.merge( database, 1, Integer::sum ) == 1 ){
+                try ( Statement st = h2Connection.createStatement() ){
+                    st.execute("SET LOG 0");
+                } catch ( SQLException ex ){
+                    bulkLoads.remove( database );
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    public static void endBulkLoad( Connection h2Connection ) throws SQLException {
+        final String database = h2Connection.getMetaData().getURL();
+        synchronized ( bulkLoads ){
+            final Integer running = bulkLoads.get( database );
+            if ( running != null && running > 1 ){
+                bulkLoads.put( database, running - 1 );
+                return;
+            }
+            bulkLoads.remove( database );
+            try ( Statement st = h2Connection.createStatement() ){
+                st.execute("SET LOG 2");
+                st.execute("CHECKPOINT");
+            }
+        }
+    }
 
 
     public void transfer( Table table, DBFReader dbfReader, Connection h2Connection ) throws Exception {
-        this.charset = ( dbfReader.getCharset() != null ) ? dbfReader.getCharset().name() : null;
-        dropH2MetaTable( h2Connection );
-        createH2MetaTable( h2Connection );
         transferDefinition( table, dbfReader, h2Connection );
         transferData( table, dbfReader, h2Connection );
     }
 
-    private void transferDefinition(Table table, DBFReader reader, Connection h2Connection ) throws Exception {
+    /**
+     * Create the H2 table. The data can be loaded later using transferData().
+     */
+    public void transferDefinition(Table table, DBFReader reader, Connection h2Connection ) throws Exception {
+        transferDefinition( table, reader, h2Connection, null );
+    }
+
+    /**
+     * Create the H2 table using the DbfTableEngine, which reads the data directly from the DBF file.
+     */
+    public void transferDirectDefinition(Table table, DBFReader reader, File file, Connection h2Connection ) throws Exception {
+        this.charset = ( reader.getCharset() != null ) ? reader.getCharset().name() : null;
+        final StringBuilder engineSb = new StringBuilder(" engine ").append(QUOTE_CHAR).append(DbfTableEngine.class.getName()).append(QUOTE_CHAR);
+        engineSb.append(" with ").append(QUOTE_CHAR).append(file.getAbsolutePath()).append(QUOTE_CHAR);
+        if ( charset != null ){
+            engineSb.append(", ").append(QUOTE_CHAR).append(charset).append(QUOTE_CHAR);
+        }
+        transferDefinition( table, reader, h2Connection, engineSb.toString() );
+    }
+
+    private void transferDefinition(Table table, DBFReader reader, Connection h2Connection, String engine ) throws Exception {
         LOGGER.log(Level.INFO, "Transfer table '" + table.name + "'");
+        this.charset = ( reader.getCharset() != null ) ? reader.getCharset().name() : null;
         final StringBuilder createSb = new StringBuilder("create table ").append(QUOTE_CHAR).append(table.name).append(QUOTE_CHAR).append("(\n");
-        final StringBuilder insertSb = new StringBuilder("insert into ").append(QUOTE_CHAR).append(table.name).append(QUOTE_CHAR).append("(");
-        final StringBuilder insertValuesSb = new StringBuilder("values(");
+        dropTable( h2Connection, table.name );
         boolean appendComma = false;
         int numberOfFields = reader.getFieldCount();
         for (int i = 0; i < numberOfFields; i++) {
 
             final DBFField field = reader.getField(i);
-            saveFieldInMetaTable(h2Connection, table, field);
             table.addField(field);
             LOGGER.log(Level.INFO, "Column " + field );
             if (appendComma) {
                 createSb.append(",\n");
+            }
+            createSb.append("\t").append(QUOTE_CHAR).append(field.getName()).append(QUOTE_CHAR).append(" ");
+            createSb.append( DataTypeUtil.getH2Type( field, types ));
+            appendComma = true;
+        }
+        createSb.append(")");
+        if ( engine != null ){
+            createSb.append( engine );
+        }
+
+        LOGGER.log(Level.INFO, createSb.toString());
+        h2Connection.prepareStatement(createSb.toString()).execute();
+        DbfCatalog.save( h2Connection, table );
+    }
+
+    private String getInsertSql( Table table ){
+        final StringBuilder insertSb = new StringBuilder("insert into ").append(QUOTE_CHAR).append(table.name).append(QUOTE_CHAR).append("(");
+        final StringBuilder insertValuesSb = new StringBuilder("values(");
+        boolean appendComma = false;
+        for ( DBFField field : table.fields ){
+            if (appendComma) {
                 insertSb.append(",");
                 insertValuesSb.append(",");
             }
-            createSb.append("\t").append(QUOTE_CHAR).append(field.getName()).append(QUOTE_CHAR).append(" ");
             insertSb.append(QUOTE_CHAR).append(field.getName()).append(QUOTE_CHAR);
             insertValuesSb.append("?");
-            createSb.append( DataTypeUtil.getH2Type( field));
             appendComma = true;
         }
-        createSb.append(")");
         insertSb.append(")");
         insertValuesSb.append(")");
+        return insertSb.toString() + insertValuesSb.toString();
+    }
 
-        String dropTableSQL = "drop table if exists " + QUOTE_CHAR + table.name + QUOTE_CHAR;
-        LOGGER.log(Level.INFO, dropTableSQL);
-        h2Connection.prepareStatement(dropTableSQL).execute();
-        h2Connection.commit();
+    /**
+     * Insert the records of the DBF file in the H2 table. The file is read memory-mapped if we can decode
+     * all its field types, otherwise using the DBFReader. With the memory-mapped reader, memo fields are streamed
+     * from the .dbt or .fpt memo file.
+     */
+    public void transferData(Table table, File file, Connection h2Connection ) throws Exception {
+        final long start = System.nanoTime();
+        try ( DbfMappedReader mappedReader = new DbfMappedReader( file ) ){
+            if ( mappedReader.isSupported() ){
+                try ( DbfMemoReader memoReader = openMemoReader( file ) ){
+                    transferData( table, mappedReader, mappedReader.cursor(), memoReader, false, h2Connection );
+                }
+                hashRecords( mappedReader );
+                recordImport( table, file, file.length(), start );
+                return;
+            }
+        }
+        // Files read using the DBFReader cannot be appended, see appendData()
+        hashedRecordCount = -1;
+        try ( DBFReader reader = new DBFReader( new FileInputStream( file )) ){
+            transferData( table, reader, h2Connection );
+        }
+        recordImport( table, file, file.length(), start );
+    }
 
+    /**
+     * Hash the last records of the loaded file, while they are still in the page cache.
+     */
+    private void hashRecords( DbfMappedReader mappedReader ) throws IOException {
+        hashedRecordCount = mappedReader.getRecordCount();
+        recordsHash = mappedReader.hashRecords( DbfFingerprint.getTailStart( hashedRecordCount, mappedReader.getRecordLength() ), hashedRecordCount );
+    }
 
-        LOGGER.log(Level.INFO, createSb.toString());
-        h2Connection.prepareStatement(createSb.toString()).execute();
-        h2Connection.commit();
+    /**
+     * Set the records hash of the fingerprint of the file loaded by the last transferData() or appendData().
+     * The hash stays 0 if the file was read using the DBFReader, or had another record count when the fingerprint was read.
+     */
+    public void hashRecords( DbfFingerprint fingerprint ){
+        fingerprint.setRecordsHash( hashedRecordCount, recordsHash );
+    }
+
+    private void recordImport( Table table, File file, long bytes, long start ){
+        DbfJdbcDriver.getMetrics().tableImported( table.name, file, insertedRecords, bytes, System.nanoTime() - start );
+    }
+
+    /**
+     * Insert the DBF records in the H2 table. The table should be created before, using transferDefinition(), or truncated.
+     * The records are inserted without undo log, so if the load fails or is cancelled the table is truncated.
+     */
+    public void transferData(Table table, DBFReader reader, Connection h2Connection  ) throws Exception {
+        this.charset = ( reader.getCharset() != null ) ? reader.getCharset().name() : null;
+        if ( table.fields.isEmpty() ){
+            for ( int i = 0; i < reader.getFieldCount(); i++ ){
+                table.addField( reader.getField(i) );
+            }
+        }
+        final DbfColumnBinder[] binders = DbfColumnBinder.create( table.fields, types );
+        insertRecords( table, h2Connection, false, stInsert -> {
+            final Object[] record = reader.nextRecord();
+            if ( record == null ){
+                return false;
+            }
+            for ( int i = 0; i < record.length && i < binders.length; i++ ){
+                binders[i].bind( stInsert, i + 1, record[i] );
+            }
+            return true;
+        });
+    }
 
-        this.insertSql = insertSb.toString() + insertValuesSb.toString();
+    /**
+     * Insert the DBF records in the H2 table reading them from the memory-mapped file.
+     * Use it only if DbfMappedReader.isSupported(), otherwise use the DBFReader.
+     */
+    public void transferData(Table table, DbfMappedReader reader, Connection h2Connection  ) throws Exception {
+        transferData( table, reader, reader.cursor(), null, false, h2Connection );
     }
 
+    /**
+     * @return the reader of the memo file of the DBF file, or null if the file has no memo file.
+     */
+    private static DbfMemoReader openMemoReader( File file ) throws IOException {
+        final File memoFile = DbfMemoReader.findMemoFile( file );
+        return memoFile != null ? new DbfMemoReader( memoFile ) : null;
+    }
 
-    private void transferData(Table table, DBFReader reader, Connection h2Connection  ) throws Exception {
-        final PreparedStatement stInsert = h2Connection.prepareStatement(insertSql);
-        Object[] record;
-        while( ( record = reader.nextRecord()) != null ){
+    /**
+     * If only new records were appended to the DBF file since it was loaded, insert the new records and save the new fingerprint.
+     * The dirty mark set by the inserts is cleared, so call this only for tables which were not modified.
+     * @param stored the fingerprint saved when the table was loaded.
+     * @return false if the file changed otherwise, then the table has to be loaded again.
+     */
+    public boolean appendFile(Table table, File file, DbfFingerprint stored, Connection h2Connection ) throws Exception {
+        final Timestamp started = new Timestamp( System.currentTimeMillis() );
+        final DbfFingerprint fingerprint = DbfFingerprint.read( file );
+        if ( !fingerprint.isAppendedTo( stored ) || !appendData( table, file, stored.recordCount, h2Connection )){
+            return false;
+        }
+        DbfDirtyTables.markClean( h2Connection, table.name );
+        fingerprint.charset = getCharset();
+        hashRecords( fingerprint );
+        fingerprint.save( h2Connection, table.name );
+        DbfLoadStatus.loaded( h2Connection, table.name, fingerprint.recordCount, started );
+        return true;
+    }
 
-            for ( int i = 0; i < record.length && i < table.fields.size(); i++ ){
-                Object value = record[i];
-                DBFField field = table.fields.get( i );
-                if (value != null) {
-                    stInsert.setObject(i+1, value);
-                } else {
-                    stInsert.setNull(i+1, DataTypeUtil.getJavaType( field));
+    /**
+     * Insert only the records appended to the DBF file since the table was loaded, in one transaction.
+     * If the append fails or is cancelled, the transaction is rolled back and the table keeps the loaded records.
+     * @param fromRecord number of records already loaded.
+     * @return false if the file cannot be read memory-mapped. Then the table has to be loaded again.
+     */
+    public boolean appendData(Table table, File file, int fromRecord, Connection h2Connection ) throws Exception {
+        try ( DbfMappedReader mappedReader = new DbfMappedReader( file ) ){
+            if ( !mappedReader.isSupported() ){
+                return false;
+            }
+            LOGGER.log(Level.INFO, "Append " + ( mappedReader.getRecordCount() - fromRecord ) + " records to table '" + table.name + "'");
+            final long start = System.nanoTime();
+            try ( DbfMemoReader memoReader = openMemoReader( file ) ){
+                transferData( table, mappedReader, mappedReader.cursor( fromRecord, mappedReader.getRecordCount() ), memoReader, true, h2Connection );
+            }
+            hashRecords( mappedReader );
+            recordImport( table, file, (long)( mappedReader.getRecordCount() - fromRecord ) * mappedReader.getRecordLength(), start );
+            return true;
+        }
+    }
+
+    private void transferData(Table table, DbfMappedReader reader, DbfMappedReader.RecordCursor cursor, DbfMemoReader memoReader, boolean append, Connection h2Connection  ) throws Exception {
+        this.charset = ( reader.getCharset() != null ) ? reader.getCharset().name() : null;
+        if ( table.fields.isEmpty() ){
+            for ( int i = 0; i < reader.getFieldCount(); i++ ){
+                table.addField( reader.getField(i) );
+            }
+        }
+        final DbfColumnBinder[] binders = DbfColumnBinder.create( table.fields, types, memoReader, reader.getCharset() );
+        final int fieldCount = Math.min( reader.getFieldCount(), binders.length );
+        insertRecords( table, h2Connection, append, stInsert -> {
+            if ( !cursor.next() ){
+                return false;
+            }
+            for ( int i = 0; i < fieldCount; i++ ){
+                binders[i].bind( stInsert, i + 1, cursor, i );
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Create the H2 indexes matching the .cdx, .mdx, .ntx or .ndx index files of the DBF file.
+     * Call this after transferData(), so the indexes are built once, from the loaded data.
+     * Indexes with key expressions which cannot be mapped to columns are skipped.
+     * The indexes created before by the DbfIndexAdvisor are created again.
+     */
+    public void transferIndexes(Table table, File file, Connection h2Connection ) throws SQLException {
+        final List<List<String>> createdColumns = new ArrayList<>();
+        for ( DbfIndexFile index : DbfIndexFile.readIndexes( file )){
+            final List<String> columns = index.getColumns( table.fields );
+            if ( columns == null ){
+                LOGGER.log(Level.INFO, "Skip index " + index + ", the key expression is not made of fields");
+                continue;
+            }
+            if ( createdColumns.contains( columns )){
+                continue;
+            }
+            final StringBuilder createSb = new StringBuilder("create index if not exists ").append(QUOTE_CHAR).append(table.name).append("_").append(index.tagName).append(QUOTE_CHAR);
+            createSb.append(" on ").append(QUOTE_CHAR).append(table.name).append(QUOTE_CHAR).append("(");
+            boolean appendComma = false;
+            for ( String column : columns ){
+                if (appendComma) {
+                    createSb.append(",");
                 }
+                createSb.append(QUOTE_CHAR).append(column).append(QUOTE_CHAR);
+                appendComma = true;
+            }
+            createSb.append(")");
+            LOGGER.log(Level.INFO, createSb.toString());
+            try ( Statement st = h2Connection.createStatement() ){
+                st.execute( createSb.toString() );
+                createdColumns.add( columns );
+            } catch ( SQLException ex ){
+                LOGGER.log(Level.WARNING, "Cannot create index " + index + " on table '" + table.name + "'", ex );
             }
-            LOGGER.log(Level.INFO, stInsert.toString());
+        }
+        h2Connection.commit();
+        DbfIndexAdvisor.createAdvisedIndexes( h2Connection, table );
+    }
 
-            stInsert.execute();
-            h2Connection.commit();
+    /**
+     * Load the DBF file again while the current table stays readable. The data is loaded in a shadow table, which
+     * replaces the table while holding the swapLock. Statements holding the matching read lock never see a missing
+     * or half-loaded table.
+     */
+    public void reloadTable( Table table, File file, Connection h2Connection, Lock swapLock ) throws Exception {
+        final Timestamp started = new Timestamp( System.currentTimeMillis() );
+        final Table shadow = new Table( table.name + SHADOW_SUFFIX );
+        final DbfFingerprint fingerprint = DbfFingerprint.read( file );
+        LOGGER.log(Level.INFO, "Reload table '" + table.name + "' in '" + shadow.name + "'");
+        try {
+            try ( DBFReader reader = new DBFReader( new FileInputStream( file )) ){
+                transferDefinition( shadow, reader, h2Connection );
+            }
+            transferData( shadow, file, h2Connection );
+            transferIndexes( shadow, file, h2Connection );
+            swapLock.lock();
+            try {
+                dropTable( h2Connection, table.name );
+                try ( Statement st = h2Connection.createStatement() ){
+                    st.execute( "alter table " + QUOTE_CHAR + shadow.name + QUOTE_CHAR + " rename to " + QUOTE_CHAR + table.name + QUOTE_CHAR );
+                }
+                DbfCatalog.rename( h2Connection, shadow.name, table.name );
+                renameIndexes( h2Connection, table.name, shadow.name );
+                h2Connection.commit();
+                DbfDirtyTables.track( h2Connection, table.name );
+            } finally {
+                swapLock.unlock();
+            }
+        } catch ( Exception ex ){
+            try {
+                dropTable( h2Connection, shadow.name );
+            } catch ( SQLException dropEx ){
+                ex.addSuppressed( dropEx );
+            }
+            throw ex;
         }
+        table.fields.clear();
+        table.fields.addAll( shadow.fields );
+        DbfIndexAdvisor.createAdvisedIndexes( h2Connection, table );
+        fingerprint.charset = getCharset();
+        hashRecords( fingerprint );
+        fingerprint.save( h2Connection, table.name );
+        DbfLoadStatus.loaded( h2Connection, table.name, fingerprint.recordCount, started );
     }
 
-    private static final String CREATE_META_TABLE =
-            "create table if not exists " + META_TABLE_NAME + "( " +
-                    "table_name varchar(2000) not null, " +
-                    "column_name varchar(2000) not null, " +
-                    "column_type varchar(120), " +
-                    "length int not null, " +
-                    "decimal int not null, " +
-                    "primary key (table_name, column_name))";
+    /**
+     * The indexes created on the shadow table are named after it. Index names are unique in the schema.
+     */
+    private static void renameIndexes( Connection h2Connection, String tableName, String shadowName ) throws SQLException {
+        final List<String> indexNames = new ArrayList<>();
+        try ( PreparedStatement st = h2Connection.prepareStatement( "select distinct INDEX_NAME from INFORMATION_SCHEMA.INDEXES where TABLE_NAME=?" ) ){
+            st.setString( 1, tableName );
+            try ( ResultSet rs = st.executeQuery() ){
+                while ( rs.next() ){
+                    indexNames.add( rs.getString(1) );
+                }
+            }
+        }
+        for ( String indexName : indexNames ){
+            if ( indexName.startsWith( shadowName )){
+                try ( Statement st = h2Connection.createStatement() ){
+                    st.execute( "alter index " + QUOTE_CHAR + indexName + QUOTE_CHAR + " rename to " + QUOTE_CHAR +
+                            tableName + indexName.substring( shadowName.length() ) + QUOTE_CHAR );
+                }
+            }
+        }
+    }
 
-    private void createH2MetaTable( Connection h2Connection ) throws SQLException {
-        final Statement st = h2Connection.createStatement();
-        st.execute( CREATE_META_TABLE );
-        st.close();
-        h2Connection.commit();
+    private interface RecordBinder {
+        /**
+         * Set the parameters of the insert statement with the next record.
+         * @return false if there are no more records.
+         */
+        boolean bindNext( PreparedStatement stInsert ) throws Exception;
     }
 
-    private static final String DROP_META_TABLE =
-            "drop table if exists " + META_TABLE_NAME;
+    /**
+     * @param append true to insert the records in a table which is in use, in one transaction with the undo log, so
+     *               readers see all the new records or none of them, and a failure rolls back all of them.
+     *               Otherwise the table is new or truncated: the records are committed every commitInterval records without
+     *               undo log, which cannot roll them back, so the table is truncated if the load fails.
+     */
+    private void insertRecords( Table table, Connection h2Connection, boolean append, RecordBinder binder ) throws Exception {
+        final String insertSql = getInsertSql( table );
+        final boolean autoCommit = h2Connection.getAutoCommit();
+        final int commitInterval = append ? Integer.MAX_VALUE : this.commitInterval;
+        final int batchSize = Math.min( BATCH_SIZE, commitInterval );
+        h2Connection.setAutoCommit( false );
+        if ( !append ){
+            setUndoLog( h2Connection, false );
+        }
+        try ( PreparedStatement stInsert = h2Connection.prepareStatement(insertSql) ){
+            int batchCount = 0, uncommittedCount = 0;
+            long recordCount = 0;
+            while( binder.bindNext( stInsert ) ){
+                if ( cancelled ){
+                    throw new SQLException( "Load of table '" + table.name + "' cancelled", DbfLazyLoader.CANCELLED_STATE );
+                }
+                stInsert.addBatch();
+                recordCount++;
+                uncommittedCount++;
+                if ( ++batchCount == batchSize ){
+                    stInsert.executeBatch();
+                    batchCount = 0;
+                    if ( uncommittedCount >= commitInterval ){
+                        h2Connection.commit();
+                        uncommittedCount = 0;
+                    }
+                }
+            }
+            if ( batchCount > 0 ){
+                stInsert.executeBatch();
+            }
+            h2Connection.commit();
+            insertedRecords = recordCount;
+        } catch ( Exception ex ){
+            try {
+                h2Connection.rollback();
+                if ( !append ){
+                    truncateTable( h2Connection, table.name );
+                }
+            } catch ( SQLException cleanupEx ){
+                ex.addSuppressed( cleanupEx );
+            }
+            throw ex;
+        } finally {
+            if ( !append ){
+                setUndoLog( h2Connection, true );
+            }
+            h2Connection.setAutoCommit( autoCommit );
+        }
+    }
+
+    private void setUndoLog( Connection h2Connection, boolean enabled ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute("SET UNDO_LOG " + ( enabled ? 1 : 0 ));
+        }
+    }
 
-    private void dropH2MetaTable( Connection h2Connection ) throws SQLException {
-        final Statement st = h2Connection.createStatement();
-        st.execute( DROP_META_TABLE );
-        st.close();
+    public static void truncateTable( Connection h2Connection, String tableName ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( "truncate table " + QUOTE_CHAR + tableName + QUOTE_CHAR );
+        }
         h2Connection.commit();
     }
 
-    private void saveFieldInMetaTable( Connection h2Connection, Table table, DBFField field) throws SQLException {
-        final PreparedStatement st = h2Connection.prepareStatement( INSERT_INTO_META_TABLE);
-        st.setString( 1, table.name);
-        st.setString( 2, field.getName() );
-        st.setString( 3, field.getType().name() );
-        st.setInt( 4, field.getLength() );
-        st.setInt( 5, field.getDecimalCount() );
-        st.execute();
+    /**
+     * Drop the H2 table together with its catalog entry.
+     */
+    public static void dropTable( Connection h2Connection, String tableName ) throws SQLException {
+        String dropTableSQL = "drop table if exists " + QUOTE_CHAR + tableName + QUOTE_CHAR;
+        LOGGER.log(Level.INFO, dropTableSQL);
+        try ( Statement st = h2Connection.createStatement() ){
+            st.execute( dropTableSQL );
+        }
+        DbfCatalog.delete( h2Connection, tableName );
         h2Connection.commit();
     }
 
@@ -140,5 +530,17 @@ public class DbfLoaderInH2 {
         return charset;
     }
 
+    /**
+     * Stop a running transferData() or appendData() from another thread. transferData() truncates the table,
+     * appendData() rolls back the appended records, so the table keeps the records loaded before.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
 
 }
@@ -0,0 +1,597 @@
+package com.dbschema.xbase.io;
+
+import com.linuxense.javadbf.DBFDataType;
+import com.linuxense.javadbf.DBFField;
+import com.linuxense.javadbf.DBFReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * DBF reader using memory-mapped files. Records have a fixed length, so we jump directly to any record,
+ * and decode only the fields which are read. Files larger than 2GB are mapped in more segments.
+ *
+ * Records are read using a RecordCursor over a range of records. Cursors are independent, so a file can be
+ * scanned in parallel by more threads, each with its own cursor over a different range ( see partition() ).
+ * The fields are the same as returned by DBFReader.getField(), and getValue() returns the same Java types as DBFReader.
+ * Memo, binary and OLE fields return null, as DBFReader does when no memo file is set. Their content is read from the
+ * memo file using getMemoBlock() and the DbfMemoReader.
+ * Files with field types we cannot decode are reported by isSupported(), and should be read using DBFReader.
+ */
+public class DbfMappedReader implements Closeable {
+
+    private static final int FIELD_DESCRIPTOR_SIZE = 32, DB7_FIELD_DESCRIPTOR_SIZE = 48;
+    private static final byte DELETED_FLAG = '*', END_OF_FILE = 0x1A;
+
+    private final FileChannel channel;
+    private final Charset charset;
+    private final DBFField[] fields;
+    private final DBFDataType[] types;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean supported;
+    private final int headerLength;
+    private final int recordLength;
+    private final int recordCount;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    public DbfMappedReader( File file ) throws IOException {
+        this( file, null );
+    }
+
+    /**
+     * @param charset used for character fields. If null, we use the charset detected by DBFReader from the DBF header.
+     */
+    public DbfMappedReader( File file, Charset charset ) throws IOException {
+        this.channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        try {
+            final ByteBuffer header = ByteBuffer.allocate( 32 ).order( ByteOrder.LITTLE_ENDIAN );
+            readFully( header, 0 );
+            final int version = header.get( 0 ) & 0xFF;
+            final int headerRecordCount = header.getInt( 4 );
+            this.headerLength = header.getShort( 8 ) & 0xFFFF;
+            this.recordLength = header.getShort( 10 ) & 0xFFFF;
+            if ( recordLength == 0 || headerLength < 32 ){
+                throw new IOException("Invalid DBF header in " + file );
+            }
+            final ByteBuffer fullHeader = ByteBuffer.allocate( headerLength ).order( ByteOrder.LITTLE_ENDIAN );
+            readFully( fullHeader, 0 );
+
+            // Field definitions as read by javadbf, so the loader gets the same DBFField objects
+            final DBFReader headerReader = charset != null ?
+                    new DBFReader( new ByteArrayInputStream( fullHeader.array() ), charset ) :
+                    new DBFReader( new ByteArrayInputStream( fullHeader.array() ));
+            this.charset = headerReader.getCharset() != null ? headerReader.getCharset() : Charset.defaultCharset();
+            this.fields = new DBFField[headerReader.getFieldCount()];
+            for ( int i = 0; i < fields.length; i++ ){
+                fields[i] = headerReader.getField(i);
+            }
+            headerReader.close();
+
+            // Field offsets computed from the raw descriptors, including the system fields hidden by javadbf
+            final Map<String,int[]> rawFields = new HashMap<>();
+            final int descriptorSize = ( version & 0x07 ) == 4 ? DB7_FIELD_DESCRIPTOR_SIZE : FIELD_DESCRIPTOR_SIZE;
+            final int nameLength = descriptorSize == DB7_FIELD_DESCRIPTOR_SIZE ? 32 : 11;
+            final int lengthOffset = descriptorSize == DB7_FIELD_DESCRIPTOR_SIZE ? 33 : 16;
+            int fieldOffset = 1;
+            for ( int pos = 32; pos + descriptorSize <= headerLength && fullHeader.get( pos ) != 0x0D; pos += descriptorSize ){
+                int end = 0;
+                while ( end < nameLength && fullHeader.get( pos + end ) != 0 ) end++;
+                final String name = new String( fullHeader.array(), pos, end, this.charset ).trim();
+                final char type = (char)( fullHeader.get( pos + nameLength ) & 0xFF );
+                int length = fullHeader.get( pos + lengthOffset ) & 0xFF;
+                if ( type == 'C' && descriptorSize == FIELD_DESCRIPTOR_SIZE ){
+                    length |= ( fullHeader.get( pos + lengthOffset + 1 ) & 0xFF ) << 8;
+                }
+                rawFields.put( name.toUpperCase(), new int[]{ fieldOffset, length } );
+                fieldOffset += length;
+            }
+            this.types = new DBFDataType[fields.length];
+            this.offsets = new int[fields.length];
+            this.lengths = new int[fields.length];
+            boolean supported = fieldOffset <= recordLength;
+            for ( int i = 0; i < fields.length; i++ ){
+                final int[] raw = rawFields.get( fields[i].getName().toUpperCase() );
+                types[i] = fields[i].getType();
+                if ( raw == null ){
+                    supported = false;
+                } else {
+                    offsets[i] = raw[0];
+                    lengths[i] = raw[1];
+                }
+                supported &= isSupported( types[i] );
+            }
+            this.supported = supported;
+
+            final long fileRecords = Math.max( 0, ( channel.size() - headerLength ) / recordLength );
+            this.recordCount = (int)Math.min( Math.max( 0, headerRecordCount ), fileRecords );
+            this.recordsPerSegment = Math.max( 1, Integer.MAX_VALUE / recordLength );
+            this.segments = new MappedByteBuffer[(int)(( recordCount + (long)recordsPerSegment - 1 ) / recordsPerSegment )];
+        } catch ( IOException | RuntimeException ex ){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void readFully( ByteBuffer buffer, long position ) throws IOException {
+        while ( buffer.hasRemaining() ){
+            if ( channel.read( buffer, position + buffer.position() ) < 0 ){
+                throw new IOException("Unexpected end of DBF file");
+            }
+        }
+    }
+
+    private static boolean isSupported( DBFDataType type ){
+        switch ( type ){
+            case CHARACTER:
+            case NUMERIC:
+            case FLOATING_POINT:
+            case DATE:
+            case LOGICAL:
+            case LONG:
+            case AUTOINCREMENT:
+            case DOUBLE:
+            case CURRENCY:
+            case MEMO:
+            case BINARY:
+            case BLOB:
+            case GENERAL_OLE:
+            case PICTURE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return false if the file contains field types which cannot be decoded by this reader.
+     */
+    public boolean isSupported(){
+        return supported;
+    }
+
+    public Charset getCharset(){
+        return charset;
+    }
+
+    public int getFieldCount(){
+        return fields.length;
+    }
+
+    public DBFField getField( int index ){
+        return fields[index];
+    }
+
+    /**
+     * The record count, deleted records included. Records past the end of the file are not counted.
+     */
+    public int getRecordCount(){
+        return recordCount;
+    }
+
+    public int getRecordLength(){
+        return recordLength;
+    }
+
+    private synchronized MappedByteBuffer getSegment( int segment ) throws IOException {
+        if ( segments[segment] == null ){
+            final int firstRecord = segment * recordsPerSegment;
+            final int records = Math.min( recordsPerSegment, recordCount - firstRecord );
+            segments[segment] = channel.map( FileChannel.MapMode.READ_ONLY, headerLength + (long)firstRecord * recordLength, (long)records * recordLength );
+        }
+        return segments[segment];
+    }
+
+    /**
+     * Cursor over all records.
+     */
+    public RecordCursor cursor(){
+        return new RecordCursor( 0, recordCount );
+    }
+
+    /**
+     * Cursor over the records from fromRecord (inclusive) to toRecord (exclusive).
+     */
+    public RecordCursor cursor( int fromRecord, int toRecord ){
+        return new RecordCursor( Math.max( 0, fromRecord ), Math.min( toRecord, recordCount ));
+    }
+
+    /**
+     * Cursor over a copy of the records from fromRecord (inclusive) to toRecord (exclusive), read in the heap.
+     * The cursor can be used after the reader is closed, so the file is not kept open or mapped.
+     */
+    public RecordCursor readRecords( int fromRecord, int toRecord ) throws IOException {
+        fromRecord = Math.max( 0, fromRecord );
+        toRecord = Math.max( fromRecord, Math.min( toRecord, recordCount ));
+        final ByteBuffer copy = ByteBuffer.allocate( ( toRecord - fromRecord ) * recordLength );
+        readFully( copy, headerLength + (long)fromRecord * recordLength );
+        return new RecordCursor( fromRecord, toRecord, copy );
+    }
+
+    /**
+     * The header and a copy of the records from fromRecord (inclusive) to toRecord (exclusive), as a DBF file which
+     * can be read using DBFReader after this reader is closed.
+     */
+    public InputStream readRecordsAsStream( int fromRecord, int toRecord ) throws IOException {
+        fromRecord = Math.max( 0, fromRecord );
+        toRecord = Math.max( fromRecord, Math.min( toRecord, recordCount ));
+        final ByteBuffer copy = ByteBuffer.allocate( headerLength + ( toRecord - fromRecord ) * recordLength );
+        ((Buffer)copy).limit( headerLength );
+        readFully( copy, 0 );
+        ((Buffer)copy).limit( copy.capacity() );
+        // readFully() adds the buffer position, which is now headerLength
+        readFully( copy, (long)fromRecord * recordLength );
+        return new ByteArrayInputStream( copy.array() );
+    }
+
+    /**
+     * Split the records in consecutive ranges of about the same size, one cursor for each range.
+     * Each cursor can be used by a different thread.
+     */
+    public List<RecordCursor> partition( int parts ){
+        final List<RecordCursor> cursors = new ArrayList<>();
+        parts = Math.max( 1, Math.min( parts, recordCount ));
+        for ( int i = 0; i < parts; i++ ){
+            cursors.add( new RecordCursor( (int)( (long)recordCount * i / parts ), (int)( (long)recordCount * ( i + 1 ) / parts )));
+        }
+        return cursors;
+    }
+
+    /**
+     * CRC32 of the raw records from fromRecord (inclusive) to toRecord (exclusive), deleted flags included.
+     * The records are read from the mapped segments, so after a load they are hashed from the page cache.
+     */
+    public long hashRecords( int fromRecord, int toRecord ) throws IOException {
+        fromRecord = Math.max( 0, fromRecord );
+        toRecord = Math.min( toRecord, recordCount );
+        final CRC32 crc = new CRC32();
+        while ( fromRecord < toRecord ){
+            final int segment = fromRecord / recordsPerSegment;
+            final int segmentEnd = Math.min( toRecord, ( segment + 1 ) * recordsPerSegment );
+            final ByteBuffer records = getSegment( segment ).duplicate();
+            ((Buffer)records).limit( ( segmentEnd - segment * recordsPerSegment ) * recordLength );
+            ((Buffer)records).position( ( fromRecord - segment * recordsPerSegment ) * recordLength );
+            crc.update( records );
+            fromRecord = segmentEnd;
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the records in a range. Call next() to move to the next not-deleted record, then read the fields by index.
+     * The fields are decoded directly from the mapped buffer, only when they are read. A cursor should be used by one thread.
+     */
+    public class RecordCursor {
+
+        private final int fromRecord, toRecord;
+        private final ByteBuffer copy;
+        private int recordIndex;
+        private int segment = -1;
+        private ByteBuffer buffer;
+        private int position;
+        private byte[] bytes = new byte[256];
+
+        RecordCursor( int fromRecord, int toRecord ){
+            this( fromRecord, toRecord, null );
+        }
+
+        /**
+         * @param copy the records of the range, or null to read them from the mapped segments.
+         */
+        RecordCursor( int fromRecord, int toRecord, ByteBuffer copy ){
+            this.recordIndex = fromRecord - 1;
+            this.fromRecord = fromRecord;
+            this.toRecord = toRecord;
+            this.copy = copy;
+        }
+
+        /**
+         * Move to the next not-deleted record.
+         * @return false if there are no more records in the range.
+         */
+        public boolean next() throws IOException {
+            while ( ++recordIndex < toRecord ){
+                if ( copy != null ){
+                    buffer = copy;
+                    position = ( recordIndex - fromRecord ) * recordLength;
+                } else {
+                    final int recordSegment = recordIndex / recordsPerSegment;
+                    if ( recordSegment != segment || buffer == null ){
+                        buffer = getSegment( recordSegment ).duplicate();
+                        segment = recordSegment;
+                    }
+                    position = ( recordIndex - segment * recordsPerSegment ) * recordLength;
+                }
+                final byte flag = buffer.get( position );
+                if ( flag == END_OF_FILE ){
+                    recordIndex = toRecord;
+                    break;
+                }
+                if ( flag != DELETED_FLAG ){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Position of the current record in the file, starting with 0.
+         */
+        public int getRecordIndex(){
+            return recordIndex;
+        }
+
+        public DBFDataType getType( int field ){
+            return types[field];
+        }
+
+        private byte[] read( int field ){
+            final int length = lengths[field];
+            if ( bytes.length < length ){
+                bytes = new byte[length];
+            }
+            ((Buffer)buffer).position( position + offsets[field] );
+            buffer.get( bytes, 0, length );
+            return bytes;
+        }
+
+        private int getTrimmedEnd( int field ){
+            final int start = position + offsets[field];
+            int end = lengths[field];
+            while ( end > 0 ){
+                final byte b = buffer.get( start + end - 1 );
+                if ( b != ' ' ) break;
+                end--;
+            }
+            return end;
+        }
+
+        private int getTrimmedStart( int field, int end ){
+            final int start = position + offsets[field];
+            int begin = 0;
+            while ( begin < end && buffer.get( start + begin ) == ' ' ) begin++;
+            return begin;
+        }
+
+        /**
+         * Character field value, with the right spaces removed.
+         */
+        public String getString( int field ){
+            final int end = getTrimmedEnd( field );
+            return new String( read( field ), 0, end, charset );
+        }
+
+        /**
+         * Value of NUMERIC or FLOATING_POINT fields, stored as text. Null if the field is empty or not a number.
+         */
+        public BigDecimal getBigDecimal( int field ){
+            switch ( types[field] ){
+                case LONG:
+                case AUTOINCREMENT:
+                    return BigDecimal.valueOf( getInt( field ));
+                case DOUBLE:
+                    return BigDecimal.valueOf( getDouble( field ));
+                case CURRENCY:
+                    return BigDecimal.valueOf( getBinaryLong( field ), 4 );
+            }
+            final int end = getTrimmedEnd( field );
+            final int begin = getTrimmedStart( field, end );
+            if ( begin == end ){
+                return null;
+            }
+            final int start = position + offsets[field];
+            long unscaled = 0;
+            int scale = -1, digits = 0;
+            boolean negative = false;
+            for ( int i = begin; i < end; i++ ){
+                final byte b = buffer.get( start + i );
+                if ( b >= '0' && b <= '9' ){
+                    unscaled = unscaled * 10 + ( b - '0' );
+                    if ( scale > -1 ) scale++;
+                    if ( ++digits > 18 ){
+                        return parseBigDecimal( field, begin, end );
+                    }
+                } else if ( b == '.' && scale == -1 ){
+                    scale = 0;
+                } else if ( b == '-' && i == begin ){
+                    negative = true;
+                } else if ( b == '+' && i == begin ){
+                    // ignore
+                } else {
+                    return parseBigDecimal( field, begin, end );
+                }
+            }
+            if ( digits == 0 ){
+                // DBFReader reads an empty number with decimal point as zero
+                return scale == 0 ? BigDecimal.ZERO : null;
+            }
+            return BigDecimal.valueOf( negative ? -unscaled : unscaled, Math.max( scale, 0 ));
+        }
+
+        private BigDecimal parseBigDecimal( int field, int begin, int end ){
+            final byte[] bytes = read( field );
+            try {
+                return new BigDecimal( new String( bytes, begin, end - begin, StandardCharsets.US_ASCII ));
+            } catch ( NumberFormatException ex ){
+                return null;
+            }
+        }
+
+        /**
+         * Numeric field value as long. Decimals are truncated.
+         */
+        public long getLong( int field ){
+            switch ( types[field] ){
+                case LONG:
+                case AUTOINCREMENT:
+                    return getInt( field );
+                case DOUBLE:
+                    return (long)getDouble( field );
+            }
+            final BigDecimal value = getBigDecimal( field );
+            return value != null ? value.longValue() : 0;
+        }
+
+        /**
+         * Numeric field value as double.
+         */
+        public double getDouble( int field ){
+            if ( types[field] == DBFDataType.DOUBLE ){
+                return Double.longBitsToDouble( getBinaryLong( field ));
+            }
+            final BigDecimal value = getBigDecimal( field );
+            return value != null ? value.doubleValue() : 0;
+        }
+
+        private int getInt( int field ){
+            final int start = position + offsets[field];
+            return ( buffer.get( start ) & 0xFF ) | ( buffer.get( start + 1 ) & 0xFF ) << 8 | ( buffer.get( start + 2 ) & 0xFF ) << 16 | ( buffer.get( start + 3 ) & 0xFF ) << 24;
+        }
+
+        /**
+         * Block of a memo, binary or OLE field in the memo file, 0 if the field is empty. The block number is stored
+         * as text, or as a 4 bytes integer in Visual FoxPro files.
+         */
+        public int getMemoBlock( int field ){
+            if ( lengths[field] == 4 ){
+                return getInt( field );
+            }
+            final int start = position + offsets[field];
+            int block = 0;
+            for ( int i = 0; i < lengths[field]; i++ ){
+                final byte b = buffer.get( start + i );
+                if ( b >= '0' && b <= '9' ){
+                    block = block * 10 + ( b - '0' );
+                } else if ( b != ' ' && b != 0 ){
+                    return 0;
+                }
+            }
+            return block;
+        }
+
+        private long getBinaryLong( int field ){
+            final int start = position + offsets[field];
+            long value = 0;
+            for ( int i = 7; i >= 0; i-- ){
+                value = ( value << 8 ) | ( buffer.get( start + i ) & 0xFF );
+            }
+            return value;
+        }
+
+        /**
+         * Logical field value, null if the field is not set.
+         */
+        public Boolean getBoolean( int field ){
+            switch ( buffer.get( position + offsets[field] )){
+                case 'T': case 't': case 'Y': case 'y': return Boolean.TRUE;
+                case 'F': case 'f': case 'N': case 'n': return Boolean.FALSE;
+                default: return null;
+            }
+        }
+
+        /**
+         * Date field value, stored as YYYYMMDD. Null if the field is empty or invalid.
+         */
+        public Date getDate( int field ){
+            final int start = position + offsets[field];
+            int year = 0, month = 0, day = 0;
+            for ( int i = 0; i < 8; i++ ){
+                final byte b = buffer.get( start + i );
+                if ( b < '0' || b > '9' ) return null;
+                if ( i < 4 ) year = year * 10 + ( b - '0' );
+                else if ( i < 6 ) month = month * 10 + ( b - '0' );
+                else day = day * 10 + ( b - '0' );
+            }
+            if ( year == 0 || month < 1 || month > 12 || day < 1 || day > 31 ){
+                return null;
+            }
+            return new GregorianCalendar( year, month - 1 + Calendar.JANUARY, day ).getTime();
+        }
+
+        public boolean isNull( int field ){
+            switch ( types[field] ){
+                case LONG:
+                case AUTOINCREMENT:
+                case DOUBLE:
+                case CURRENCY:
+                    return false;
+                case DATE:
+                    return getDate( field ) == null;
+                case LOGICAL:
+                    return getBoolean( field ) == null;
+                case NUMERIC:
+                case FLOATING_POINT:
+                    return getBigDecimal( field ) == null;
+                case CHARACTER:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Decode the field using the same Java types as DBFReader.
+         */
+        public Object getValue( int field ){
+            switch ( types[field] ){
+                case CHARACTER:
+                    return getString( field );
+                case NUMERIC:
+                case FLOATING_POINT:
+                case CURRENCY:
+                    return getBigDecimal( field );
+                case DATE:
+                    return getDate( field );
+                case LOGICAL:
+                    return getBoolean( field );
+                case LONG:
+                case AUTOINCREMENT:
+                    return getInt( field );
+                case DOUBLE:
+                    return getDouble( field );
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * All fields of the current record, as DBFReader.nextRecord() returns them.
+         */
+        public Object[] getValues(){
+            final Object[] values = new Object[fields.length];
+            for ( int i = 0; i < values.length; i++ ){
+                values[i] = getValue( i );
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.dbschema.xbase.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Reads the memo, binary and OLE fields from the .dbt or .fpt memo file of a DBF file. Each value is returned as an
+ * InputStream reading the memo block through a small buffer, so values of any size are streamed into H2 without
+ * being loaded in the heap. The streams of one reader use the same FileChannel, they can be used by one thread.
+ *
+ * Supported formats: FoxPro .fpt ( block type and length, big-endian ), dBase IV .dbt ( block signature and length )
+ * and dBase III .dbt ( 512 bytes blocks, the text ends with 0x1A ).
+ */
+public class DbfMemoReader implements Closeable {
+
+    private static final int DBASE3_BLOCK_SIZE = 512, FOXPRO_BLOCK_SIZE = 64, BLOCK_HEADER_SIZE = 8, BUFFER_SIZE = 8192;
+    private static final byte END_OF_TEXT = 0x1A;
+    private static final String[] MEMO_EXTENSIONS = { ".dbt", ".DBT", ".fpt", ".FPT" };
+
+    private final FileChannel channel;
+    private final boolean foxPro;
+    private final int blockSize;
+    private final long fileSize;
+
+    public DbfMemoReader( File memoFile ) throws IOException {
+        this.channel = FileChannel.open( memoFile.toPath(), StandardOpenOption.READ );
+        try {
+            this.foxPro = memoFile.getName().toLowerCase().endsWith(".fpt");
+            this.fileSize = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate( 32 );
+            channel.read( header, 0 );
+            final int size;
+            if ( foxPro ){
+                size = header.order( ByteOrder.BIG_ENDIAN ).getShort( 6 ) & 0xFFFF;
+                this.blockSize = size > 0 ? size : FOXPRO_BLOCK_SIZE;
+            } else {
+                size = header.order( ByteOrder.LITTLE_ENDIAN ).getShort( 20 ) & 0xFFFF;
+                this.blockSize = size > 0 && size % 64 == 0 ? size : DBASE3_BLOCK_SIZE;
+            }
+        } catch ( IOException | RuntimeException ex ){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the .dbt or .fpt file with the same name as the DBF file, or null. We check only the lower and upper
+     * case extensions, not the whole folder, as this is done for each file on connect.
+     */
+    public static File findMemoFile( File dbfFile ){
+        final String name = dbfFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String baseName = dot > 0 ? name.substring( 0, dot ) : name;
+        for ( String extension : MEMO_EXTENSIONS ){
+            final File memoFile = new File( dbfFile.getParentFile(), baseName + extension );
+            if ( memoFile.isFile() ){
+                return memoFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the content of the memo block, or null if the block is not in the file.
+     */
+    public MemoStream openStream( int block ) throws IOException {
+        final long position = (long)block * blockSize;
+        if ( block <= 0 || position >= fileSize ){
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.allocate( BLOCK_HEADER_SIZE );
+        channel.read( header, position );
+        if ( foxPro ){
+            final long length = header.order( ByteOrder.BIG_ENDIAN ).getInt( 4 ) & 0xFFFFFFFFL;
+            return new MemoStream( position + BLOCK_HEADER_SIZE, Math.min( length, fileSize - position - BLOCK_HEADER_SIZE ));
+        }
+        if ( header.get( 0 ) == (byte)0xFF && header.get( 1 ) == (byte)0xFF && header.get( 2 ) == 0x08 && header.get( 3 ) == 0x00 ){
+            final long length = ( header.order( ByteOrder.LITTLE_ENDIAN ).getInt( 4 ) & 0xFFFFFFFFL ) - BLOCK_HEADER_SIZE;
+            return new MemoStream( position + BLOCK_HEADER_SIZE, Math.max( 0, Math.min( length, fileSize - position - BLOCK_HEADER_SIZE )));
+        }
+        return new MemoStream( position, -1 );
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The content of one memo block. The length is known for FoxPro and dBase IV memos, for dBase III memos the
+     * stream ends at the 0x1A end of text mark.
+     */
+    public class MemoStream extends InputStream {
+
+        private final ByteBuffer buffer;
+        private final long length;
+        private long position, remaining;
+        private boolean ended;
+
+        MemoStream( long position, long length ){
+            this.position = position;
+            this.length = length;
+            this.remaining = length >= 0 ? length : fileSize - position;
+            this.buffer = ByteBuffer.allocate( (int)Math.max( 1, Math.min( BUFFER_SIZE, remaining )));
+            ((Buffer)buffer).flip();
+        }
+
+        /**
+         * @return the length in bytes, or -1 if unknown.
+         */
+        public long getLength(){
+            return length;
+        }
+
+        private boolean fill() throws IOException {
+            if ( buffer.hasRemaining() ){
+                return true;
+            }
+            if ( ended || remaining <= 0 ){
+                return false;
+            }
+            ((Buffer)buffer).clear();
+            if ( remaining < buffer.capacity() ){
+                ((Buffer)buffer).limit( (int)remaining );
+            }
+            final int read = channel.read( buffer, position );
+            ((Buffer)buffer).flip();
+            if ( read <= 0 ){
+                ended = true;
+                return false;
+            }
+            position += read;
+            remaining -= read;
+            if ( length < 0 ){
+                for ( int i = 0; i < read; i++ ){
+                    if ( buffer.get( i ) == END_OF_TEXT ){
+                        ((Buffer)buffer).limit( i );
+                        ended = true;
+                        break;
+                    }
+                }
+            }
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read( byte[] bytes, int offset, int len ) throws IOException {
+            if ( len == 0 ){
+                return 0;
+            }
+            if ( !fill() ){
+                return -1;
+            }
+            final int count = Math.min( len, buffer.remaining() );
+            buffer.get( bytes, offset, count );
+            return count;
+        }
+    }
+}
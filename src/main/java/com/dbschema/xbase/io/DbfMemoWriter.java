@@ -0,0 +1,213 @@
+package com.dbschema.xbase.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Writes the memo, binary and OLE fields of a DbfFileWriter in a FoxPro .fpt memo file. The values are copied from
+ * a Reader or an InputStream through one buffer, so values of any size are written without being loaded in the heap.
+ * The block length is written in the block header after the value, at its position in the buffer or in the file.
+ * Like the DbfFileWriter, the file is written to a temporary file which replaces the target file on close().
+ * The DbfFileWriter calls finish() and moveToTarget() instead, to replace the memo file only after the DBF file.
+ */
+class DbfMemoWriter implements Closeable {
+
+    static final int PICTURE_BLOCK = 0, TEXT_BLOCK = 1, OBJECT_BLOCK = 2;
+    private static final int BLOCK_SIZE = 64, HEADER_SIZE = 512, BLOCK_HEADER_SIZE = 8, BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final File tempFile;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+    private final CharBuffer chars = CharBuffer.allocate( 4096 );
+    private long flushedLength;
+    private boolean finished, moved;
+
+    DbfMemoWriter( File file, Charset charset ) throws IOException {
+        this.file = file;
+        this.encoder = charset.newEncoder().onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+        this.tempFile = File.createTempFile( file.getName(), ".tmp", file.getAbsoluteFile().getParentFile() );
+        this.channel = FileChannel.open( tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        // The header is written on close(), when the next free block is known
+        buffer.put( new byte[HEADER_SIZE] );
+    }
+
+    /**
+     * @return the first block of the text.
+     */
+    int writeText( Reader reader ) throws IOException {
+        final long start = beginBlock( TEXT_BLOCK );
+        encoder.reset();
+        ((Buffer)chars).clear();
+        boolean endOfInput = false;
+        while ( true ){
+            if ( !endOfInput ){
+                final int read = reader.read( chars.array(), chars.position(), chars.remaining() );
+                if ( read < 0 ){
+                    endOfInput = true;
+                } else {
+                    ((Buffer)chars).position( chars.position() + read );
+                }
+            }
+            ((Buffer)chars).flip();
+            final CoderResult result = encoder.encode( chars, buffer, endOfInput );
+            chars.compact();
+            if ( result.isOverflow() ){
+                flush();
+            } else if ( endOfInput ){
+                break;
+            }
+        }
+        while ( encoder.flush( buffer ).isOverflow() ){
+            flush();
+        }
+        return endBlock( start );
+    }
+
+    /**
+     * @param blockType PICTURE_BLOCK or OBJECT_BLOCK.
+     * @return the first block of the data.
+     */
+    int writeBinary( InputStream in, int blockType ) throws IOException {
+        final long start = beginBlock( blockType );
+        while ( true ){
+            if ( !buffer.hasRemaining() ){
+                flush();
+            }
+            final int read = in.read( buffer.array(), buffer.position(), buffer.remaining() );
+            if ( read < 0 ){
+                break;
+            }
+            ((Buffer)buffer).position( buffer.position() + read );
+        }
+        return endBlock( start );
+    }
+
+    /**
+     * Write the block header with an empty length. The header is not split between the buffer and the file.
+     */
+    private long beginBlock( int blockType ) throws IOException {
+        if ( buffer.remaining() < BLOCK_HEADER_SIZE ){
+            flush();
+        }
+        final long start = flushedLength + buffer.position();
+        buffer.putInt( blockType );
+        buffer.putInt( 0 );
+        return start;
+    }
+
+    /**
+     * Write the length in the block header, and fill the last block with zeros.
+     */
+    private int endBlock( long start ) throws IOException {
+        final long end = flushedLength + buffer.position();
+        final long length = end - start - BLOCK_HEADER_SIZE;
+        if ( length > Integer.MAX_VALUE ){
+            throw new IOException("Memo of " + length + " bytes is too large");
+        }
+        if ( start >= flushedLength ){
+            buffer.putInt( (int)( start - flushedLength + 4 ), (int)length );
+        } else {
+            final ByteBuffer lengthBuffer = ByteBuffer.allocate( 4 ).putInt( 0, (int)length );
+            channel.write( lengthBuffer, start + 4 );
+        }
+        int padding = (int)( ( BLOCK_SIZE - end % BLOCK_SIZE ) % BLOCK_SIZE );
+        while ( padding > 0 ){
+            if ( !buffer.hasRemaining() ){
+                flush();
+            }
+            final int count = Math.min( padding, buffer.remaining() );
+            buffer.put( new byte[count] );
+            padding -= count;
+        }
+        return (int)( start / BLOCK_SIZE );
+    }
+
+    private void flush() throws IOException {
+        ((Buffer)buffer).flip();
+        while ( buffer.hasRemaining() ){
+            flushedLength += channel.write( buffer, flushedLength );
+        }
+        ((Buffer)buffer).clear();
+    }
+
+    /**
+     * Write the header with the next free block and the block size, then replace the target file.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( moved ){
+            return;
+        }
+        try {
+            finish();
+            moveToTarget();
+        } catch ( IOException | RuntimeException ex ){
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Write the header with the next free block and the block size. The target file is not modified yet.
+     */
+    void finish() throws IOException {
+        if ( finished ){
+            return;
+        }
+        finished = true;
+        flush();
+        final ByteBuffer header = ByteBuffer.allocate( 8 );
+        header.putInt( 0, (int)( flushedLength / BLOCK_SIZE ));
+        header.putShort( 6, (short)BLOCK_SIZE );
+        channel.write( header, 0 );
+        channel.force( true );
+        channel.close();
+    }
+
+    /**
+     * Replace the target file with the finished temporary file.
+     */
+    void moveToTarget() throws IOException {
+        try {
+            Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } catch ( AtomicMoveNotSupportedException ex ){
+            Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        moved = true;
+    }
+
+    /**
+     * Delete the temporary file. Does nothing after the target file was replaced.
+     */
+    void abort(){
+        if ( moved ){
+            return;
+        }
+        finished = true;
+        try {
+            channel.close();
+        } catch ( IOException ignore ){
+        }
+        tempFile.delete();
+    }
+}
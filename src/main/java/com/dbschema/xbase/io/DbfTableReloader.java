@@ -0,0 +1,137 @@
+package com.dbschema.xbase.io;
+
+import com.dbschema.xbase.schema.DataTypeUtil;
+import com.dbschema.xbase.schema.Table;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.logging.Level;
+
+import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
+
+/**
+ * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
+ *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Reload the tables of changed DBF files while the driver is running. Used by the DbfFolderWatcher and by the
+ * 'reload dbf table' and 'refresh dbf' commands. Each reload uses its own H2 session.
+ * If records were only appended to the file, only the new records are inserted.
+ * Otherwise tables are reloaded using a shadow table, see DbfLoaderInH2.reloadTable(). Tables of removed files are dropped.
+ * With load=lazy, tables not loaded yet are skipped, they will be loaded from the current file.
+ */
+public class DbfTableReloader {
+
+    private final File rootFolder;
+    private final String h2JdbcUrl;
+    private final int commitInterval;
+    private final ReadWriteLock swapLock;
+    private DbfLazyLoader lazyLoader;
+    private String types = DataTypeUtil.TYPES_STANDARD;
+
+    /**
+     * @param swapLock the tables are replaced holding the write lock. Statements hold the read lock while they are executed.
+     */
+    public DbfTableReloader( File rootFolder, String h2JdbcUrl, int commitInterval, ReadWriteLock swapLock ){
+        this.rootFolder = rootFolder;
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.commitInterval = commitInterval;
+        this.swapLock = swapLock;
+    }
+
+    public void setLazyLoader( DbfLazyLoader lazyLoader ){
+        this.lazyLoader = lazyLoader;
+    }
+
+    /**
+     * The mapping of DBF fields to H2 column types, should be the one used to create the tables. Default standard.
+     */
+    public void setTypes( String types ){
+        this.types = types;
+    }
+
+    /**
+     * Reload the table of the DBF file, or drop it if the file was removed.
+     * @param force reload also a table modified in H2 since it was loaded, the changes are lost. Otherwise the table is kept.
+     * @return true if the table was reloaded, appended or dropped.
+     */
+    public boolean reload( File file, boolean force ) throws Exception {
+        final Table table = new Table( rootFolder, file );
+        if ( lazyLoader != null && lazyLoader.isPending( table.name )){
+            if ( file.exists() ){
+                return false;
+            }
+            lazyLoader.unregister( table.name );
+        }
+        try ( Connection h2Connection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+            final boolean dirty = DbfDirtyTables.loadDirtyTables( h2Connection ).contains( table.name );
+            if ( dirty && !force ){
+                LOGGER.log(Level.WARNING, "Table '" + table.name + "' was modified, it is not reloaded from the changed file " + file );
+                return false;
+            }
+            if ( !file.exists() ){
+                LOGGER.log(Level.INFO, "Drop table '" + table.name + "', the DBF file was removed");
+                swapLock.writeLock().lock();
+                try {
+                    DbfLoaderInH2.dropTable( h2Connection, table.name );
+                } finally {
+                    swapLock.writeLock().unlock();
+                }
+                DbfFingerprint.delete( h2Connection, table.name );
+                DbfLoadStatus.delete( h2Connection, table.name );
+                DbfDirtyTables.markClean( h2Connection, table.name );
+                return true;
+            }
+            final DbfLoaderInH2 loader = new DbfLoaderInH2( commitInterval, types );
+            final DbfFingerprint stored = DbfFingerprint.load( h2Connection, table.name );
+            if ( !dirty && stored != null && loader.appendFile( table, file, stored, h2Connection )){
+                return true;
+            }
+            loader.reloadTable( table, file, h2Connection, swapLock.writeLock() );
+            return true;
+        }
+    }
+
+    /**
+     * Compare the DBF files with the fingerprints stored at the last load, and reload the tables of the changed files.
+     * New files are loaded, the tables of removed files are dropped. Tables modified in H2 are not reloaded.
+     * @return the names of the reloaded tables.
+     */
+    public List<String> refresh() throws Exception {
+        final Map<String,DbfFingerprint> storedFingerprints;
+        try ( Connection h2Connection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+            storedFingerprints = DbfFingerprint.loadAll( h2Connection );
+        }
+        final List<File> files = new ArrayList<>();
+        DbfFolderLoader.collectFiles( rootFolder, files );
+        final List<File> changedFiles = new ArrayList<>();
+        for ( File file : files ){
+            final DbfFingerprint stored = storedFingerprints.remove( new Table( rootFolder, file ).name );
+            DbfFingerprint fingerprint = null;
+            try {
+                fingerprint = DbfFingerprint.read( file );
+            } catch ( IOException ex ){
+                LOGGER.log(Level.INFO, "Cannot read fingerprint of " + file, ex );
+            }
+            if ( fingerprint == null || !fingerprint.equals( stored )){
+                changedFiles.add( file );
+            }
+        }
+        for ( DbfFingerprint removed : storedFingerprints.values() ){
+            changedFiles.add( new File( removed.filePath ));
+        }
+        final List<String> reloadedTables = new ArrayList<>();
+        for ( File file : changedFiles ){
+            if ( reload( file, false )){
+                reloadedTables.add( new Table( rootFolder, file ).name );
+            }
+        }
+        LOGGER.log(Level.INFO, "Refreshed " + reloadedTables.size() + " tables of " + rootFolder );
+        return reloadedTables;
+    }
+}
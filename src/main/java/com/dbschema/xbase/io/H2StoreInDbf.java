@@ -1,85 +1,412 @@
 package com.dbschema.xbase.io;
 
 
-import com.dbschema.xbase.schema.Db;
+import com.dbschema.xbase.DbfJdbcDriver;
 import com.dbschema.xbase.schema.DataTypeUtil;
 import com.dbschema.xbase.schema.Table;
-import com.linuxense.javadbf.DBFWriter;
+import com.linuxense.javadbf.DBFDataType;
+import com.linuxense.javadbf.DBFField;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import static com.dbschema.xbase.DbfJdbcDriver.LOGGER;
 
 /**
  * Copyright DbSchema@Wise Coders GmbH. All rights reserved.
  *  Licensed under BSD License-3: free to use, distribution forbidden. Improvements accepted only in https://bitbucket.org/dbschema/dbf-jdbc-driver
+ *
+ * Save the H2 tables as DBF files. The fields of the tables loaded from DBF files are read from the DbfCatalog, so the files
+ * are written with the original DBF layout. Only the tables created or altered using SQL are defined from their H2 columns.
+ * With more than one thread, each table is exported by a worker using its own H2 session. Workers read only committed data,
+ * so if the connection has uncommitted changes ( auto-commit off ) the tables are exported one after another on the connection.
+ * The records are read as a forward-only stream, using H2 lazy query execution, and written using the DbfFileWriter.
+ * With setChangesOnly() we write only the tables modified since they were loaded, and copy the original DBF files of the others.
+ * With setTables() we write only some tables, and storeQuery() writes the result of a query as one DBF file.
  */
 public class H2StoreInDbf {
 
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    private final static char QUOTE_CHAR = '"';
+    private static final String SELECT_TABLES =
+            "select TABLE_NAME, SQL from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA=SCHEMA()";
+    private static final String SELECT_COLUMNS =
+            "select COLUMN_NAME, TYPE_NAME, CHARACTER_MAXIMUM_LENGTH, NUMERIC_SCALE from INFORMATION_SCHEMA.COLUMNS " +
+                    "where TABLE_SCHEMA=SCHEMA() and TABLE_NAME=? order by ORDINAL_POSITION";
 
-    public H2StoreInDbf(Connection h2Connection, File outputFolder, String charset ) throws Exception {
+    private final String h2JdbcUrl;
+    private final String charset;
+    private final int threads;
+    private boolean changesOnly;
+    private Set<String> selectedTables;
 
-        Db db = new Db();
+    /**
+     * @param h2JdbcUrl used by the workers to open their own H2 sessions.
+     * @param threads number of workers. 1 exports the tables one after another, 0 uses one worker for each CPU core.
+     */
+    public H2StoreInDbf( String h2JdbcUrl, String charset, int threads ){
+        this.h2JdbcUrl = h2JdbcUrl;
+        this.charset = charset;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Write only the tables modified since they were loaded ( see DbfDirtyTables ). For the other tables we copy the
+     * original DBF file and its memo file. Tables created in H2, altered, or which DBF file changed on disk are always written.
+     */
+    public void setChangesOnly( boolean changesOnly ){
+        this.changesOnly = changesOnly;
+    }
 
-        final ResultSet rsColumns = h2Connection.getMetaData().getColumns( null, null, null, null );
-        while( rsColumns.next() ){
-            String tableName = rsColumns.getString( 3 );
-            if ( !DataTypeUtil.isH2SystemTable(tableName )) {
-                String columnName = rsColumns.getString(4);
-                LOGGER.info("Define column " + tableName + "." + columnName);
-                db.getOrCreateTable( tableName).createField(columnName, rsColumns.getString(6), rsColumns.getInt(7), rsColumns.getInt(9));
+    /**
+     * Write only these tables. Table names are matched case-insensitive. Default null, all tables are written.
+     */
+    public void setTables( Collection<String> tableNames ){
+        if ( tableNames == null ){
+            selectedTables = null;
+        } else {
+            selectedTables = new HashSet<>();
+            for ( String tableName : tableNames ){
+                selectedTables.add( tableName.toLowerCase( Locale.ROOT ));
             }
         }
+    }
 
-        for ( Table table : db.getTables() ){
-            final File outputFile = new File( outputFolder.toURI().resolve( table.name + ".dbf"));
-            LOGGER.info("Storing " + table + "...");
+    public void store( Connection h2Connection, File outputFolder ) throws Exception {
+        final DbfCatalog catalog = DbfCatalog.load( h2Connection );
+        List<Table> tables = new ArrayList<>();
+        final Set<String> loadedTables = new HashSet<>();
+        final Set<String> missingTables = selectedTables != null ? new HashSet<>( selectedTables ) : new HashSet<>();
+        try ( Statement st = h2Connection.createStatement();
+              ResultSet rs = st.executeQuery( SELECT_TABLES ) ){
+            while ( rs.next() ){
+                final String tableName = rs.getString(1);
+                if ( DataTypeUtil.isH2SystemTable( tableName ) ||
+                        ( selectedTables != null && !selectedTables.contains( tableName.toLowerCase( Locale.ROOT )))){
+                    continue;
+                }
+                missingTables.remove( tableName.toLowerCase( Locale.ROOT ));
+                final Table loadedTable = catalog.getTable( tableName, rs.getString(2) );
+                if ( loadedTable != null ){
+                    loadedTables.add( tableName );
+                }
+                tables.add( loadedTable != null && DbfCatalog.isWritable( loadedTable ) ? loadedTable : readTable( h2Connection, tableName, catalog ));
+            }
+        }
+        if ( !missingTables.isEmpty() ){
+            throw new SQLException("Tables not found: " + missingTables );
+        }
+        if ( changesOnly ){
+            tables = copyUnchangedTables( h2Connection, tables, loadedTables, outputFolder );
+        }
+        if ( threads > 1 && tables.size() > 1 && h2Connection.getAutoCommit() ){
+            storeParallel( tables, outputFolder );
+        } else {
+            final List<Table> storedTables = tables;
+            runInExportSession( h2Connection, ( session, lazy ) -> {
+                for ( Table table : storedTables ){
+                    storeTable( table, outputFolder, session, lazy );
+                }
+            });
+        }
+    }
 
-            final FileOutputStream os = new FileOutputStream(outputFile);
-            final DBFWriter writer = charset != null ? new DBFWriter(os, Charset.forName(charset)) : new DBFWriter(os);
-            writer.setFields( table.getDBFFields() );
+    private interface ExportTask {
+        void run( Connection session, boolean lazy ) throws Exception;
+    }
 
-            try ( Statement st = h2Connection.createStatement()) {
-                ResultSet rs = st.executeQuery("SELECT * FROM " + table.name);
-                int recCount = 0;
-                while (rs.next()) {
-                    int columnCount = rs.getMetaData().getColumnCount();
-                    Object[] data = new Object[columnCount];
-                    for (int i = 0; i < columnCount; i++) {
-                        data[i] = rs.getObject(i + 1);
-                    }
-                    try {
-                        writer.addRecord(data);
-                    } catch ( Throwable ex ){
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("Error saving ").append( outputFile.getAbsolutePath() ).append( " record : [");
-                        for ( Object obj: data){
-                            if ( obj == null ){
-                                sb.append("null");
-                            } else {
-                                sb.append("'").append( obj.toString()).append("'");
-                            }
-                            sb.append(",");
+    /**
+     * The records are read using H2 lazy query execution, so they are not buffered. 'SET LAZY_QUERY_EXECUTION' commits
+     * the open transaction, so we set it only in a session of our own: in auto-commit mode the task gets a new session,
+     * otherwise it gets the connection without lazy execution, so its uncommitted changes are saved and stay uncommitted.
+     */
+    private void runInExportSession( Connection h2Connection, ExportTask task ) throws Exception {
+        if ( h2Connection.getAutoCommit() ){
+            try ( Connection session = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+                task.run( session, true );
+            }
+        } else {
+            task.run( h2Connection, false );
+        }
+    }
+
+    /**
+     * Define the fields of a table which is not in the catalog, or was altered using SQL, reading its H2 columns.
+     * The columns loaded from a DBF file keep their original field type, length and decimals.
+     */
+    private static Table readTable( Connection h2Connection, String tableName, DbfCatalog catalog ) throws SQLException {
+        final Table table = new Table( tableName );
+        try ( PreparedStatement st = h2Connection.prepareStatement( SELECT_COLUMNS ) ){
+            st.setString( 1, tableName );
+            try ( ResultSet rs = st.executeQuery() ){
+                while ( rs.next() ){
+                    final String columnName = rs.getString(1);
+                    LOGGER.info("Define column " + tableName + "." + columnName);
+                    final DBFField originalField = catalog.getField( tableName, columnName );
+                    if ( originalField != null ){
+                        if ( originalField.getType() == DBFDataType.CHARACTER && rs.getInt(3) > originalField.getLength() ){
+                            // The column was enlarged using SQL
+                            originalField.setLength( Math.min( rs.getInt(3), DBFDataType.CHARACTER.getMaxSize() ));
                         }
-                        sb.append(" ]");
-                        throw new SQLException(sb.toString() + ex.getLocalizedMessage(), ex );
+                        table.addField( originalField );
+                    } else {
+                        table.createField( columnName, rs.getString(2), rs.getInt(3), rs.getInt(4) );
                     }
-                    recCount++;
                 }
-                rs.close();
-                writer.close();
-                LOGGER.info("Stored " + table.name + " " + recCount + " records." );
             }
         }
+        return table;
     }
 
+    /**
+     * Copy the original DBF files of the tables which were not modified.
+     * @return the tables which have to be written.
+     */
+    private List<Table> copyUnchangedTables( Connection h2Connection, List<Table> tables, Set<String> loadedTables, File outputFolder ) throws SQLException, IOException {
+        final Set<String> dirtyTables = DbfDirtyTables.loadDirtyTables( h2Connection );
+        final Set<String> trackedTables = DbfDirtyTables.loadTrackedTables( h2Connection );
+        final Map<String,DbfFingerprint> fingerprints = DbfFingerprint.loadAll( h2Connection );
+        final List<Table> changedTables = new ArrayList<>();
+        for ( Table table : tables ){
+            final DbfFingerprint fingerprint = fingerprints.get( table.name );
+            if ( fingerprint != null && trackedTables.contains( table.name ) && !dirtyTables.contains( table.name ) &&
+                    loadedTables.contains( table.name ) && isFileUnchanged( fingerprint )){
+                copyOriginal( table, new File( fingerprint.filePath ), outputFolder );
+            } else {
+                changedTables.add( table );
+            }
+        }
+        LOGGER.info("Save " + changedTables.size() + " modified tables, copy " + ( tables.size() - changedTables.size() ) + " unchanged tables");
+        return changedTables;
+    }
 
+    /**
+     * If the DBF file was modified after the load, the H2 table is the version to save.
+     */
+    private static boolean isFileUnchanged( DbfFingerprint fingerprint ){
+        try {
+            return fingerprint.equals( DbfFingerprint.read( new File( fingerprint.filePath )));
+        } catch ( IOException ex ){
+            return false;
+        }
+    }
 
+    private void copyOriginal( Table table, File originalFile, File outputFolder ) throws IOException {
+        final File outputFile = new File( outputFolder.toURI().resolve( table.name + ".dbf"));
+        if ( outputFile.getCanonicalFile().equals( originalFile.getCanonicalFile() )){
+            return;
+        }
+        LOGGER.info("Copy unchanged " + originalFile );
+        if ( outputFile.getParentFile() != null ){
+            outputFile.getParentFile().mkdirs();
+        }
+        Files.copy( originalFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        final String baseName = originalFile.getName().substring( 0, originalFile.getName().length() - ".dbf".length() );
+        final String outputBaseName = outputFile.getName().substring( 0, outputFile.getName().length() - ".dbf".length() );
+        final File[] memoFiles = originalFile.getParentFile().listFiles( ( dir, name ) -> {
+            final String lowerName = name.toLowerCase();
+            return name.length() == baseName.length() + 4 && name.regionMatches( true, 0, baseName, 0, baseName.length() ) &&
+                    ( lowerName.endsWith(".dbt") || lowerName.endsWith(".fpt") );
+        });
+        if ( memoFiles != null ){
+            for ( File memoFile : memoFiles ){
+                final String extension = memoFile.getName().substring( baseName.length() );
+                Files.copy( memoFile.toPath(), new File( outputFile.getParentFile(), outputBaseName + extension ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        }
+    }
 
+    private void storeParallel( List<Table> tables, File outputFolder ) throws SQLException {
+        LOGGER.log(Level.INFO, "Save " + tables.size() + " tables using " + threads + " threads");
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, tables.size() ), runnable -> {
+            Thread thread = new Thread( runnable, "dbf-export-" + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        final List<Future<Void>> futures = new ArrayList<>();
+        for ( Table table : tables ){
+            futures.add( executor.submit( () -> {
+                try ( Connection workerConnection = new org.h2.Driver().connect( h2JdbcUrl, new Properties() ) ){
+                    storeTable( table, outputFolder, workerConnection, true );
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        final List<SQLException> failures = new ArrayList<>();
+        try {
+            for ( int i = 0; i < tables.size(); i++ ){
+                try {
+                    futures.get(i).get();
+                } catch ( ExecutionException ex ){
+                    final Throwable cause = ex.getCause();
+                    LOGGER.log(Level.SEVERE, "Error saving " + tables.get(i).name, cause );
+                    failures.add( cause instanceof SQLException ? (SQLException)cause :
+                            new SQLException( tables.get(i).name + ": " + ( cause.getLocalizedMessage() != null ? cause.getLocalizedMessage() : cause.toString() ), cause ));
+                }
+            }
+        } catch ( InterruptedException ex ){
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new SQLException("DBF export interrupted", ex );
+        }
+        if ( !failures.isEmpty() ){
+            final StringBuilder sb = new StringBuilder("Failed to save ").append( failures.size() ).append(" table(s):");
+            for ( SQLException failure : failures ){
+                sb.append("\n").append( failure.getLocalizedMessage() );
+            }
+            final SQLException ex = new SQLException( sb.toString(), failures.get(0) );
+            for ( SQLException failure : failures ){
+                ex.setNextException( failure );
+            }
+            throw ex;
+        }
+    }
+
+    private String getSelectSql( Table table ){
+        final StringBuilder sb = new StringBuilder("select ");
+        boolean appendComma = false;
+        for ( DBFField field : table.fields ){
+            if ( appendComma ){
+                sb.append(",");
+            }
+            sb.append(QUOTE_CHAR).append(field.getName()).append(QUOTE_CHAR);
+            appendComma = true;
+        }
+        return sb.append(" from ").append(QUOTE_CHAR).append(table.name).append(QUOTE_CHAR).toString();
+    }
+
+    /**
+     * Write the result of a query as one DBF file, streaming the records from H2 to the file, without a temporary table.
+     * The columns of tables loaded from DBF files keep their original field type and length. The field names are
+     * the column labels, shortened to the 10 characters allowed in DBF files.
+     * @param name the name of the DBF file, without the extension.
+     */
+    public void storeQuery( Connection h2Connection, String sql, String name, File outputFolder ) throws Exception {
+        final long start = System.nanoTime();
+        final DbfCatalog catalog = DbfCatalog.load( h2Connection );
+        LOGGER.info("Storing query as " + name + "...");
+        runInExportSession( h2Connection, ( session, lazy ) -> {
+            try ( Statement st = createStreamingStatement( session, lazy );
+                  ResultSet rs = st.executeQuery( sql )){
+                writeRecords( defineQueryTable( name, rs.getMetaData(), catalog ), rs, outputFolder, start );
+            }
+        });
+    }
+
+    private static Table defineQueryTable( String name, ResultSetMetaData metaData, DbfCatalog catalog ) throws SQLException {
+        final Table table = new Table( name );
+        final Set<String> fieldNames = new HashSet<>();
+        for ( int i = 1; i <= metaData.getColumnCount(); i++ ){
+            final String fieldName = getFieldName( metaData.getColumnLabel( i ), i, fieldNames );
+            final DBFField originalField = catalog.getField( metaData.getTableName( i ), metaData.getColumnName( i ));
+            if ( originalField != null ){
+                table.addField( DataTypeUtil.createField( fieldName, originalField.getType(), originalField.getLength(), originalField.getDecimalCount() ));
+            } else {
+                table.createField( fieldName, metaData.getColumnTypeName( i ), metaData.getPrecision( i ), metaData.getScale( i ));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * DBF field names have at most 10 characters. Names which are too long, or used twice, for example by a join, are shortened and numbered.
+     */
+    private static String getFieldName( String label, int position, Set<String> fieldNames ){
+        String fieldName = label.length() > 10 ? label.substring( 0, 10 ) : label;
+        if ( !fieldNames.add( fieldName.toUpperCase( Locale.ROOT ))){
+            final String suffix = "_" + position;
+            fieldName = ( label.length() > 10 - suffix.length() ? label.substring( 0, 10 - suffix.length() ) : label ) + suffix;
+            fieldNames.add( fieldName.toUpperCase( Locale.ROOT ));
+        }
+        return fieldName;
+    }
+
+    /**
+     * @param lazy use H2 lazy query execution. Only in a session of our own, see runInExportSession().
+     */
+    private void storeTable( Table table, File outputFolder, Connection h2Connection, boolean lazy ) throws Exception {
+        final long start = System.nanoTime();
+        LOGGER.info("Storing " + table + "...");
+        try ( Statement st = createStreamingStatement( h2Connection, lazy );
+              ResultSet rs = st.executeQuery( getSelectSql( table ))){
+            writeRecords( table, rs, outputFolder, start );
+        }
+    }
+
+    /**
+     * A forward-only statement. With lazy, the session uses H2 lazy query execution, so the records are not buffered.
+     * The setting is not reset, the session is closed after the export.
+     */
+    private static Statement createStreamingStatement( Connection h2Connection, boolean lazy ) throws SQLException {
+        final Statement st = h2Connection.createStatement( ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+        try {
+            if ( lazy ){
+                st.execute("SET LAZY_QUERY_EXECUTION 1");
+            }
+            st.setFetchSize( DEFAULT_FETCH_SIZE );
+        } catch ( SQLException ex ){
+            st.close();
+            throw ex;
+        }
+        return st;
+    }
+
+    private void writeRecords( Table table, ResultSet rs, File outputFolder, long start ) throws Exception {
+        final File outputFile = new File( outputFolder.toURI().resolve( table.name + ".dbf"));
+        if ( outputFile.getParentFile() != null ){
+            outputFile.getParentFile().mkdirs();
+        }
+        final DbfFileWriter writer = new DbfFileWriter( outputFile, table.getDBFFields(), charset != null ? Charset.forName(charset) : null );
+        try {
+            while (rs.next()) {
+                try {
+                    writer.addRecord( rs );
+                } catch ( Throwable ex ){
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("Error saving ").append( outputFile.getAbsolutePath() ).append( " record : [");
+                    for ( int i = 0; i < table.fields.size(); i++ ){
+                        Object obj = rs.getObject( i + 1 );
+                        if ( obj == null ){
+                            sb.append("null");
+                        } else {
+                            sb.append("'").append( obj.toString()).append("'");
+                        }
+                        sb.append(",");
+                    }
+                    sb.append(" ]");
+                    throw new SQLException(sb.toString() + ex.getLocalizedMessage(), ex );
+                }
+            }
+            writer.close();
+            LOGGER.info("Stored " + table.name + " " + writer.getRecordCount() + " records." );
+            DbfJdbcDriver.getMetrics().tableExported( table.name, outputFile, writer.getRecordCount(), outputFile.length(), System.nanoTime() - start );
+        } finally {
+            writer.abort();
+        }
+    }
 }
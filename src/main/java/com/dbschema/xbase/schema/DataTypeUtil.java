@@ -1,9 +1,17 @@
 package com.dbschema.xbase.schema;
 
-import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.io.DbfCatalog;
+import com.dbschema.xbase.io.DbfDirtyTables;
+import com.dbschema.xbase.io.DbfFingerprint;
+import com.dbschema.xbase.io.DbfIndexAdvisor;
+import com.dbschema.xbase.io.DbfLoadStatus;
 import com.linuxense.javadbf.DBFDataType;
 import com.linuxense.javadbf.DBFField;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Types;
 
 /**
@@ -12,6 +20,45 @@ import java.sql.Types;
  */
 public class DataTypeUtil {
 
+    /**
+     * DBF fields are mapped to the H2 type closest to the DBF type: NUMERIC to decimal, CHARACTER to char.
+     */
+    public static final String TYPES_STANDARD = "standard";
+    /**
+     * NUMERIC fields without decimals are mapped to int or bigint, CHARACTER fields to varchar.
+     */
+    public static final String TYPES_COMPACT = "compact";
+    /**
+     * Like compact, and NUMERIC fields with decimals of at most 15 characters are mapped to double.
+     */
+    public static final String TYPES_DOUBLE = "double";
+
+    private static final int MAX_INT_LENGTH = 9, MAX_BIGINT_LENGTH = 18, MAX_DOUBLE_LENGTH = 15;
+
+    public static boolean isValidTypes( String types ){
+        return TYPES_STANDARD.equalsIgnoreCase( types ) || TYPES_COMPACT.equalsIgnoreCase( types ) || TYPES_DOUBLE.equalsIgnoreCase( types );
+    }
+
+    /**
+     * The java.sql.Types of the H2 column created for the field with the given types mapping.
+     */
+    public static int getJavaType( DBFField field, String types ) {
+        if ( !TYPES_STANDARD.equalsIgnoreCase( types )){
+            switch ( field.getType() ){
+                case CHARACTER:
+                    return Types.VARCHAR;
+                case NUMERIC:
+                    if ( field.getDecimalCount() == 0 && field.getLength() <= MAX_BIGINT_LENGTH ){
+                        return field.getLength() <= MAX_INT_LENGTH ? Types.INTEGER : Types.BIGINT;
+                    }
+                    if ( TYPES_DOUBLE.equalsIgnoreCase( types ) && field.getLength() <= MAX_DOUBLE_LENGTH ){
+                        return Types.DOUBLE;
+                    }
+                    break;
+            }
+        }
+        return getJavaType( field );
+    }
 
     public static int getJavaType( DBFField field ) {
         switch (field.getType()) {
@@ -20,6 +67,8 @@ public class DataTypeUtil {
             case VARBINARY:
             case BLOB:
             case GENERAL_OLE:
+            case PICTURE:
+            case BINARY:
                 return Types.BLOB;
             case NUMERIC:
                 return Types.DECIMAL;
@@ -46,10 +95,7 @@ public class DataTypeUtil {
             case DATE:
                 return Types.DATE;
             case MEMO:
-                return Types.LONGNVARCHAR;
-            case PICTURE:
-            case BINARY:
-                return Types.BINARY;
+                return Types.CLOB;
             case VARCHAR:
                 return Types.VARCHAR;
             default:
@@ -57,6 +103,27 @@ public class DataTypeUtil {
         }
     }
 
+    /**
+     * The H2 column type for the field with the given types mapping. The original DBF types are stored in dbs_meta_columns,
+     * and used by 'save dbf to' to write the DBF files with the original layout.
+     */
+    public static String getH2Type( DBFField field, String types ) {
+        if ( !TYPES_STANDARD.equalsIgnoreCase( types )){
+            switch ( field.getType() ){
+                case CHARACTER:
+                    return "varchar(" + field.getLength() + ")";
+                case NUMERIC:
+                    switch ( getJavaType( field, types )){
+                        case Types.INTEGER: return "int";
+                        case Types.BIGINT: return "bigint";
+                        case Types.DOUBLE: return "double";
+                    }
+                    break;
+            }
+        }
+        return getH2Type( field );
+    }
+
     public static String getH2Type( DBFField field ) {
         switch ( field.getType() ) {
             case DOUBLE:
@@ -70,14 +137,16 @@ public class DataTypeUtil {
             case DATE:
                 return "date";
             case MEMO:
-                return "longvarchar(" + Integer.MAX_VALUE + ")";
+                // Memo values are streamed in the H2 LOB storage, and are not kept in the heap
+                return "clob";
             case VARCHAR:
                 return "varchar(" + field.getLength() + ")";
             case PICTURE:
-            case UNKNOWN:
             case BLOB:
             case GENERAL_OLE:
             case BINARY:
+                return "blob";
+            case UNKNOWN:
                 return "binary";
             case VARBINARY:
             case NUMERIC:
@@ -98,6 +167,30 @@ public class DataTypeUtil {
         }
     }
 
+    /**
+     * Create a field of any DBF type, also MEMO or GENERAL_OLE. DBFField.setType() accepts only the types which DBFWriter
+     * can write, so the field is read from a field descriptor, like DBFReader does.
+     */
+    public static DBFField createField( String name, DBFDataType type, int length, int decimalCount ){
+        final byte[] descriptor = new byte[32];
+        final byte[] nameBytes = name.getBytes( StandardCharsets.ISO_8859_1 );
+        System.arraycopy( nameBytes, 0, descriptor, 0, Math.min( nameBytes.length, 10 ));
+        descriptor[11] = type.getCode();
+        descriptor[16] = (byte)length;
+        descriptor[17] = (byte)decimalCount;
+        try {
+            return DescriptorReader.read( descriptor );
+        } catch ( IOException ex ){
+            throw new IllegalArgumentException( "Cannot create field " + name + " " + type, ex );
+        }
+    }
+
+    private static class DescriptorReader extends DBFField {
+        static DBFField read( byte[] descriptor ) throws IOException {
+            return createField( new DataInputStream( new ByteArrayInputStream( descriptor )), StandardCharsets.ISO_8859_1, false );
+        }
+    }
+
     private static final String[] H2_SYSTEM_TABLES = new String[]{"CATALOGS", "COLLATIONS", "COLUMNS", "COLUMN_PRIVILEGES", "CONSTANTS", "CONSTRAINTS", "CROSS_REFERENCES", "DOMAINS",
             "FUNCTION_ALIASES", "FUNCTION_COLUMNS", "HELP", "INDEXES", "IN_DOUBT", "KEY_COLUMN_USAGE", "LOCKS", "QUERY_STATISTICS", "REFERENTIAL_CONSTRAINTS", "RIGHTS", "ROLES",
             "SCHEMATA", "SEQUENCES", "SYNONYMS", "SESSIONS", "SESSION_STATE", "SETTINGS", "TABLES", "TABLE_CONSTRAINTS", "TABLE_PRIVILEGES", "TABLE_TYPES", "TRIGGERS", "TYPE_INFO", "USERS", "VIEWS"};
@@ -107,7 +200,9 @@ public class DataTypeUtil {
         for ( String systemName : H2_SYSTEM_TABLES ){
             if( systemName.equalsIgnoreCase( tableName )) return true;
         }
-        return DbfLoaderInH2.META_TABLE_NAME.equalsIgnoreCase( tableName );
+        return DbfCatalog.META_COLUMNS_TABLE_NAME.equalsIgnoreCase( tableName ) || DbfCatalog.META_TABLES_TABLE_NAME.equalsIgnoreCase( tableName ) || DbfFingerprint.META_FILES_TABLE_NAME.equalsIgnoreCase( tableName ) ||
+                DbfDirtyTables.META_DIRTY_TABLE_NAME.equalsIgnoreCase( tableName ) || DbfIndexAdvisor.META_ADVICE_TABLE_NAME.equalsIgnoreCase( tableName ) ||
+                DbfLoadStatus.META_LOAD_STATUS_TABLE_NAME.equalsIgnoreCase( tableName );
     }
 
 }
\ No newline at end of file
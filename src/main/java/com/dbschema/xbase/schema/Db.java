@@ -23,6 +23,10 @@ public class Db {
         }
     }
 
+    public Table getTable( String tableName ){
+        return tables.get( tableName );
+    }
+
     public Collection<Table> getTables(){
         return tables.values();
     }
@@ -27,7 +27,7 @@ public class Table {
     public final List<DBFField> fields = new ArrayList<>();
 
 
-    Table(String name ){
+    public Table(String name ){
         this.name = name;
     }
 
@@ -43,27 +43,52 @@ public class Table {
         fields.add( field );
     }
 
+    /**
+     * Create a field for a column created using SQL.
+     * @param type the H2 type name. Types which cannot be written in DBF files are stored as CHARACTER.
+     * @param length the H2 precision. Number fields get one more character for the sign, and one for the decimal point.
+     */
     public DBFField createField(String name, String type, int length, int decimal  ) {
         DBFField field = new DBFField();
         field.setName( name );
 
         switch (type.toLowerCase() ){
-            case "double":
             case "decimal":
+            case "numeric":
+                field.setType( DBFDataType.NUMERIC );
+                field.setLength( Math.min( length + ( decimal > 0 ? 2 : 1 ), DBFDataType.NUMERIC.getMaxSize() ));
+                field.setDecimalCount( Math.min( decimal, field.getLength() - 2 ));
+                break;
+            case "tinyint":
+            case "smallint":
+            case "int":
+            case "integer":
+            case "bigint":
                 field.setType( DBFDataType.NUMERIC );
-                field.setLength( length);
-                field.setDecimalCount( decimal);
+                field.setLength( Math.min( length + 1, DBFDataType.NUMERIC.getMaxSize() ));
+                break;
+            case "double":
+            case "real":
+            case "float":
+                field.setType( DBFDataType.FLOATING_POINT );
+                field.setLength( DBFDataType.FLOATING_POINT.getMaxSize() );
+                field.setDecimalCount( 10 );
                 break;
-            case "float": field.setType( DBFDataType.FLOATING_POINT ); break;
-            case "int": field.setType( DBFDataType.AUTOINCREMENT ); break;
-            case "bigint": field.setType( DBFDataType.LONG ); break;
             case "boolean": field.setType( DBFDataType.LOGICAL ); break;
             case "date": field.setType( DBFDataType.DATE ); break;
-            case "bit": field.setType( DBFDataType.NULL_FLAGS ); break;
-            case "longvarchar":field.setType( DBFDataType.MEMO ); break;
-            case "timestamp": field.setType( DBFDataType.TIMESTAMP ); break;
-            case "timestampwithtimezone": field.setType( DBFDataType.TIMESTAMP_DBASE7 ); break;
-            default : field.setType( DBFDataType.CHARACTER ); break;
+            case "clob":
+                field = DataTypeUtil.createField( name, DBFDataType.MEMO, 10, 0 );
+                break;
+            case "blob":
+            case "binary":
+            case "varbinary":
+            case "longvarbinary":
+                field = DataTypeUtil.createField( name, DBFDataType.GENERAL_OLE, 10, 0 );
+                break;
+            default :
+                field.setType( DBFDataType.CHARACTER );
+                field.setLength( Math.max( 1, Math.min( length, DBFDataType.CHARACTER.getMaxSize() )));
+                break;
         }
         fields.add( field );
         return field;
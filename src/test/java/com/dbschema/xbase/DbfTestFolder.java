@@ -0,0 +1,69 @@
+package com.dbschema.xbase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A temporary folder outside the project, where the tests copy the DBF files of src/test/resources and save the DBF files.
+ * The connections use cache=memory, so no cache database is left in user.home. close() deletes the folder.
+ */
+class DbfTestFolder implements Closeable {
+
+    static final String RESOURCES = "src/test/resources/";
+
+    final File root;
+
+    DbfTestFolder() throws IOException {
+        root = Files.createTempDirectory("dbf-test").toFile();
+    }
+
+    /**
+     * Copy a folder of src/test/resources, for example 'dbase3plus/cars', in a sub-folder with the given name.
+     */
+    File copy( String resourceFolder, String name ) throws IOException {
+        final File target = new File( root, name );
+        final File[] files = new File( RESOURCES + resourceFolder ).listFiles();
+        if ( files == null ){
+            throw new IOException("Missing test folder " + RESOURCES + resourceFolder );
+        }
+        target.mkdirs();
+        for ( File file : files ){
+            if ( file.isFile() ){
+                Files.copy( file.toPath(), new File( target, file.getName() ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        }
+        return target;
+    }
+
+    File folder( String name ){
+        return new File( root, name );
+    }
+
+    static String url( File folder, String parameters ){
+        return "jdbc:dbschema:dbf:" + folder.getAbsolutePath() + "?cache=memory" + ( parameters.isEmpty() ? "" : "&" + parameters );
+    }
+
+    @Override
+    public void close() throws IOException {
+        Files.walkFileTree( root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException {
+                Files.delete( file );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException ex ) throws IOException {
+                Files.delete( dir );
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
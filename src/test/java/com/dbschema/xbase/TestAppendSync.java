@@ -0,0 +1,170 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfCatalog;
+import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.dbschema.xbase.schema.Table;
+import com.linuxense.javadbf.DBFReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static com.dbschema.xbase.TestLazyLoad.count;
+import static org.junit.Assert.*;
+
+/**
+ * 'refresh dbf' inserts only the appended records if the loaded records did not change, otherwise loads the file again.
+ */
+public class TestAppendSync {
+
+    private static final int NAME_OFFSET = 1;
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    @Test
+    public void testAppendAndEdit() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File file = new File( folder, "cars.dbf" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 4, count( st, "\"cars\"" ));
+
+            appendCopyOfRecord( file, 2 );
+            st.execute( "refresh dbf" );
+            assertEquals( 5, count( st, "\"cars\"" ));
+            assertEquals( 2, count( st, "\"cars\" where NAME = 'JETTA'" ));
+
+            // A loaded record in the middle of the file changed: the whole file has to be loaded again
+            writeName( file, 1, "POLX" );
+            appendCopyOfRecord( file, 0 );
+            st.execute( "refresh dbf" );
+            assertEquals( 6, count( st, "\"cars\"" ));
+            assertEquals( 2, count( st, "\"cars\" where NAME = 'PASSAT'" ));
+            assertEquals( 1, count( st, "\"cars\" where NAME = 'POLX'" ));
+            assertEquals( 0, count( st, "\"cars\" where NAME = 'POLO'" ));
+        }
+    }
+
+    /**
+     * The records hash saved after an append is checked by the next append, so each refresh inserts only the new record.
+     */
+    @Test
+    public void testAppendTwice() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File file = new File( folder, "cars.dbf" );
+        final List<Long> importedRecords = Collections.synchronizedList( new ArrayList<>() );
+        final DbfMetrics listener = new DbfMetrics() {
+            @Override
+            public void tableImported( String tableName, File importedFile, long records, long bytes, long nanos ){
+                importedRecords.add( records );
+            }
+        };
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            DbfJdbcDriver.getMetrics().addListener( listener );
+            for ( int i = 0; i < 2; i++ ){
+                appendCopyOfRecord( file, i );
+                st.execute( "refresh dbf" );
+            }
+            assertEquals( 6, count( st, "\"cars\"" ));
+        } finally {
+            DbfJdbcDriver.getMetrics().removeListener( listener );
+        }
+        assertEquals( Arrays.asList( 1L, 1L ), importedRecords );
+    }
+
+    /**
+     * The second appended record breaks a unique constraint: the first appended record is rolled back too.
+     */
+    @Test
+    public void testFailedAppend() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File file = new File( folder, "cars.dbf" );
+        final Table table = new Table( folder, file );
+        final DbfLoaderInH2 loader = new DbfLoaderInH2();
+        // The PageStore rolls back using the undo log of the session, the MVStore does it in any case
+        try ( Connection h2Connection = new org.h2.Driver().connect( "jdbc:h2:mem:;MV_STORE=FALSE", new Properties() );
+              Statement st = h2Connection.createStatement() ){
+            DbfCatalog.createMetaTables( h2Connection );
+            try ( DBFReader reader = new DBFReader( new FileInputStream( file )) ){
+                loader.transferDefinition( table, reader, h2Connection );
+            }
+            loader.transferData( table, file, h2Connection );
+            st.execute( "alter table \"cars\" add constraint UNIQUE_NAME unique( NAME )" );
+
+            appendCopyOfRecord( file, 0 );
+            writeName( file, 4, "GOLF  " );
+            appendCopyOfRecord( file, 1 );
+            try {
+                loader.appendData( table, file, 4, h2Connection );
+                fail( "The duplicate name is inserted" );
+            } catch ( SQLException ex ){
+                assertEquals( 4, count( st, "\"cars\"" ));
+                assertEquals( 0, count( st, "\"cars\" where NAME = 'GOLF'" ));
+            }
+        }
+    }
+
+    /**
+     * Append a copy of a record, and update the record count in the header.
+     */
+    private static void appendCopyOfRecord( File file, int recordIndex ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ){
+            final int recordCount = readInt( raf, 4 );
+            final int headerLength = readShort( raf, 8 );
+            final int recordLength = readShort( raf, 10 );
+            final byte[] record = new byte[recordLength];
+            raf.seek( headerLength + (long)recordIndex * recordLength );
+            raf.readFully( record );
+            raf.seek( headerLength + (long)recordCount * recordLength );
+            raf.write( record );
+            raf.write( 0x1A );
+            raf.setLength( raf.getFilePointer() );
+            raf.seek( 4 );
+            final int newCount = recordCount + 1;
+            raf.write( new byte[]{ (byte)newCount, (byte)( newCount >> 8 ), (byte)( newCount >> 16 ), (byte)( newCount >> 24 ) });
+        }
+    }
+
+    /**
+     * Overwrite the start of the NAME field, the first field of the record.
+     */
+    private static void writeName( File file, int recordIndex, String name ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ){
+            raf.seek( readShort( raf, 8 ) + (long)recordIndex * readShort( raf, 10 ) + NAME_OFFSET );
+            raf.write( name.getBytes( StandardCharsets.US_ASCII ));
+        }
+    }
+
+    private static int readShort( RandomAccessFile raf, long position ) throws IOException {
+        raf.seek( position );
+        return raf.read() | raf.read() << 8;
+    }
+
+    private static int readInt( RandomAccessFile raf, long position ) throws IOException {
+        raf.seek( position );
+        return raf.read() | raf.read() << 8 | raf.read() << 16 | raf.read() << 24;
+    }
+}
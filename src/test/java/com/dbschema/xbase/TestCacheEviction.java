@@ -0,0 +1,56 @@
+package com.dbschema.xbase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static com.dbschema.xbase.TestLazyLoad.count;
+import static org.junit.Assert.*;
+
+/**
+ * cacheMaxSize evicts the least recently used H2 cache databases, but never the database of the connection being opened.
+ */
+public class TestCacheEviction {
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    @Test
+    public void testOpenedDatabaseOverBudget() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File cacheDir = testFolder.folder( "cache" );
+        final String url = "jdbc:dbschema:dbf:" + folder.getAbsolutePath() + "?cacheDir=" + cacheDir.getAbsolutePath();
+        try ( Connection con = DriverManager.getConnection( url ) ){
+            assertFalse( con.isClosed() );
+        }
+        final File[] mvFiles = cacheDir.listFiles( ( dir, name ) -> name.endsWith( ".mv.db" ));
+        assertNotNull( mvFiles );
+        assertEquals( 1, mvFiles.length );
+        // The only database of the cache folder is larger than cacheMaxSize=1 (MB)
+        final File traceFile = new File( cacheDir, mvFiles[0].getName().replace( ".mv.db", ".trace.db" ));
+        try ( RandomAccessFile raf = new RandomAccessFile( traceFile, "rw" ) ){
+            raf.setLength( 2 * 1024 * 1024 );
+        }
+        try ( Connection con = DriverManager.getConnection( url + "&cacheMaxSize=1" );
+              Statement st = con.createStatement() ){
+            assertEquals( 4, count( st, "\"cars\"" ));
+        }
+        assertTrue( "The opened database was evicted", mvFiles[0].exists() && traceFile.exists() );
+    }
+}
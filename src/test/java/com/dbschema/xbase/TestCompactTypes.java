@@ -0,0 +1,87 @@
+package com.dbschema.xbase;
+
+import com.linuxense.javadbf.DBFField;
+import com.linuxense.javadbf.DBFReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * types=compact stores NUMERIC keys as int or bigint and CHARACTER fields as varchar, and 'save dbf to' writes the original fields.
+ */
+public class TestCompactTypes {
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        final File outFolder = testFolder.folder( "out" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "types=compact" ));
+              Statement st = con.createStatement() ){
+            assertEquals( "INTEGER", getColumnType( con, "NUMBER", "ID" ));
+            assertEquals( "VARCHAR", getColumnType( con, "CHARACTE", "CHAR1" ));
+            st.execute( "save dbf to " + outFolder.getAbsolutePath() );
+        }
+        for ( String tableName : new String[]{ "NUMBER", "CHARACTE", "BOOLEAN", "DATE" }){
+            assertEquals( tableName, readFields( new File( folder, tableName + ".DBF" )), readFields( new File( outFolder, tableName + ".dbf" )));
+        }
+        try ( Connection source = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Connection saved = DriverManager.getConnection( DbfTestFolder.url( outFolder, "" ))){
+            for ( String sql : new String[]{ "select ID, MININT, MAXDEC, MINDEC from \"NUMBER\"", "select CHAR1, CHAR2 from \"CHARACTE\"" }){
+                assertEquals( sql, readRows( source, sql ), readRows( saved, sql ));
+            }
+        }
+    }
+
+    private static String getColumnType( Connection con, String tableName, String columnName ) throws SQLException {
+        try ( ResultSet rs = con.getMetaData().getColumns( null, null, tableName, columnName )){
+            assertTrue( tableName + "." + columnName, rs.next() );
+            return rs.getString( "TYPE_NAME" );
+        }
+    }
+
+    private static List<String> readFields( File file ) throws Exception {
+        final List<String> fields = new ArrayList<>();
+        try ( DBFReader reader = new DBFReader( new FileInputStream( file ))){
+            for ( int i = 0; i < reader.getFieldCount(); i++ ){
+                final DBFField field = reader.getField( i );
+                fields.add( field.getName() + " " + field.getType() + "(" + field.getLength() + "," + field.getDecimalCount() + ")" );
+            }
+        }
+        return fields;
+    }
+
+    private static List<String> readRows( Connection con, String sql ) throws SQLException {
+        final List<String> rows = new ArrayList<>();
+        try ( Statement st = con.createStatement(); ResultSet rs = st.executeQuery( sql )){
+            while ( rs.next() ){
+                final StringBuilder sb = new StringBuilder();
+                for ( int i = 1; i <= rs.getMetaData().getColumnCount(); i++ ){
+                    sb.append( rs.getString( i )).append('|');
+                }
+                rows.add( sb.toString() );
+            }
+        }
+        return rows;
+    }
+}
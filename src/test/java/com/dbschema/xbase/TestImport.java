@@ -0,0 +1,97 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfLoaderInH2;
+import com.linuxense.javadbf.DBFReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The records loaded in H2 with a small importBatch, committed every few records, are the same as read by DBFReader.
+ */
+public class TestImport {
+
+    private static final File TYPES_FOLDER = new File( DbfTestFolder.RESOURCES + "dbase3plus/types" );
+
+    @Test
+    public void testBatchedImport() throws Exception {
+        new DbfJdbcDriver();
+        for ( String importBatch : new String[]{ "1", "3", "10000" }){
+            try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( TYPES_FOLDER, "importBatch=" + importBatch ));
+                  Statement st = con.createStatement() ){
+                assertEquals( readDbf( "NUMBER.DBF", 0, 1, 4 ), readTable( st, "select ID, MININT, MINDEC from \"NUMBER\"" ));
+                assertEquals( readDbf( "CHARACTE.DBF", 0, 1 ), readTable( st, "select CHAR1, CHAR2 from \"CHARACTE\"" ));
+            }
+        }
+    }
+
+    /**
+     * The transaction log stays disabled until the last of two overlapping bulk loads ends.
+     */
+    @Test
+    public void testOverlappingBulkLoads() throws Exception {
+        try ( DbfTestFolder testFolder = new DbfTestFolder();
+              Connection h2Connection = new org.h2.Driver().connect( "jdbc:h2:" + new File( testFolder.folder( "h2" ), "cache" ).getAbsolutePath(), new Properties() );
+              Connection otherConnection = new org.h2.Driver().connect( h2Connection.getMetaData().getURL(), new Properties() )){
+            DbfLoaderInH2.beginBulkLoad( h2Connection );
+            DbfLoaderInH2.beginBulkLoad( otherConnection );
+            assertEquals( "0", getLogSetting( h2Connection ));
+            DbfLoaderInH2.endBulkLoad( h2Connection );
+            assertEquals( "0", getLogSetting( h2Connection ));
+            DbfLoaderInH2.endBulkLoad( otherConnection );
+            assertEquals( "2", getLogSetting( h2Connection ));
+        }
+    }
+
+    private static String getLogSetting( Connection h2Connection ) throws SQLException {
+        try ( Statement st = h2Connection.createStatement();
+              ResultSet rs = st.executeQuery( "select value from information_schema.settings where name = 'LOG'" )){
+            assertTrue( rs.next() );
+            return rs.getString( 1 );
+        }
+    }
+
+    private static List<String> readDbf( String fileName, int... fields ) throws Exception {
+        final List<String> rows = new ArrayList<>();
+        try ( DBFReader reader = new DBFReader( new FileInputStream( new File( TYPES_FOLDER, fileName )))){
+            Object[] record;
+            while ( ( record = reader.nextRecord() ) != null ){
+                final StringBuilder sb = new StringBuilder();
+                for ( int field : fields ){
+                    sb.append( normalize( record[field] )).append('|');
+                }
+                rows.add( sb.toString() );
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> readTable( Statement st, String sql ) throws SQLException {
+        final List<String> rows = new ArrayList<>();
+        try ( ResultSet rs = st.executeQuery( sql )){
+            while ( rs.next() ){
+                final StringBuilder sb = new StringBuilder();
+                for ( int i = 1; i <= rs.getMetaData().getColumnCount(); i++ ){
+                    sb.append( normalize( rs.getObject( i ))).append('|');
+                }
+                rows.add( sb.toString() );
+            }
+        }
+        return rows;
+    }
+
+    private static String normalize( Object value ){
+        if ( value instanceof Number ){
+            return new BigDecimal( value.toString() ).stripTrailingZeros().toPlainString();
+        }
+        return value == null ? "" : value.toString().trim();
+    }
+}
@@ -0,0 +1,249 @@
+package com.dbschema.xbase;
+
+import com.dbschema.xbase.io.DbfLazyLoader;
+import com.dbschema.xbase.io.DbfLoadListener;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * load=lazy creates the tables on connect, and loads each table the first time a statement uses it.
+ * The cancel tests hold the load in DbfLoadListener.tableLoadStarted(), so the cancel always comes during the load,
+ * and check that the cancelled statement returns before the load is released.
+ */
+public class TestLazyLoad {
+
+    private static final String NUMBER_SQL = "select * from \"NUMBER\"";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    @Test
+    public void testLoadOnFirstUse() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "load=lazy" ));
+              Statement st = con.createStatement() ){
+            assertEquals( "pending", getStatus( st, "NUMBER" ));
+            assertEquals( 10, count( st, "\"NUMBER\"" ));
+            assertEquals( "loaded", getStatus( st, "NUMBER" ));
+            assertEquals( "pending", getStatus( st, "CHARACTE" ));
+        }
+    }
+
+    @Test
+    public void testTablesDifferingByCase() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        Files.copy( new File( DbfTestFolder.RESOURCES + "dbase3plus/types/NUMBER.DBF" ).toPath(), new File( folder, "Cars.DBF" ).toPath() );
+        Assume.assumeTrue( "Case-sensitive file system", new File( folder, "cars.dbf" ).exists() && folder.list().length == 3 );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "load=lazy" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 4, count( st, "\"cars\"" ));
+            assertEquals( 10, count( st, "\"Cars\"" ));
+        }
+    }
+
+    /**
+     * The statement which started the load is cancelled: it returns at once, the load goes on for the other statement.
+     */
+    @Test
+    public void testCancelFirstOfTwoWaiters() throws Exception {
+        testCancelOneOfTwoWaiters( true );
+    }
+
+    /**
+     * The statement waiting for the load started by another one is cancelled: it returns at once, without waiting for the load.
+     */
+    @Test
+    public void testCancelSecondOfTwoWaiters() throws Exception {
+        testCancelOneOfTwoWaiters( false );
+    }
+
+    private void testCancelOneOfTwoWaiters( boolean cancelFirst ) throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "load=lazy" ));
+              Statement st = con.createStatement() ){
+            final H2WrappedConnection connection = (H2WrappedConnection)con;
+            final BlockingListener listener = new BlockingListener();
+            connection.addLoadListener( listener );
+            final DbfLazyLoader.LoadRequest firstRequest = new DbfLazyLoader.LoadRequest();
+            final DbfLazyLoader.LoadRequest secondRequest = new DbfLazyLoader.LoadRequest();
+            final AtomicReference<SQLException> firstError = new AtomicReference<>(), secondError = new AtomicReference<>();
+            final Thread first = startLoad( connection, firstRequest, firstError );
+            assertTrue( listener.started.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+            final Thread second = startLoad( connection, secondRequest, secondError );
+            waitForState( second, Thread.State.WAITING );
+
+            final Thread cancelled = cancelFirst ? first : second, waiting = cancelFirst ? second : first;
+            ( cancelFirst ? firstRequest : secondRequest ).cancel();
+            cancelled.join( TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS ));
+            assertFalse( "The cancelled statement waits for the load", cancelled.isAlive() );
+            assertTrue( waiting.isAlive() );
+            listener.release.countDown();
+            waiting.join();
+
+            final SQLException cancelError = ( cancelFirst ? firstError : secondError ).get();
+            assertNotNull( cancelError );
+            assertEquals( DbfLazyLoader.CANCELLED_STATE, cancelError.getSQLState() );
+            assertNull( ( cancelFirst ? secondError : firstError ).get() );
+            // The load went on for the other statement, it was not started again
+            assertEquals( 1, listener.loadsStarted.get() );
+            assertEquals( 0, listener.loadsFailed.get() );
+            assertEquals( "loaded", getStatus( st, "NUMBER" ));
+            assertEquals( 10, count( st, "\"NUMBER\"" ));
+        }
+    }
+
+    /**
+     * The load is stopped when its only waiting statement is cancelled. The table stays pending.
+     */
+    @Test
+    public void testCancelLastWaiter() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "load=lazy" ));
+              Statement st = con.createStatement() ){
+            final H2WrappedConnection connection = (H2WrappedConnection)con;
+            final BlockingListener listener = new BlockingListener();
+            connection.addLoadListener( listener );
+            final DbfLazyLoader.LoadRequest request = new DbfLazyLoader.LoadRequest();
+            final AtomicReference<SQLException> error = new AtomicReference<>();
+            final Thread thread = startLoad( connection, request, error );
+            assertTrue( listener.started.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+
+            request.cancel();
+            thread.join( TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS ));
+            assertFalse( "The cancelled statement waits for the load", thread.isAlive() );
+            assertNotNull( error.get() );
+            assertEquals( DbfLazyLoader.CANCELLED_STATE, error.get().getSQLState() );
+            listener.release.countDown();
+            assertTrue( listener.failed.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+            assertEquals( "cancelled", getStatus( st, "NUMBER" ));
+            assertEquals( 10, count( st, "\"NUMBER\"" ));
+        }
+    }
+
+    /**
+     * 'start dbf load' loads the tables left pending by 'cancel dbf load'.
+     */
+    @Test
+    public void testRestartBackgroundLoad() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "load=lazy" ));
+              Statement st = con.createStatement() ){
+            final H2WrappedConnection connection = (H2WrappedConnection)con;
+            final BlockingListener listener = new BlockingListener();
+            connection.addLoadListener( listener );
+            st.execute( "start dbf load" );
+            assertTrue( listener.started.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+            st.execute( "cancel dbf load" );
+            listener.release.countDown();
+            assertTrue( listener.finished.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+            assertTrue( connection.hasPendingTables() );
+
+            listener.finished = new CountDownLatch( 1 );
+            st.execute( "start dbf load" );
+            assertTrue( listener.finished.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ));
+            assertFalse( connection.hasPendingTables() );
+            try ( ResultSet rs = st.executeQuery( "select count(*) from dbs_meta_load_status where status <> 'loaded'" )){
+                rs.next();
+                assertEquals( 0, rs.getInt( 1 ));
+            }
+        }
+    }
+
+    /**
+     * Holds the first table load until release.
+     */
+    private static class BlockingListener implements DbfLoadListener {
+        final CountDownLatch started = new CountDownLatch( 1 ), release = new CountDownLatch( 1 );
+        volatile CountDownLatch finished = new CountDownLatch( 1 );
+        final AtomicInteger loadsStarted = new AtomicInteger(), loadsFailed = new AtomicInteger();
+        final CountDownLatch failed = new CountDownLatch( 1 );
+        private final AtomicBoolean first = new AtomicBoolean( true );
+
+        @Override
+        public void tableLoadStarted( String tableName, int recordCount ){
+            loadsStarted.incrementAndGet();
+            if ( first.getAndSet( false )){
+                started.countDown();
+                try {
+                    release.await( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+                } catch ( InterruptedException ex ){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void tableLoadFailed( String tableName, boolean cancelled, SQLException ex ){
+            loadsFailed.incrementAndGet();
+            failed.countDown();
+        }
+
+        @Override
+        public void backgroundLoadFinished(){
+            finished.countDown();
+        }
+    }
+
+    private static Thread startLoad( H2WrappedConnection connection, DbfLazyLoader.LoadRequest request, AtomicReference<SQLException> error ){
+        final Thread thread = new Thread( () -> {
+            try {
+                connection.loadTablesUsedIn( NUMBER_SQL, request );
+            } catch ( SQLException ex ){
+                error.set( ex );
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForState( Thread thread, Thread.State state ) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS );
+        while ( thread.getState() != state ){
+            assertTrue( "Thread state " + thread.getState(), System.currentTimeMillis() < end );
+            Thread.sleep( 10 );
+        }
+    }
+
+    static int count( Statement st, String table ) throws SQLException {
+        try ( ResultSet rs = st.executeQuery( "select count(*) from " + table )){
+            rs.next();
+            return rs.getInt( 1 );
+        }
+    }
+
+    /**
+     * The table name is a parameter, a name in the SQL would load the table.
+     */
+    static String getStatus( Statement st, String table ) throws SQLException {
+        try ( PreparedStatement ps = st.getConnection().prepareStatement( "select status from dbs_meta_load_status where table_name = ?" )){
+            ps.setString( 1, table );
+            try ( ResultSet rs = ps.executeQuery() ){
+                return rs.next() ? rs.getString( 1 ) : null;
+            }
+        }
+    }
+}
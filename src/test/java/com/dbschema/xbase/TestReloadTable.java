@@ -0,0 +1,61 @@
+package com.dbschema.xbase;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static com.dbschema.xbase.TestLazyLoad.count;
+import static org.junit.Assert.*;
+
+/**
+ * 'reload dbf table' loads the table of the given name again, also when another table differs only by case.
+ */
+public class TestReloadTable {
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    @Test
+    public void testTablesDifferingByCase() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        Files.copy( new File( DbfTestFolder.RESOURCES + "dbase3plus/types/NUMBER.DBF" ).toPath(), new File( folder, "Cars.DBF" ).toPath() );
+        Assume.assumeTrue( "Case-sensitive file system", new File( folder, "cars.dbf" ).exists() && folder.list().length == 3 );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            st.executeUpdate( "delete from \"cars\"" );
+            st.executeUpdate( "delete from \"Cars\"" );
+
+            st.execute( "reload dbf table \"cars\"" );
+            assertEquals( 4, count( st, "\"cars\"" ));
+            assertEquals( 0, count( st, "\"Cars\"" ));
+
+            st.execute( "reload dbf table Cars" );
+            assertEquals( 10, count( st, "\"Cars\"" ));
+
+            try {
+                st.execute( "reload dbf table CARS" );
+                fail( "CARS matches both tables" );
+            } catch ( SQLException ex ){
+                assertTrue( ex.getMessage(), ex.getMessage().contains( "Quote the table name" ));
+            }
+        }
+    }
+}
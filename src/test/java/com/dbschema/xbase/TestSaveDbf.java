@@ -0,0 +1,145 @@
+package com.dbschema.xbase;
+
+import com.linuxense.javadbf.DBFField;
+import com.linuxense.javadbf.DBFReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static com.dbschema.xbase.TestLazyLoad.count;
+import static org.junit.Assert.*;
+
+/**
+ * Save the H2 tables to DBF files in a temporary folder, and load the saved files again.
+ */
+public class TestSaveDbf {
+
+    private DbfTestFolder testFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        new DbfJdbcDriver();
+        testFolder = new DbfTestFolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testFolder.close();
+    }
+
+    /**
+     * Only the modified table is written, the files of the other tables are copied.
+     */
+    @Test
+    public void testSaveChanges() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        final File outFolder = testFolder.folder( "out" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 1, st.executeUpdate( "update \"NUMBER\" set MININT = 0 where ID = 1" ));
+            st.execute( "save dbf changes to " + outFolder.getAbsolutePath() );
+        }
+        // The saved files are named after the tables, with the .dbf extension
+        for ( String[] fileNames : new String[][]{ { "CHARACTE.DBF", "CHARACTE.dbf" }, { "MEMOTEST.DBF", "MEMOTEST.dbf" }, { "MEMOTEST.DBT", "MEMOTEST.DBT" }}){
+            assertArrayEquals( fileNames[0], Files.readAllBytes( new File( folder, fileNames[0] ).toPath() ), Files.readAllBytes( new File( outFolder, fileNames[1] ).toPath() ));
+        }
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( outFolder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 10, count( st, "\"NUMBER\"" ));
+            assertEquals( 1, count( st, "\"NUMBER\" where ID = 1 and MININT = 0" ));
+        }
+    }
+
+    @Test
+    public void testSaveTablesAndQuery() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/types", "types" );
+        final File outFolder = testFolder.folder( "out" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            st.execute( "save dbf table NUMBER, CHARACTE to " + outFolder.getAbsolutePath() );
+            st.execute( "save dbf query (select ID, MINDEC from \"NUMBER\" where ID > 5) as big_numbers to " + outFolder.getAbsolutePath() );
+        }
+        assertEquals( new TreeSet<>( Arrays.asList( "CHARACTE.dbf", "NUMBER.dbf", "big_numbers.dbf" )), new TreeSet<>( Arrays.asList( outFolder.list() )));
+        try ( DBFReader reader = new DBFReader( new FileInputStream( new File( outFolder, "big_numbers.dbf" )))){
+            // The query columns keep the fields of the DBF table
+            final DBFField minDec = reader.getField( 1 );
+            assertEquals( "MINDEC", minDec.getName() );
+            assertEquals( 3, minDec.getLength() );
+            assertEquals( 1, minDec.getDecimalCount() );
+        }
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( outFolder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 10, count( st, "\"NUMBER\"" ));
+            assertEquals( 1, count( st, "\"NUMBER\" where ID = 9 and MINDEC = 9.9" ));
+            assertEquals( 4, count( st, "\"big_numbers\"" ));
+            assertEquals( 1, count( st, "\"big_numbers\" where ID = 6 and MINDEC = 6.6" ));
+            try ( Connection source = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+                  Statement sourceSt = source.createStatement() ){
+                assertEquals( count( sourceSt, "\"CHARACTE\"" ), count( st, "\"CHARACTE\"" ));
+            }
+        }
+    }
+
+    /**
+     * The memos of the .dbt file are written in a FoxPro .fpt file, which replaces a .dbt file left in the output folder.
+     */
+    @Test
+    public void testMemoRoundTrip() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File outFolder = testFolder.copy( "dbase3plus/cars", "out" );
+        final List<String> memos;
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            st.executeUpdate( "update \"cars\" set DESCR = repeat( 'LONG MEMO ', 1000 ) where NAME = 'POLO'" );
+            memos = readMemos( st );
+            st.execute( "save dbf to " + outFolder.getAbsolutePath() );
+        }
+        assertEquals( new TreeSet<>( Arrays.asList( "cars.dbf", "cars.fpt" )), new TreeSet<>( Arrays.asList( outFolder.list() )));
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( outFolder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( memos, readMemos( st ));
+        }
+        assertEquals( 10000, memos.get( 1 ).length() );
+    }
+
+    private static List<String> readMemos( Statement st ) throws SQLException {
+        final List<String> memos = new ArrayList<>();
+        try ( ResultSet rs = st.executeQuery( "select DESCR from \"cars\"" )){
+            while ( rs.next() ){
+                memos.add( rs.getString( 1 ));
+            }
+        }
+        return memos;
+    }
+
+    /**
+     * The save writes the uncommitted rows, and leaves the transaction of the connection open.
+     */
+    @Test
+    public void testSaveWithoutAutoCommit() throws Exception {
+        final File folder = testFolder.copy( "dbase3plus/cars", "cars" );
+        final File outFolder = testFolder.folder( "out" );
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( folder, "" ));
+              Statement st = con.createStatement() ){
+            con.setAutoCommit( false );
+            st.executeUpdate( "insert into \"cars\"( NAME, YEAR ) values ( 'GOLF', 2005 )" );
+            st.execute( "save dbf to " + outFolder.getAbsolutePath() );
+            con.rollback();
+            assertEquals( 4, count( st, "\"cars\"" ));
+        }
+        try ( Connection con = DriverManager.getConnection( DbfTestFolder.url( outFolder, "" ));
+              Statement st = con.createStatement() ){
+            assertEquals( 5, count( st, "\"cars\"" ));
+            assertEquals( 1, count( st, "\"cars\" where NAME = 'GOLF' and YEAR = 2005" ));
+        }
+    }
+}
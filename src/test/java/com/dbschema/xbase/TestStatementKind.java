@@ -0,0 +1,24 @@
+package com.dbschema.xbase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The statement kind of the latency metrics is the first keyword of the SQL, in lower case, if it is a known kind.
+ */
+public class TestStatementKind {
+
+    @Test
+    public void testStatementKind() {
+        assertEquals( "select", DbfMetricsCollector.getStatementKind( "select * from \"cars\"" ));
+        assertEquals( "select", DbfMetricsCollector.getStatementKind( " \n( SELECT 1 )" ));
+        assertEquals( "insert", DbfMetricsCollector.getStatementKind( "Insert into \"cars\"( NAME ) values ( 'GOLF' )" ));
+        assertEquals( "refresh", DbfMetricsCollector.getStatementKind( "REFRESH DBF" ));
+        assertEquals( "set", DbfMetricsCollector.getStatementKind( "set LOG 2" ));
+        assertEquals( DbfMetricsCollector.OTHER_KIND, DbfMetricsCollector.getStatementKind( "selected" ));
+        assertEquals( DbfMetricsCollector.OTHER_KIND, DbfMetricsCollector.getStatementKind( "sel" ));
+        assertEquals( DbfMetricsCollector.OTHER_KIND, DbfMetricsCollector.getStatementKind( "" ));
+        assertEquals( DbfMetricsCollector.OTHER_KIND, DbfMetricsCollector.getStatementKind( null ));
+    }
+}